@@ -0,0 +1,60 @@
+package ch.poole.osm.qa.address;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Per row operations on the GWR addresses of a municipality
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AddressStoreBenchmark {
+
+    private AddressStore store;
+    private File         geoJsonFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        store = new SyntheticAddresses(20000, 42).gwrStore();
+        geoJsonFile = File.createTempFile("missing", ".geojson");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(geoJsonFile.toPath());
+    }
+
+    @Benchmark
+    public int isAncillary() {
+        int result = 0;
+        for (int row = 0; row < store.size(); row++) {
+            if (store.isAncillary(row)) {
+                result++;
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long writeGeoJson() throws IOException {
+        try (GeoJsonWriter writer = new GeoJsonWriter(geoJsonFile)) {
+            for (int row = 0; row < store.size(); row++) {
+                store.write(row, writer);
+            }
+        }
+        return geoJsonFile.length();
+    }
+}
@@ -0,0 +1,64 @@
+package ch.poole.osm.qa.address;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Distance calculation between pairs of nearby points, and from one point to many points with and without the
+ * approximation of the DistanceKernel
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DistanceBenchmark {
+
+    private static final int PAIRS = 1024;
+
+    private final float[] lon1 = new float[PAIRS];
+    private final float[] lat1 = new float[PAIRS];
+    private final float[] lon2 = new float[PAIRS];
+    private final float[] lat2 = new float[PAIRS];
+
+    private final double[]       distances = new double[PAIRS];
+    private final DistanceKernel kernel    = new DistanceKernel();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(42);
+        for (int i = 0; i < PAIRS; i++) {
+            lon1[i] = 6 + random.nextFloat() * 4;
+            lat1[i] = 46 + random.nextFloat() * 1.5f;
+            lon2[i] = lon1[i] + (random.nextFloat() - 0.5f) * 0.002f;
+            lat2[i] = lat1[i] + (random.nextFloat() - 0.5f) * 0.002f;
+        }
+    }
+
+    @Benchmark
+    public double haversineDistance() {
+        double result = 0;
+        for (int i = 0; i < PAIRS; i++) {
+            result += GWRcompare.haversineDistance(lon1[i], lat1[i], lon2[i], lat2[i]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public double exactDistances() {
+        DistanceKernel.exactDistances(lon1[0], lat1[0], lon2, lat2, PAIRS, distances);
+        return distances[PAIRS - 1];
+    }
+
+    @Benchmark
+    public int kernelDistances() {
+        return kernel.distances(lon1[0], lat1[0], lon2, lat2, PAIRS, 50, distances);
+    }
+}
@@ -0,0 +1,77 @@
+package ch.poole.osm.qa.address;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.OsmRecord;
+
+/**
+ * Key creation for the addresses of a municipality
+ *
+ * key starts with empty dictionaries as for each municipality, lookup uses the OSM names and numbers on dictionaries
+ * that already contain the GWR addresses.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class KeyEngineBenchmark {
+
+    private String[]  gwrNames;
+    private String[]  gwrNumbers;
+    private String[]  osmNames;
+    private String[]  osmNumbers;
+    private KeyEngine keys;
+    private KeyEngine warm;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticAddresses data = new SyntheticAddresses(20000, 42);
+        gwrNames = new String[data.gwr.size()];
+        gwrNumbers = new String[data.gwr.size()];
+        for (int i = 0; i < gwrNames.length; i++) {
+            GwrRecord r = data.gwr.get(i);
+            gwrNames[i] = r.street;
+            gwrNumbers[i] = r.housenumber;
+        }
+        osmNames = new String[data.polygons.size()];
+        osmNumbers = new String[data.polygons.size()];
+        for (int i = 0; i < osmNames.length; i++) {
+            OsmRecord r = data.polygons.get(i);
+            osmNames[i] = r.street != null ? r.street : r.place;
+            osmNumbers[i] = r.housenumber;
+        }
+        keys = new KeyEngine();
+        warm = new KeyEngine();
+        for (int i = 0; i < gwrNames.length; i++) {
+            warm.key(gwrNames[i], gwrNumbers[i]);
+        }
+    }
+
+    @Benchmark
+    public long key() {
+        keys.clear();
+        long result = 0;
+        for (int i = 0; i < gwrNames.length; i++) {
+            result += keys.key(gwrNames[i], gwrNumbers[i]);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public long lookup() {
+        long result = 0;
+        for (int i = 0; i < osmNames.length; i++) {
+            result += warm.lookup(osmNames[i], osmNumbers[i]);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,99 @@
+package ch.poole.osm.qa.address;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+
+/**
+ * Adding, getting and removing the rows of a municipality by key
+ *
+ * LongIntMultiHashMap is used for the matching, MultiHashMap is the previous general purpose map. The remove benchmarks
+ * include filling the map.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MultiHashMapBenchmark {
+
+    private long[]                         keys;
+    private LongIntMultiHashMap            filled;
+    private MultiHashMap<Integer, Integer> filledMultiHashMap;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticAddresses data = new SyntheticAddresses(20000, 42);
+        KeyEngine keyEngine = new KeyEngine();
+        keys = new long[data.gwr.size()];
+        for (int i = 0; i < keys.length; i++) {
+            GwrRecord r = data.gwr.get(i);
+            keys[i] = keyEngine.key(r.street, r.housenumber);
+        }
+        filled = add();
+        filledMultiHashMap = multiHashMapAdd();
+    }
+
+    @Benchmark
+    public LongIntMultiHashMap add() {
+        LongIntMultiHashMap map = new LongIntMultiHashMap();
+        for (int i = 0; i < keys.length; i++) {
+            map.add(keys[i], i);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public long first() {
+        long result = 0;
+        for (long key : keys) {
+            result += filled.first(key);
+        }
+        return result;
+    }
+
+    @Benchmark
+    public LongIntMultiHashMap removeItem() {
+        LongIntMultiHashMap map = add();
+        for (int i = 0; i < keys.length; i++) {
+            map.removeItem(keys[i], i);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public MultiHashMap<Integer, Integer> multiHashMapAdd() {
+        MultiHashMap<Integer, Integer> map = new MultiHashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            map.add((int) keys[i], i);
+        }
+        return map;
+    }
+
+    @Benchmark
+    public long multiHashMapGet() {
+        long result = 0;
+        for (long key : keys) {
+            Set<Integer> values = filledMultiHashMap.get((int) key);
+            result += values.size();
+        }
+        return result;
+    }
+
+    @Benchmark
+    public MultiHashMap<Integer, Integer> multiHashMapRemoveItem() {
+        MultiHashMap<Integer, Integer> map = multiHashMapAdd();
+        for (int i = 0; i < keys.length; i++) {
+            map.removeItem((int) keys[i], i);
+        }
+        return map;
+    }
+}
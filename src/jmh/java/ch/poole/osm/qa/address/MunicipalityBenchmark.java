@@ -0,0 +1,83 @@
+package ch.poole.osm.qa.address;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.MunicipalityWorker;
+
+/**
+ * Compares a complete synthetic municipality
+ *
+ * The input is replayed from a snapshot, so this covers decoding the rows, building the keys and indices, matching and
+ * writing the per municipality GeoJson files. As in a normal run the files are written to the warnings and missing
+ * directories in the current directory, they are named after BFS number 1 and are deleted at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class MunicipalityBenchmark {
+
+    @Param({ "2000", "20000" })
+    public int buildings;
+
+    private File               snapshotFile;
+    private SnapshotReader     snapshot;
+    private MunicipalityWorker worker;
+    private Municipality       municipality;
+    private boolean            createdWarnings;
+    private boolean            createdMissing;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        snapshotFile = File.createTempFile("municipality", ".snapshot");
+        new SyntheticAddresses(buildings, 42).writeSnapshot(snapshotFile);
+        snapshot = new SnapshotReader(snapshotFile);
+        municipality = SyntheticAddresses.municipality();
+        createdWarnings = new File(GWRcompare.WARNINGS_DIR).mkdir();
+        createdMissing = new File(GWRcompare.MISSING_DIR).mkdir();
+        worker = new MunicipalityWorker(snapshot.newReader(), new GWRcompare.Config(), snapshot.referenceData(), null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        worker.close();
+        snapshot.close();
+        Files.deleteIfExists(snapshotFile.toPath());
+        delete(GWRcompare.WARNINGS_DIR, createdWarnings);
+        delete(GWRcompare.MISSING_DIR, createdMissing);
+    }
+
+    /**
+     * Delete the output file and the directory if it was created by setUp
+     *
+     * @param dir the directory
+     * @param created true if the directory was created by setUp
+     * @throws IOException if deleting fails
+     */
+    private static void delete(String dir, boolean created) throws IOException {
+        Files.deleteIfExists(new File(dir, SyntheticAddresses.MUNI_REF + ".geojson").toPath());
+        if (created) {
+            Files.deleteIfExists(new File(dir).toPath());
+        }
+    }
+
+    @Benchmark
+    public Object process() throws SQLException, IOException {
+        return worker.process(municipality);
+    }
+}
@@ -0,0 +1,97 @@
+package ch.poole.osm.qa.address;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.OsmRecord;
+
+/**
+ * The GWR and OSM addresses of a single synthetic municipality
+ *
+ * The rows are generated by SyntheticAddressSource with the default rates, the same seed always produces the same
+ * data.
+ */
+final class SyntheticAddresses {
+
+    static final String MUNI_REF = "1";
+
+    final List<GwrRecord> gwr;
+    final List<OsmRecord> polygons;
+    final List<OsmRecord> lines;
+    final List<OsmRecord> points;
+
+    /**
+     * Generate the addresses
+     *
+     * @param buildings the approximate number of GWR buildings
+     * @param seed the seed for the random number generator
+     */
+    SyntheticAddresses(int buildings, long seed) {
+        MemoryAddressSource.Rows rows = new SyntheticAddressSource(1, buildings, SyntheticAddressSource.DEFAULT_MATCH_RATE,
+                SyntheticAddressSource.DEFAULT_DUPLICATE_RATE, SyntheticAddressSource.DEFAULT_WARNING_RATE, seed).rows(municipality());
+        gwr = rows.gwr;
+        polygons = rows.polygons;
+        lines = rows.lines;
+        points = rows.points;
+    }
+
+    /**
+     * Add the GWR addresses to a new AddressStore, one row per record
+     *
+     * @return an AddressStore
+     */
+    @NotNull
+    AddressStore gwrStore() {
+        final AddressStore store = new AddressStore(new StringPool(), gwr.size());
+        for (GwrRecord r : gwr) {
+            final int row = store.add();
+            store.set(store.housenumber, row, r.housenumber);
+            store.set(store.street, row, r.street);
+            store.set(store.streetType, row, r.streetType);
+            store.set(store.postcode, row, r.postcode);
+            store.set(store.city, row, r.city);
+            store.category[row] = r.category;
+            store.gwrClass[row] = r.gwrClass;
+            store.official[row] = r.official;
+            store.lon[row] = r.lon;
+            store.lat[row] = r.lat;
+        }
+        return store;
+    }
+
+    /**
+     * @return a Municipality for the data
+     */
+    @NotNull
+    static Municipality municipality() {
+        return new Municipality(-1L, "Synthetic 00001", MUNI_REF);
+    }
+
+    /**
+     * Write the data to a snapshot file that can be replayed by a MunicipalityWorker
+     *
+     * @param file the snapshot File
+     * @throws IOException if the file can't be written
+     */
+    void writeSnapshot(@NotNull File file) throws IOException {
+        final List<Municipality> municipalities = Collections.singletonList(municipality());
+        try (SnapshotWriter writer = new SnapshotWriter(file, municipalities, ReferenceData.of(municipalities, Collections.emptyMap()))) {
+            SnapshotWriter.Block block = writer.newBlock();
+            block.gwr(gwr);
+            for (List<OsmRecord> section : List.of(polygons, lines, points)) {
+                block.beginOsm();
+                for (OsmRecord osm : section) {
+                    block.osm(osm);
+                }
+                block.endOsm();
+            }
+            writer.append(MUNI_REF, block);
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package ch.poole.osm.qa.address;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import org.jetbrains.annotations.NotNull;
+
+import ch.poole.osm.qa.address.GWRcompare.Warnings;
+
+/**
+ * Matches the GWR addresses of a municipality to the OSM addresses
+ *
+ * The addresses are held in two AddressStores that share a StringPool, the indices map the keys of a KeyEngine to the
+ * rows of the stores. Matching removes the matched rows from the indices, the results are returned in a Result. All
+ * scratch buffers, including the spatial index, are kept between calls and only grow, so that once they have reached
+ * the size of the largest municipality matching doesn't allocate anything apart from the Warnings and the labels of
+ * nearby GWR addresses. An instance must only be used from one thread.
+ */
+final class AddressMatcher {
+
+    // minimum number of OSM addresses with the same key for which we use the spatial index
+    private static final int GRID_MIN_CANDIDATES = 8;
+    // OSM addresses with a different postcode are only matched within this distance
+    private static final int POSTCODE_DISTANCE = 50;
+
+    private final KeyEngine                       keys;
+    private final LongIntMultiHashMap             gwrIndex;
+    private final LongIntMultiHashMap             osmIndex;
+    private final LongIntMultiHashMap.KeyCursor   gwrKeys;
+    private final LongIntMultiHashMap.KeyCursor   osmKeys;
+    private final LongIntMultiHashMap.ValueCursor gwrValues;
+    private final LongIntMultiHashMap.ValueCursor osmValues;
+
+    private final GridIndex            grid       = new GridIndex(GWRcompare.MATCHING_DISTANCE);
+    private final GridIndex.Neighbours neighbours = grid.newNeighbours();
+    private final DistanceKernel       kernel     = new DistanceKernel();
+
+    private int[]     candidates        = new int[16];
+    // position of an OSM row in candidates or -1
+    private int[]     candidatePosition = new int[0];
+    private float[]   candidateLons     = new float[16];
+    private float[]   candidateLats     = new float[16];
+    private double[]  distances         = new double[16];
+    // GWR rows with the same key
+    private int[]     sameKey           = new int[16];
+    private boolean[] leftOver          = new boolean[0];
+    private int[]     nearbyGwr         = new int[0];
+    private double[]  nearbyGwrDistance = new double[0];
+
+    private final IntPredicate isCandidate = row -> candidatePosition[row] >= 0;
+    private final IntPredicate isLeftOver  = row -> leftOver[row];
+
+    /**
+     * The counts, missing GWR addresses and warnings of a municipality
+     *
+     * An instance can be reused for all municipalities, the warnings are a new List for every call of match as they
+     * are handed on with the Stats.
+     */
+    static final class Result {
+        int            gwrDuplicates;
+        int            matching;
+        int            matchingAncillary;
+        int            postcode;
+        int            city;
+        int            distance;
+        int            place;
+        int            notOfficial;
+        int            noStreet;
+        int            nonGWR;
+        // GWR rows without a matching OSM address
+        int[]          missing = new int[16];
+        int            missingCount;
+        List<Warnings> warnings;
+
+        /**
+         * Reset all counts and start a new List of warnings
+         */
+        private void clear() {
+            gwrDuplicates = 0;
+            matching = 0;
+            matchingAncillary = 0;
+            postcode = 0;
+            city = 0;
+            distance = 0;
+            place = 0;
+            notOfficial = 0;
+            noStreet = 0;
+            nonGWR = 0;
+            missingCount = 0;
+            warnings = new ArrayList<>();
+        }
+
+        /**
+         * Add a GWR row to the missing addresses
+         *
+         * @param gwr the row
+         */
+        private void addMissing(int gwr) {
+            if (missingCount == missing.length) {
+                missing = Arrays.copyOf(missing, missingCount * 2);
+            }
+            missing[missingCount++] = gwr;
+        }
+    }
+
+    /**
+     * Create a new matcher
+     *
+     * @param keys the KeyEngine the keys of the indices were created with
+     * @param gwrIndex the index from key to GWR rows
+     * @param osmIndex the index from key to OSM rows
+     */
+    AddressMatcher(@NotNull KeyEngine keys, @NotNull LongIntMultiHashMap gwrIndex, @NotNull LongIntMultiHashMap osmIndex) {
+        this.keys = keys;
+        this.gwrIndex = gwrIndex;
+        this.osmIndex = osmIndex;
+        gwrKeys = gwrIndex.keyCursor();
+        osmKeys = osmIndex.keyCursor();
+        gwrValues = gwrIndex.valueCursor();
+        osmValues = osmIndex.valueCursor();
+    }
+
+    /**
+     * Match the GWR addresses to the OSM addresses
+     *
+     * @param gwrStore the GWR addresses
+     * @param osmStore the OSM addresses
+     * @param officialValid if true only GWR addresses with the official flag set are reported as missing
+     * @param result the Result the counts, missing addresses and warnings are returned in
+     */
+    void match(@NotNull AddressStore gwrStore, @NotNull AddressStore osmStore, boolean officialValid, @NotNull Result result) {
+        result.clear();
+        final List<Warnings> warnings = result.warnings;
+
+        // spatial index of the OSM addresses for candidate selection
+        final int osmSize = osmStore.size();
+        grid.clear();
+        for (int row = 0; row < osmSize; row++) {
+            grid.add(row, osmStore.lon[row], osmStore.lat[row]);
+        }
+        if (candidatePosition.length < osmSize) {
+            candidatePosition = new int[osmSize];
+            Arrays.fill(candidatePosition, -1);
+        }
+
+        gwrKeys.reset();
+        while (gwrKeys.next()) {
+            final long k = gwrKeys.key();
+            // check for duplicates
+            // for now we count them and then remove all but one
+            if (gwrIndex.valueCount(k) > 1) {
+                result.gwrDuplicates += removeDuplicates(gwrStore, k);
+            }
+            gwrValues.reset(k);
+            while (gwrValues.next()) {
+                final int gwr = gwrValues.value();
+                final String gwrNumber = gwrStore.get(gwrStore.housenumber, gwr);
+                int osm = -1;
+                long key = KeyEngine.NO_KEY;
+                int candidateCount = 0;
+                boolean haveDistances = false;
+                if (gwrStore.street[gwr] == StringPool.NULL) { // multilingual
+                    for (int language = 0; language < 4; language++) {
+                        final int name = languageStreet(gwrStore, gwr, language);
+                        if (name != StringPool.NULL) {
+                            key = keys.lookup(gwrStore.strings().get(name), gwrNumber);
+                            int first = osmIndex.first(key);
+                            if (first != LongIntMultiHashMap.NO_VALUE) {
+                                osm = first;
+                                break;
+                            }
+                        }
+                    }
+                } else {
+                    key = keys.lookup(gwrStore.get(gwrStore.street, gwr), gwrNumber);
+                    candidateCount = getCandidates(key);
+                    if (candidateCount > 0) {
+                        candidateDistances(gwrStore, gwr, osmStore, candidateCount);
+                        haveDistances = true;
+                        int closest = 0;
+                        for (int i = 1; i < candidateCount; i++) {
+                            if (distances[i] < distances[closest]) {
+                                closest = i;
+                            }
+                        }
+                        if (gwrStore.postcode[gwr] == osmStore.postcode[candidates[closest]] || distances[closest] <= POSTCODE_DISTANCE) {
+                            osm = candidates[closest];
+                        }
+                    }
+                }
+                final boolean ancillary = gwrStore.isAncillary(gwr);
+                if (osm >= 0) {
+                    if (!haveDistances) {
+                        candidateCount = getCandidates(key);
+                        candidateDistances(gwrStore, gwr, osmStore, candidateCount);
+                    }
+                    for (int i = 0; i < candidateCount; i++) {
+                        final int a = candidates[i];
+                        // skip addresses that would not have matched above
+                        final boolean noPostCodeMatch = gwrStore.postcode[gwr] != osmStore.postcode[a];
+                        double tempDistance = distances[i];
+
+                        if (noPostCodeMatch && tempDistance > POSTCODE_DISTANCE) {
+                            continue;
+                        }
+
+                        Warnings w = new Warnings(osmStore.get(osmStore.osmGeom, a), osmStore.osmId[a], osmStore.lon[a], osmStore.lat[a]);
+
+                        if (noPostCodeMatch) {
+                            result.postcode++;
+                            w.postcode = true;
+                            w.osmPostcode = osmStore.get(osmStore.postcode, a);
+                            w.gwrPostcode = gwrStore.get(gwrStore.postcode, gwr);
+                        }
+                        if (gwrStore.city[gwr] != osmStore.city[a]) {
+                            result.city++;
+                            w.city = true;
+                            w.osmCity = osmStore.get(osmStore.city, a);
+                            w.gwrCity = gwrStore.get(gwrStore.city, gwr);
+                        }
+                        if (tempDistance > GWRcompare.MATCHING_DISTANCE) {
+                            result.distance++;
+                            w.distance = true;
+                        }
+                        if (!GWRcompare.SWISSTOPO_STREET_GEOM.equals(gwrStore.get(gwrStore.streetType, gwr)) && osmStore.place[a] == StringPool.NULL) {
+                            result.place++;
+                            w.place = true;
+                        }
+                        w.notOfficial = !gwrStore.official[gwr];
+                        if (w.notOfficial && !ancillary) {
+                            result.notOfficial++;
+                        }
+                        if (w.hasWarning()) {
+                            warnings.add(w);
+                        }
+                        osmIndex.removeItem(key, a);
+                    }
+                    if (ancillary) {
+                        result.matchingAncillary++;
+                    } else {
+                        result.matching++;
+                    }
+                    gwrIndex.removeItem(key, gwr);
+                    continue;
+                }
+                if (!ancillary && (gwrStore.official[gwr] || !officialValid)) {
+                    result.addMissing(gwr);
+                }
+            }
+        }
+        addLeftOver(gwrStore, osmStore, result);
+    }
+
+    /**
+     * Remove all but the first of the GWR rows with a key that have the same postcode
+     *
+     * @param gwrStore the GWR addresses
+     * @param key the key
+     * @return the number of rows removed
+     */
+    private int removeDuplicates(@NotNull AddressStore gwrStore, long key) {
+        int count = 0;
+        gwrValues.reset(key);
+        while (gwrValues.next()) {
+            if (count == sameKey.length) {
+                sameKey = Arrays.copyOf(sameKey, count * 2);
+            }
+            sameKey[count++] = gwrValues.value();
+        }
+        int removed = 0;
+        for (int i = 0; i < count; i++) {
+            final int row = sameKey[i];
+            for (int j = 0; j < count; j++) {
+                final int other = sameKey[j];
+                if (other < row && gwrStore.postcode[other] == gwrStore.postcode[row]) {
+                    gwrIndex.removeItem(key, row);
+                    removed++;
+                    break;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Get the street name of a multilingual GWR address in the order we try the languages
+     *
+     * @param gwrStore the GWR addresses
+     * @param gwr the row
+     * @param language 0 to 3 for German, Romansh, French and Italian
+     * @return the id of the name
+     */
+    private static int languageStreet(@NotNull AddressStore gwrStore, int gwr, int language) {
+        switch (language) {
+        case 0:
+            return gwrStore.streetDe[gwr];
+        case 1:
+            return gwrStore.streetRm[gwr];
+        case 2:
+            return gwrStore.streetFr[gwr];
+        default:
+            return gwrStore.streetIt[gwr];
+        }
+    }
+
+    /**
+     * Add warnings for the OSM addresses that haven't been matched
+     *
+     * Unmatched OSM addresses close to missing GWR addresses are likely the same address with a differently spelled
+     * street or place name, the closest missing address is added to the warning.
+     *
+     * @param gwrStore the GWR addresses
+     * @param osmStore the OSM addresses
+     * @param result the Result
+     */
+    private void addLeftOver(@NotNull AddressStore gwrStore, @NotNull AddressStore osmStore, @NotNull Result result) {
+        final int osmSize = osmStore.size();
+        if (leftOver.length < osmSize) {
+            leftOver = new boolean[osmSize];
+            nearbyGwr = new int[osmSize];
+            nearbyGwrDistance = new double[osmSize];
+        }
+        Arrays.fill(leftOver, 0, osmSize, false);
+        Arrays.fill(nearbyGwr, 0, osmSize, -1);
+        osmKeys.reset();
+        while (osmKeys.next()) {
+            osmValues.reset(osmKeys.key());
+            while (osmValues.next()) {
+                leftOver[osmValues.value()] = true;
+            }
+        }
+        if (osmIndex.size() > 0) {
+            for (int i = 0; i < result.missingCount; i++) {
+                final int gwr = result.missing[i];
+                grid.nearest(gwrStore.lon[gwr], gwrStore.lat[gwr], 1, GWRcompare.MATCHING_DISTANCE, isLeftOver, neighbours);
+                if (neighbours.size() > 0) {
+                    final int candidate = neighbours.get(0);
+                    if (nearbyGwr[candidate] < 0 || neighbours.distance(0) < nearbyGwrDistance[candidate]) {
+                        nearbyGwr[candidate] = gwr;
+                        nearbyGwrDistance[candidate] = neighbours.distance(0);
+                    }
+                }
+            }
+        }
+        for (int row = 0; row < osmSize; row++) {
+            if (!leftOver[row]) {
+                continue;
+            }
+            Warnings w = new Warnings(osmStore.get(osmStore.osmGeom, row), osmStore.osmId[row], osmStore.lon[row], osmStore.lat[row]);
+            if (nearbyGwr[row] >= 0) {
+                w.nearbyGwr = gwrStore.label(nearbyGwr[row]);
+            }
+            if (osmStore.street[row] == StringPool.NULL && osmStore.place[row] == StringPool.NULL) {
+                w.noStreet = true;
+                result.noStreet++;
+            } else {
+                w.nonGWR = true;
+            }
+            result.warnings.add(w);
+        }
+        result.nonGWR = (int) (osmIndex.size() - result.noStreet);
+    }
+
+    /**
+     * Copy the OSM rows for a key to the candidates array
+     *
+     * @param key the key
+     * @return the number of candidates
+     */
+    private int getCandidates(long key) {
+        int count = 0;
+        osmValues.reset(key);
+        while (osmValues.next()) {
+            if (count == candidates.length) {
+                candidates = Arrays.copyOf(candidates, count * 2);
+            }
+            candidates[count++] = osmValues.value();
+        }
+        return count;
+    }
+
+    /**
+     * Calculate the distances from a GWR address to the candidate OSM addresses with the same key
+     *
+     * The distance for each candidate is returned in the distances array. For large numbers of candidates the spatial
+     * index is used. In both cases, if there is at least one candidate within MATCHING_DISTANCE, or there is only one
+     * candidate, the distances to the candidates that are certainly further away are not calculated and set to
+     * infinity.
+     *
+     * @param gwrStore the GWR addresses
+     * @param gwr the row of the GWR address
+     * @param osmStore the OSM addresses
+     * @param count the number of candidates
+     */
+    private void candidateDistances(@NotNull AddressStore gwrStore, int gwr, @NotNull AddressStore osmStore, int count) {
+        if (distances.length < count) {
+            distances = new double[Math.max(count, distances.length * 2)];
+        }
+        final float lon = gwrStore.lon[gwr];
+        final float lat = gwrStore.lat[gwr];
+        if (count >= GRID_MIN_CANDIDATES) {
+            for (int i = 0; i < count; i++) {
+                candidatePosition[candidates[i]] = i;
+            }
+            grid.nearest(lon, lat, count, GWRcompare.MATCHING_DISTANCE, isCandidate, neighbours);
+            final boolean found = neighbours.size() > 0;
+            if (found) {
+                Arrays.fill(distances, 0, count, Double.POSITIVE_INFINITY);
+                for (int i = 0; i < neighbours.size(); i++) {
+                    distances[candidatePosition[neighbours.get(i)]] = neighbours.distance(i);
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                candidatePosition[candidates[i]] = -1;
+            }
+            if (found) {
+                return;
+            }
+        }
+        if (candidateLons.length < count) {
+            candidateLons = new float[Math.max(count, candidateLons.length * 2)];
+            candidateLats = new float[candidateLons.length];
+        }
+        for (int i = 0; i < count; i++) {
+            final int o = candidates[i];
+            candidateLons[i] = osmStore.lon[o];
+            candidateLats[i] = osmStore.lat[o];
+        }
+        if (kernel.distances(lon, lat, candidateLons, candidateLats, count, GWRcompare.MATCHING_DISTANCE, distances) == 0 && count > 1) {
+            // the closest candidate is used even if it is further away
+            DistanceKernel.exactDistances(lon, lat, candidateLons, candidateLats, count, distances);
+        }
+    }
+}
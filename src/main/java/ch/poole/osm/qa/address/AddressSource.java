@@ -0,0 +1,119 @@
+package ch.poole.osm.qa.address;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.OsmRows;
+
+/**
+ * Provides the municipalities and the GWR and OSM address rows that are compared
+ *
+ * A source is opened once per run, each worker reads through its own Reader.
+ */
+interface AddressSource extends Closeable {
+
+    /**
+     * The OSM address queries, in the order they are read
+     */
+    enum OsmQuery {
+        /** addresses on polygons */
+        POLYGON,
+        /** addresses on lines */
+        LINE,
+        /** addresses on nodes */
+        POINT
+    }
+
+    /**
+     * The number of address pairs of a municipality that a Reader has already matched itself
+     *
+     * Only official GWR addresses are counted that are matched by exactly one OSM address without any warning, neither
+     * of them is returned by the Reader.
+     */
+    final class Matched {
+        int         gwr;
+        int         gwrAncillary;
+        final int[] osm = new int[OsmQuery.values().length];
+    }
+
+    /**
+     * Get the reference data, this is called once before any Reader is created
+     *
+     * @return the ReferenceData
+     * @throws SQLException
+     * @throws IOException
+     */
+    @NotNull
+    ReferenceData referenceData() throws SQLException, IOException;
+
+    /**
+     * Create a Reader for one worker
+     *
+     * @return a new Reader
+     * @throws SQLException
+     * @throws IOException
+     */
+    @NotNull
+    Reader newReader() throws SQLException, IOException;
+
+    /**
+     * Reads the rows of one municipality after the other, must only be used from one thread
+     *
+     * For each municipality the GWR rows have to be read first and then the OSM rows in the order of OsmQuery.
+     */
+    interface Reader extends AutoCloseable {
+
+        /**
+         * Get the GWR rows of a municipality
+         *
+         * @param municipality the Municipality
+         * @return a List of GwrRecord
+         * @throws SQLException
+         * @throws IOException
+         */
+        @NotNull
+        List<GwrRecord> gwr(@NotNull Municipality municipality) throws SQLException, IOException;
+
+        /**
+         * Get the rows of an OSM address query for a municipality
+         *
+         * @param municipality the Municipality
+         * @param query the query
+         * @return the OsmRows, they have to be closed before the next query
+         * @throws SQLException
+         * @throws IOException
+         */
+        @NotNull
+        OsmRows osm(@NotNull Municipality municipality, @NotNull OsmQuery query) throws SQLException, IOException;
+
+        /**
+         * Get the address pairs of the current municipality that have already been matched, valid after gwr has been
+         * called
+         *
+         * @return the Matched counts or null if the Reader doesn't match
+         */
+        @Nullable
+        default Matched matched() {
+            return null;
+        }
+
+        /**
+         * Called after all rows of a municipality have been read
+         *
+         * @throws SQLException
+         */
+        default void endMunicipality() throws SQLException {
+            // nothing by default
+        }
+
+        @Override
+        void close() throws SQLException, IOException;
+    }
+}
@@ -0,0 +1,316 @@
+package ch.poole.osm.qa.address;
+
+import java.io.IOException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.regex.Matcher;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.GWRcompare.GeoJsonOut;
+
+/**
+ * Column oriented storage for the GWR or OSM addresses of a municipality
+ *
+ * Each address is a row, the columns are primitive arrays indexed by row. Strings are stored as ids from a StringPool
+ * so that repeated values like street names, postcodes and cities are only held once, if two stores share a pool the
+ * ids can be compared directly.
+ *
+ * The column arrays are replaced when the store grows, references to them must not be kept across calls to add.
+ */
+class AddressStore {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private final StringPool strings;
+    private int              size = 0;
+
+    // OSM only
+    int[]  osmGeom;
+    long[] osmId;
+    int[]  housename;
+    int[]  place;
+
+    int[] housenumber;
+    int[] street;
+    int[] streetLang;
+    int[] postcode;
+    int[] city;
+
+    // GWR only
+    int[]     streetDe;
+    int[]     streetFr;
+    int[]     streetIt;
+    int[]     streetRm;
+    int[]     streetType;
+    int[]     category;
+    int[]     gwrClass;
+    boolean[] official;
+
+    float[] lon;
+    float[] lat;
+
+    /**
+     * Create a new store
+     *
+     * @param strings the StringPool to use
+     */
+    AddressStore(@NotNull StringPool strings) {
+        this(strings, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new store
+     *
+     * @param strings the StringPool to use
+     * @param capacity the initial number of rows
+     */
+    AddressStore(@NotNull StringPool strings, int capacity) {
+        this.strings = strings;
+        allocate(Math.max(1, capacity));
+    }
+
+    /**
+     * (Re-)allocate the columns retaining the current content
+     *
+     * @param capacity the new number of rows
+     */
+    private void allocate(int capacity) {
+        osmGeom = grow(osmGeom, capacity);
+        osmId = osmId == null ? new long[capacity] : Arrays.copyOf(osmId, capacity);
+        housename = grow(housename, capacity);
+        place = grow(place, capacity);
+        housenumber = grow(housenumber, capacity);
+        street = grow(street, capacity);
+        streetLang = grow(streetLang, capacity);
+        postcode = grow(postcode, capacity);
+        city = grow(city, capacity);
+        streetDe = grow(streetDe, capacity);
+        streetFr = grow(streetFr, capacity);
+        streetIt = grow(streetIt, capacity);
+        streetRm = grow(streetRm, capacity);
+        streetType = grow(streetType, capacity);
+        category = grow(category, capacity);
+        gwrClass = grow(gwrClass, capacity);
+        official = official == null ? new boolean[capacity] : Arrays.copyOf(official, capacity);
+        lon = lon == null ? new float[capacity] : Arrays.copyOf(lon, capacity);
+        lat = lat == null ? new float[capacity] : Arrays.copyOf(lat, capacity);
+    }
+
+    /**
+     * Grow an int column
+     *
+     * @param column the column or null
+     * @param capacity the new size
+     * @return a new array containing the content of column
+     */
+    @NotNull
+    private static int[] grow(@Nullable int[] column, int capacity) {
+        return column == null ? new int[capacity] : Arrays.copyOf(column, capacity);
+    }
+
+    /**
+     * Add an empty row
+     *
+     * @return the index of the new row
+     */
+    int add() {
+        if (size == lon.length) {
+            allocate(size * 2);
+        }
+        return size++;
+    }
+
+    /**
+     * Remove all rows, the columns are kept and only reset to the values of an empty row
+     *
+     * The StringPool is not cleared.
+     */
+    void clear() {
+        for (int[] column : new int[][] { osmGeom, housename, place, housenumber, street, streetLang, postcode, city, streetDe, streetFr, streetIt,
+                streetRm, streetType, category, gwrClass }) {
+            Arrays.fill(column, 0, size, 0);
+        }
+        Arrays.fill(osmId, 0, size, 0);
+        Arrays.fill(official, 0, size, false);
+        Arrays.fill(lon, 0, size, 0);
+        Arrays.fill(lat, 0, size, 0);
+        size = 0;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the StringPool used by this store
+     */
+    @NotNull
+    StringPool strings() {
+        return strings;
+    }
+
+    /**
+     * Get the string value of a column
+     *
+     * @param column the column
+     * @param row the row
+     * @return the string or null
+     */
+    @Nullable
+    String get(@NotNull int[] column, int row) {
+        return strings.get(column[row]);
+    }
+
+    /**
+     * Set the string value of a column
+     *
+     * @param column the column
+     * @param row the row
+     * @param value the new value
+     */
+    void set(@NotNull int[] column, int row, @Nullable String value) {
+        column[row] = strings.intern(value);
+    }
+
+    /**
+     * Get a human readable form of a GWR address
+     *
+     * @param row the row
+     * @return the street or place, for multilingual addresses the first name we have, followed by the number
+     */
+    @NotNull
+    String label(int row) {
+        int name = street[row];
+        name = name != StringPool.NULL ? name : streetDe[row];
+        name = name != StringPool.NULL ? name : streetFr[row];
+        name = name != StringPool.NULL ? name : streetIt[row];
+        name = name != StringPool.NULL ? name : streetRm[row];
+        return strings.get(name) + " " + get(housenumber, row);
+    }
+
+    /**
+     * Check if a GWR address is for an ancillary building
+     *
+     * @param row the row
+     * @return true if the address is ancillary
+     */
+    boolean isAncillary(int row) {
+        final String number = get(housenumber, row);
+        Matcher m = number != null ? GWRcompare.ANCILLARY_NUMBER.matcher(number) : null;
+        return category[row] == 1010 || category[row] == 1080 || gwrClass[row] == 1242 || gwrClass[row] == 1252 || (m != null && m.find());
+    }
+
+    /**
+     * Copy rows to a new, compact store with its own StringPool
+     *
+     * @param rows the rows to copy
+     * @param count the number of rows to copy
+     * @return a new AddressStore
+     */
+    @NotNull
+    AddressStore select(@NotNull int[] rows, int count) {
+        final AddressStore result = new AddressStore(new StringPool(), count);
+        for (int i = 0; i < count; i++) {
+            final int row = rows[i];
+            final int r = result.add();
+            result.set(result.osmGeom, r, get(osmGeom, row));
+            result.osmId[r] = osmId[row];
+            result.set(result.housename, r, get(housename, row));
+            result.set(result.place, r, get(place, row));
+            result.set(result.housenumber, r, get(housenumber, row));
+            result.set(result.street, r, get(street, row));
+            result.set(result.streetLang, r, get(streetLang, row));
+            result.set(result.postcode, r, get(postcode, row));
+            result.set(result.city, r, get(city, row));
+            result.set(result.streetDe, r, get(streetDe, row));
+            result.set(result.streetFr, r, get(streetFr, row));
+            result.set(result.streetIt, r, get(streetIt, row));
+            result.set(result.streetRm, r, get(streetRm, row));
+            result.set(result.streetType, r, get(streetType, row));
+            result.category[r] = category[row];
+            result.gwrClass[r] = gwrClass[row];
+            result.official[r] = official[row];
+            result.lon[r] = lon[row];
+            result.lat[r] = lat[row];
+        }
+        return result;
+    }
+
+    /**
+     * Get the GWR fields of all rows as features
+     *
+     * @return a List with one, on demand created, element per row
+     */
+    @NotNull
+    List<GeoJsonOut> features() {
+        return new Features();
+    }
+
+    /**
+     * Read only view of the rows as features
+     */
+    private class Features extends AbstractList<GeoJsonOut> implements RandomAccess {
+        @Override
+        public GeoJsonOut get(int row) {
+            if (row < 0 || row >= size) {
+                throw new IndexOutOfBoundsException(Integer.toString(row));
+            }
+            return writer -> write(row, writer);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * Just output the GWR fields of a row
+     *
+     * @param row the row
+     * @param writer the FeatureWriter
+     * @throws IOException if writing fails
+     */
+    void write(int row, @NotNull FeatureWriter writer) throws IOException {
+        writer.beginFeature();
+        writer.property("addr:housenumber", get(housenumber, row));
+        final String name = get(street, row);
+        if (GWRcompare.SWISSTOPO_STREET_GEOM.equals(get(streetType, row))) {
+            writer.property("addr:street", name != null ? name : "");
+            writeName(writer, "addr:street:de", streetDe[row]);
+            writeName(writer, "addr:street:fr", streetFr[row]);
+            writeName(writer, "addr:street:it", streetIt[row]);
+            writeName(writer, "addr:street:rm", streetRm[row]);
+        } else {
+            writer.property("addr:place", name != null ? name : "");
+            writeName(writer, "addr:place:de", streetDe[row]);
+            writeName(writer, "addr:place:fr", streetFr[row]);
+            writeName(writer, "addr:place:it", streetIt[row]);
+            writeName(writer, "addr:place:rm", streetRm[row]);
+        }
+        writer.property("addr:postcode", get(postcode, row));
+        writer.property("addr:city", get(city, row));
+        writer.endFeature(lon[row], lat[row]);
+    }
+
+    /**
+     * Write a property for a language specific name if it is present
+     *
+     * @param writer the FeatureWriter
+     * @param key the property key
+     * @param name the id of the name
+     * @throws IOException if writing fails
+     */
+    private void writeName(@NotNull FeatureWriter writer, @NotNull String key, int name) throws IOException {
+        if (name != StringPool.NULL) {
+            writer.property(key, strings.get(name));
+        }
+    }
+}
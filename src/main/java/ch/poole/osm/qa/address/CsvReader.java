@@ -0,0 +1,199 @@
+package ch.poole.osm.qa.address;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads a UTF-8 CSV file with a header line
+ *
+ * Fields are separated by commas and may be quoted with double quotes, quoted fields can contain commas, line breaks
+ * and doubled quotes. As in the CSV format of the PostgreSQL COPY command an empty unquoted field is null and an empty
+ * quoted field is an empty string.
+ */
+class CsvReader implements Closeable {
+
+    private static final int QUOTE     = '"';
+    private static final int SEPARATOR = ',';
+
+    private final File                 file;
+    private final BufferedReader       reader;
+    private final Map<String, Integer> columns = new HashMap<>();
+    private final List<String>         fields  = new ArrayList<>();
+    private final StringBuilder        field   = new StringBuilder();
+    private int                        line    = 0;
+
+    /**
+     * Open a file and read the header
+     *
+     * @param file the CSV file
+     * @throws IOException if the file can't be read or is empty
+     */
+    CsvReader(@NotNull File file) throws IOException {
+        this.file = file;
+        reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+        try {
+            if (!next()) {
+                throw new IOException(file + " has no header");
+            }
+            for (int i = 0; i < fields.size(); i++) {
+                columns.put(fields.get(i), i);
+            }
+        } catch (IOException e) {
+            reader.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the index of a column
+     *
+     * @param name the name of the column in the header
+     * @return the index
+     * @throws IOException if there is no such column
+     */
+    int column(@NotNull String name) throws IOException {
+        Integer index = columns.get(name);
+        if (index == null) {
+            throw new IOException(file + " has no column " + name);
+        }
+        return index;
+    }
+
+    /**
+     * Read the next record
+     *
+     * @return false at the end of the file
+     * @throws IOException if reading fails or a quoted field isn't terminated
+     */
+    boolean next() throws IOException {
+        fields.clear();
+        int c = reader.read();
+        // skip empty lines
+        while (c == '\n' || c == '\r') {
+            if (c == '\n') {
+                line++;
+            }
+            c = reader.read();
+        }
+        if (c < 0) {
+            return false;
+        }
+        line++;
+        while (true) {
+            field.setLength(0);
+            boolean quoted = false;
+            if (c == QUOTE) {
+                quoted = true;
+                while (true) {
+                    c = reader.read();
+                    if (c < 0) {
+                        throw new IOException(file + " line " + line + " unterminated quoted field");
+                    }
+                    if (c == QUOTE) {
+                        c = reader.read();
+                        if (c != QUOTE) {
+                            break;
+                        }
+                    } else if (c == '\n') {
+                        line++;
+                    }
+                    field.append((char) c);
+                }
+            }
+            while (c >= 0 && c != SEPARATOR && c != '\n' && c != '\r') {
+                field.append((char) c);
+                c = reader.read();
+            }
+            fields.add(quoted || field.length() > 0 ? field.toString() : null);
+            if (c == SEPARATOR) {
+                c = reader.read();
+                continue;
+            }
+            if (c == '\r') {
+                reader.mark(1);
+                if (reader.read() != '\n') {
+                    reader.reset();
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Get a field of the current record
+     *
+     * @param column the column index
+     * @return the value or null
+     */
+    @Nullable
+    String get(int column) {
+        return column < fields.size() ? fields.get(column) : null;
+    }
+
+    /**
+     * Get a numeric field of the current record
+     *
+     * @param column the column index
+     * @return the value, 0 if the field is null
+     * @throws IOException if the field isn't a number
+     */
+    long getLong(int column) throws IOException {
+        final String value = get(column);
+        try {
+            return value != null ? Long.parseLong(value.trim()) : 0;
+        } catch (NumberFormatException e) {
+            throw new IOException(file + " line " + line + " invalid number " + value);
+        }
+    }
+
+    /**
+     * Get a floating point field of the current record
+     *
+     * @param column the column index
+     * @return the value, 0 if the field is null
+     * @throws IOException if the field isn't a number
+     */
+    float getFloat(int column) throws IOException {
+        final String value = get(column);
+        try {
+            return value != null ? Float.parseFloat(value.trim()) : 0;
+        } catch (NumberFormatException e) {
+            throw new IOException(file + " line " + line + " invalid number " + value);
+        }
+    }
+
+    /**
+     * Get a boolean field of the current record, t, true and 1 are true
+     *
+     * @param column the column index
+     * @return the value, false if the field is null
+     */
+    boolean getBoolean(int column) {
+        final String value = get(column);
+        return "t".equalsIgnoreCase(value) || "true".equalsIgnoreCase(value) || "1".equals(value);
+    }
+
+    /**
+     * @return a description of the current position for error messages
+     */
+    @NotNull
+    String position() {
+        return file + " line " + line;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
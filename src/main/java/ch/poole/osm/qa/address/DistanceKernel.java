@@ -0,0 +1,117 @@
+package ch.poole.osm.qa.address;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Distances from one point to many points, using an equirectangular approximation to skip the exact calculation for
+ * points that are clearly too far away
+ *
+ * Within the small distances that are compared to a limit the approximation differs by far less than MARGIN from the
+ * haversine distance, so a point is only skipped if its exact distance is certainly above the limit, all decisions are
+ * the same as with haversine distances. Close to the poles and the antimeridian the approximation isn't used. The
+ * approximation is a simple loop over primitive arrays that the JIT can vectorize. An instance reuses its buffer and
+ * must only be used from one thread.
+ */
+final class DistanceKernel {
+
+    private static final double METERS_PER_DEGREE = GWRcompare.EARTH_RADIUS * Math.PI / 180;
+    // factor applied to the limit before comparing it to the approximation
+    private static final double MARGIN            = 1.001;
+    private static final double MAX_LAT           = 80;
+    private static final double MAX_LON           = 179;
+
+    private double[] squared = new double[16];
+    private int      from;
+    private boolean  approximated;
+
+    /**
+     * Calculate the approximate squared distances from a point to a range of points
+     *
+     * @param lon WGS84 longitude of the point
+     * @param lat WGS84 latitude of the point
+     * @param lons WGS84 longitudes of the points
+     * @param lats WGS84 latitudes of the points
+     * @param from the index of the first point
+     * @param to the index after the last point
+     */
+    void approximate(double lon, double lat, @NotNull float[] lons, @NotNull float[] lats, int from, int to) {
+        this.from = from;
+        approximated = Math.abs(lat) <= MAX_LAT && Math.abs(lon) <= MAX_LON;
+        if (!approximated) {
+            return;
+        }
+        final int count = to - from;
+        if (squared.length < count) {
+            squared = new double[Math.max(count, squared.length * 2)];
+        }
+        final double kx = Math.cos(Math.toRadians(lat)) * METERS_PER_DEGREE;
+        final double[] s = squared;
+        for (int i = 0; i < count; i++) {
+            final double dx = (lons[from + i] - lon) * kx;
+            final double dy = (lats[from + i] - lat) * METERS_PER_DEGREE;
+            s[i] = dx * dx + dy * dy;
+        }
+    }
+
+    /**
+     * Check if a point of the last range may be within a distance
+     *
+     * @param i the index of the point
+     * @param limit the distance in meters
+     * @return false if the exact distance of the point is certainly more than limit
+     */
+    boolean mayBeWithin(int i, double limit) {
+        if (!approximated) {
+            return true;
+        }
+        final double bound = limit * MARGIN;
+        return !(squared[i - from] > bound * bound);
+    }
+
+    /**
+     * Calculate the distances from a point to the first count points
+     *
+     * Points whose distance is certainly more than limit get a distance of POSITIVE_INFINITY, all others the haversine
+     * distance.
+     *
+     * @param lon WGS84 longitude of the point
+     * @param lat WGS84 latitude of the point
+     * @param lons WGS84 longitudes of the points
+     * @param lats WGS84 latitudes of the points
+     * @param count the number of points
+     * @param limit the distance in meters
+     * @param result the array the distances are returned in
+     * @return the number of points within limit
+     */
+    int distances(double lon, double lat, @NotNull float[] lons, @NotNull float[] lats, int count, double limit, @NotNull double[] result) {
+        approximate(lon, lat, lons, lats, 0, count);
+        int within = 0;
+        for (int i = 0; i < count; i++) {
+            if (mayBeWithin(i, limit)) {
+                result[i] = GWRcompare.haversineDistance(lon, lat, lons[i], lats[i]);
+                if (result[i] <= limit) {
+                    within++;
+                }
+            } else {
+                result[i] = Double.POSITIVE_INFINITY;
+            }
+        }
+        return within;
+    }
+
+    /**
+     * Calculate the exact distances from a point to the first count points
+     *
+     * @param lon WGS84 longitude of the point
+     * @param lat WGS84 latitude of the point
+     * @param lons WGS84 longitudes of the points
+     * @param lats WGS84 latitudes of the points
+     * @param count the number of points
+     * @param result the array the distances are returned in
+     */
+    static void exactDistances(double lon, double lat, @NotNull float[] lons, @NotNull float[] lats, int count, @NotNull double[] result) {
+        for (int i = 0; i < count; i++) {
+            result[i] = GWRcompare.haversineDistance(lon, lat, lons[i], lats[i]);
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package ch.poole.osm.qa.address;
+
+import java.io.File;
+
+import org.jetbrains.annotations.NotNull;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for the processing of municipalities
+ *
+ * All events are duration events that carry the BFS number of the municipality, so that a recording can be grouped by
+ * municipality in JDK Mission Control. The fields are only set if the event is going to be committed, when the events
+ * are disabled they cost next to nothing.
+ */
+final class Events {
+
+    private static final String CATEGORY = "Address QA";
+
+    /**
+     * Private constructor to stop instantiation
+     */
+    private Events() {
+        // empty
+    }
+
+    /**
+     * Processing of one municipality
+     */
+    @Name("ch.poole.osm.qa.address.Municipality")
+    @Label("Municipality")
+    @Description("Comparison of the GWR and OSM addresses of one municipality")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class MunicipalityEvent extends Event {
+        @Label("BFS Number")
+        String muniRef;
+
+        @Label("Name")
+        String name;
+
+        @Label("Canton")
+        String canton;
+
+        @Label("GWR Addresses")
+        int gwrAddresses;
+
+        @Label("OSM Addresses")
+        int osmAddresses;
+
+        @Label("Matching")
+        int matching;
+
+        @Label("Missing")
+        int missing;
+
+        @Label("Warnings")
+        int warnings;
+
+        @Label("Cached")
+        @Description("The input was unchanged and the results of the previous run were used")
+        boolean cached;
+
+        /**
+         * Commit the event if it is enabled
+         *
+         * @param municipality the Municipality
+         * @param muniCanton the canton of the municipality
+         * @param stats the results
+         * @param cachedResults true if the results of the previous run were used
+         */
+        void commit(@NotNull GWRcompare.Municipality municipality, @NotNull String muniCanton, @NotNull GWRcompare.Stats stats,
+                boolean cachedResults) {
+            end();
+            if (shouldCommit()) {
+                muniRef = municipality.ref;
+                name = municipality.name;
+                canton = muniCanton;
+                gwrAddresses = stats.gwrAddressesCount;
+                osmAddresses = stats.osmBuildingAddressesCount + stats.osmNodeAddressesCount;
+                matching = stats.matchingCount;
+                missing = stats.missingCount;
+                warnings = stats.warningsCount;
+                cached = cachedResults;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * One of the address queries of a municipality, including reading the rows
+     */
+    @Name("ch.poole.osm.qa.address.Query")
+    @Label("Address Query")
+    @Description("Reading the GWR or the polygon, line or point OSM addresses of a municipality")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class QueryEvent extends Event {
+        @Label("BFS Number")
+        String muniRef;
+
+        @Label("Query")
+        String query;
+
+        @Label("Rows")
+        int rows;
+
+        /**
+         * Commit the event if it is enabled
+         *
+         * @param municipalityRef the BFS number of the municipality
+         * @param queryName the name of the query
+         * @param count the number of rows read
+         */
+        void commit(@NotNull String municipalityRef, @NotNull String queryName, int count) {
+            end();
+            if (shouldCommit()) {
+                muniRef = municipalityRef;
+                query = queryName;
+                rows = count;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Matching the addresses of a municipality
+     */
+    @Name("ch.poole.osm.qa.address.Matching")
+    @Label("Matching")
+    @Description("Matching the GWR addresses of a municipality to the OSM addresses")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class MatchingEvent extends Event {
+        @Label("BFS Number")
+        String muniRef;
+
+        @Label("Keys")
+        @Description("Distinct street and house number keys of the GWR addresses")
+        int keys;
+
+        @Label("Warnings")
+        int warnings;
+
+        /**
+         * Commit the event if it is enabled
+         *
+         * @param municipalityRef the BFS number of the municipality
+         * @param keyCount the number of keys
+         * @param warningCount the number of warnings produced
+         */
+        void commit(@NotNull String municipalityRef, int keyCount, int warningCount) {
+            end();
+            if (shouldCommit()) {
+                muniRef = municipalityRef;
+                keys = keyCount;
+                warnings = warningCount;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Writing an output file
+     */
+    @Name("ch.poole.osm.qa.address.FileWrite")
+    @Label("Output File")
+    @Description("Writing the features of a municipality to a file and its compressed and FlatGeobuf siblings")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static final class FileWriteEvent extends Event {
+        @Label("Path")
+        String path;
+
+        @Label("Features")
+        int features;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        /**
+         * Commit the event if it is enabled
+         *
+         * @param file the main output File
+         * @param count the number of features written
+         * @param siblings the other files that were written
+         */
+        void commit(@NotNull File file, int count, @NotNull File... siblings) {
+            end();
+            if (shouldCommit()) {
+                path = file.getPath();
+                features = count;
+                bytes = file.length();
+                for (File sibling : siblings) {
+                    bytes += sibling.length();
+                }
+                commit();
+            }
+        }
+    }
+}
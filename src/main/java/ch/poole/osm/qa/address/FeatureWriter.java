@@ -0,0 +1,65 @@
+package ch.poole.osm.qa.address;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Receives features with a Point geometry and their properties, implemented for the different output formats
+ *
+ * A feature is written by calling beginFeature, then property for each property and finally endFeature with the
+ * coordinates.
+ */
+interface FeatureWriter extends Closeable {
+
+    /**
+     * Start a new feature
+     *
+     * @throws IOException if writing fails
+     */
+    void beginFeature() throws IOException;
+
+    /**
+     * Add a string property to the current feature
+     *
+     * @param key the key
+     * @param value the value or null
+     * @throws IOException if writing fails
+     */
+    void property(@NotNull String key, @Nullable String value) throws IOException;
+
+    /**
+     * Add a numeric property to the current feature
+     *
+     * @param key the key
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    void property(@NotNull String key, long value) throws IOException;
+
+    /**
+     * Finish the current feature
+     *
+     * @param lon WGS84 longitude
+     * @param lat WGS84 latitude
+     * @throws IOException if writing fails
+     */
+    void endFeature(float lon, float lat) throws IOException;
+
+    /**
+     * Copy the features of a previous run
+     *
+     * @param previous the previous output
+     * @throws IOException if the previous output can't be read or writing fails
+     */
+    void copy(@NotNull PreviousFeatures previous) throws IOException;
+
+    /**
+     * Make the output written so far usable without closing the writer, if the format supports this
+     *
+     * @throws IOException if writing fails
+     */
+    void checkpoint() throws IOException;
+}
@@ -0,0 +1,94 @@
+package ch.poole.osm.qa.address;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Accumulates a count and a 64 bit FNV-1a hash over a sequence of values without allocating
+ *
+ * This is used to detect if the input of a municipality has changed since the last run, it is not intended for any
+ * kind of security purposes.
+ */
+class Fingerprint {
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME        = 0x100000001b3L;
+
+    private static final long NULL_MARKER = 0x9e3779b97f4a7c15L;
+
+    private long count = 0;
+    private long hash  = FNV_OFFSET_BASIS;
+
+    /**
+     * Count a new input row
+     */
+    void row() {
+        count++;
+        mix(count);
+    }
+
+    /**
+     * Add a String value
+     *
+     * @param s the String, null is distinct from the empty String
+     */
+    void add(@Nullable String s) {
+        if (s == null) {
+            mix(NULL_MARKER);
+            return;
+        }
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            hash ^= s.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        // terminate the value so that "ab","c" and "a","bc" differ
+        mix(length);
+    }
+
+    /**
+     * Add a long value
+     *
+     * @param l the value
+     */
+    void add(long l) {
+        mix(l);
+    }
+
+    /**
+     * Add a float value
+     *
+     * @param f the value
+     */
+    void add(float f) {
+        mix(Float.floatToIntBits(f));
+    }
+
+    /**
+     * Add a boolean value
+     *
+     * @param b the value
+     */
+    void add(boolean b) {
+        mix(b ? 1 : 0);
+    }
+
+    /**
+     * Mix the 8 bytes of a long in to the hash
+     *
+     * @param l the long
+     */
+    private void mix(long l) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (l & 0xff);
+            hash *= FNV_PRIME;
+            l >>>= 8;
+        }
+    }
+
+    @Override
+    @NotNull
+    public String toString() {
+        return count + ":" + Long.toHexString(hash);
+    }
+}
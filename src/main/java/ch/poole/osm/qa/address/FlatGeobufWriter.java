@@ -0,0 +1,934 @@
+package ch.poole.osm.qa.address;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes Point features to a FlatGeobuf file with a packed Hilbert R-tree spatial index
+ *
+ * The header and the index precede the features in the file, so features are encoded when they are received and
+ * spooled to a temporary file, the actual output is written when the writer is closed. Columns are created in the
+ * order their keys are first used, with the type of the first value.
+ *
+ * The FlatBuffers are encoded directly with the objects in a fixed forward order, see
+ * https://github.com/flatgeobuf/flatgeobuf for the format and the reference implementation of the index.
+ */
+class FlatGeobufWriter implements FeatureWriter {
+
+    /**
+     * Extension of FlatGeobuf files
+     */
+    static final String EXTENSION = ".fgb";
+
+    private static final byte[] MAGIC = { 0x66, 0x67, 0x62, 0x03, 0x66, 0x67, 0x62, 0x00 };
+
+    private static final int    BUFFER_SIZE      = 256 * 1024;
+    private static final String SPOOL_EXTENSION  = ".spool";
+    private static final int    INDEX_NODE_SIZE  = 16;
+    private static final int    NODE_ITEM_BYTES  = 40;
+    private static final int    HILBERT_MAX      = (1 << 16) - 1;
+    private static final long   COORDINATE_SCALE = 10_000_000L;
+    private static final int    WGS84            = 4326;
+    private static final String CRS_ORGANIZATION = "EPSG";
+
+    // schema enums
+    private static final byte GEOMETRY_POINT = 1;
+    private static final byte COLUMN_LONG    = 7;
+    private static final byte COLUMN_STRING  = 11;
+    private static final byte COLUMN_JSON    = 12;
+    private static final byte COLUMN_BINARY  = 14;
+
+    // Header table field ids
+    private static final int HEADER_NAME            = 0;
+    private static final int HEADER_ENVELOPE        = 1;
+    private static final int HEADER_GEOMETRY_TYPE   = 2;
+    private static final int HEADER_COLUMNS         = 7;
+    private static final int HEADER_FEATURES_COUNT  = 8;
+    private static final int HEADER_INDEX_NODE_SIZE = 9;
+    private static final int HEADER_CRS             = 10;
+    // Column table field ids
+    private static final int COLUMN_NAME = 0;
+    private static final int COLUMN_TYPE = 1;
+    // Crs table field ids
+    private static final int CRS_ORG  = 0;
+    private static final int CRS_CODE = 1;
+    // Feature table field ids, the fixed layout of the other fields is in endFeature
+    private static final int FEATURE_PROPERTIES = 1;
+
+    private final File         file;
+    private final File         spoolFile;
+    private final OutputStream spool;
+    private long               spoolSize = 0;
+
+    private final Map<String, Integer> columnIndex = new HashMap<>();
+    private final List<String>         columnNames = new ArrayList<>();
+    private final List<Byte>           columnTypes = new ArrayList<>();
+
+    private final Encoder properties = new Encoder(1024);
+    private final Encoder feature    = new Encoder(1024);
+
+    // per feature position in the spool file, length and coordinates
+    private int      count   = 0;
+    private long[]   offsets = new long[64];
+    private int[]    lengths = new int[64];
+    private double[] xs      = new double[64];
+    private double[] ys      = new double[64];
+
+    /**
+     * Create a new writer, an existing file is overwritten when the writer is closed
+     *
+     * @param file the output File
+     * @throws IOException if the temporary spool file can't be created
+     */
+    FlatGeobufWriter(@NotNull File file) throws IOException {
+        this.file = file;
+        spoolFile = new File(file.getPath() + SPOOL_EXTENSION);
+        spool = new BufferedOutputStream(new FileOutputStream(spoolFile), BUFFER_SIZE);
+    }
+
+    @Override
+    public void beginFeature() {
+        properties.clear();
+    }
+
+    @Override
+    public void property(@NotNull String key, @Nullable String value) throws IOException {
+        if (value != null) { // null values are simply not present
+            properties.putShort(column(key, COLUMN_STRING));
+            final int lengthPosition = properties.position();
+            properties.putInt(0);
+            properties.putInt(lengthPosition, properties.putUtf8(value));
+        }
+    }
+
+    @Override
+    public void property(@NotNull String key, long value) throws IOException {
+        properties.putShort(column(key, COLUMN_LONG));
+        properties.putLong(value);
+    }
+
+    /**
+     * Get the index of the column for a key, creating it if necessary
+     *
+     * @param key the key
+     * @param type the type of the value
+     * @return the column index
+     * @throws IOException if the column already exists with a different type or there are too many columns
+     */
+    private int column(@NotNull String key, byte type) throws IOException {
+        Integer index = columnIndex.get(key);
+        if (index == null) {
+            index = columnNames.size();
+            if (index > 0xffff) {
+                throw new IOException("Too many columns in " + file);
+            }
+            columnIndex.put(key, index);
+            columnNames.add(key);
+            columnTypes.add(type);
+        } else if (columnTypes.get(index) != type) {
+            throw new IOException("Column " + key + " in " + file + " has type " + columnTypes.get(index) + " not " + type);
+        }
+        return index;
+    }
+
+    /**
+     * Encode the current feature and add it to the spool file
+     *
+     * The layout is fixed apart from the properties: size prefix, root offset, Feature vtable, Feature table, Geometry
+     * vtable, Geometry table, xy vector and properties vector
+     */
+    @Override
+    public void endFeature(float lon, float lat) throws IOException {
+        final double x = round(lon);
+        final double y = round(lat);
+        final int propertiesLength = properties.position();
+        feature.clear();
+        feature.putInt(0); // size prefix
+        feature.putInt(12); // root offset to the Feature table at 16
+        // Feature vtable at 8
+        feature.putShort(8);
+        feature.putShort(12);
+        feature.putShort(4);
+        feature.putShort(8);
+        // Feature table at 16
+        feature.putInt(8);
+        feature.putInt(36 - 20);
+        feature.putInt(64 - 24);
+        // Geometry vtable at 28
+        feature.putShort(8);
+        feature.putShort(8);
+        feature.putShort(0);
+        feature.putShort(4);
+        // Geometry table at 36
+        feature.putInt(8);
+        feature.putInt(44 - 40);
+        // xy vector at 44, the elements are 8 byte aligned
+        feature.putInt(2);
+        feature.putDouble(x);
+        feature.putDouble(y);
+        // properties vector at 64
+        feature.putInt(propertiesLength);
+        feature.put(properties.array(), 0, propertiesLength);
+        feature.pad(8, 0);
+        feature.putInt(0, feature.position() - 4);
+        spoolFeature(feature.array(), 0, feature.position(), x, y);
+    }
+
+    /**
+     * Round a coordinate to the same precision as the GeoJson output
+     *
+     * @param value the coordinate
+     * @return the rounded value
+     */
+    private static double round(float value) {
+        return Math.round((double) value * COORDINATE_SCALE) / (double) COORDINATE_SCALE;
+    }
+
+    /**
+     * Append an encoded feature to the spool file
+     *
+     * @param bytes array holding the feature
+     * @param offset start of the size prefixed feature
+     * @param length length of the feature including the size prefix
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @throws IOException if writing fails
+     */
+    private void spoolFeature(@NotNull byte[] bytes, int offset, int length, double x, double y) throws IOException {
+        if (count == offsets.length) {
+            final int capacity = count * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+        }
+        offsets[count] = spoolSize;
+        lengths[count] = length;
+        xs[count] = x;
+        ys[count] = y;
+        count++;
+        spool.write(bytes, offset, length);
+        spoolSize += length;
+    }
+
+    /**
+     * Copy the features from a FlatGeobuf file written by this class in a previous run
+     *
+     * The property column indices are mapped to the columns of this file, the coordinates are taken from the leaf nodes
+     * of the index.
+     */
+    @Override
+    public void copy(@NotNull PreviousFeatures previous) throws IOException {
+        if (previous.flatGeobuf == null) {
+            throw new IOException("No previous FlatGeobuf output for " + file);
+        }
+        final ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(previous.flatGeobuf.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        // only the major version is checked
+        if (in.limit() < MAGIC.length + 8 || in.getInt(0) != ByteBuffer.wrap(MAGIC).order(ByteOrder.LITTLE_ENDIAN).getInt(0)) {
+            throw new IOException(previous.flatGeobuf + " is not a FlatGeobuf file");
+        }
+        final int headerStart = MAGIC.length;
+        final int header = deref(in, headerStart + 4);
+        final int columnsField = field(in, header, HEADER_COLUMNS);
+        final int[] mapping;
+        final byte[] types;
+        if (columnsField != 0) {
+            final int columns = deref(in, columnsField);
+            final int columnCount = in.getInt(columns);
+            mapping = new int[columnCount];
+            types = new byte[columnCount];
+            for (int i = 0; i < columnCount; i++) {
+                final int column = deref(in, columns + 4 + 4 * i);
+                final int typeField = field(in, column, COLUMN_TYPE);
+                types[i] = typeField != 0 ? in.get(typeField) : 0;
+                mapping[i] = column(string(in, field(in, column, COLUMN_NAME)), types[i]);
+            }
+        } else {
+            mapping = new int[0];
+            types = new byte[0];
+        }
+        final int countField = field(in, header, HEADER_FEATURES_COUNT);
+        final long featureCount = countField != 0 ? in.getLong(countField) : 0;
+        final int nodeSizeField = field(in, header, HEADER_INDEX_NODE_SIZE);
+        final int nodeSize = nodeSizeField != 0 ? in.getShort(nodeSizeField) & 0xffff : INDEX_NODE_SIZE;
+        if (featureCount == 0) {
+            return;
+        }
+        if (nodeSize == 0 || featureCount > Integer.MAX_VALUE) {
+            throw new IOException(previous.flatGeobuf + " has no usable index");
+        }
+        final int items = (int) featureCount;
+        final int[][] levelBounds = levelBounds(items, nodeSize);
+        final int nodes = levelBounds[0][1];
+        final int index = headerStart + 4 + in.getInt(headerStart);
+        final int features = index + nodes * NODE_ITEM_BYTES;
+        for (int i = levelBounds[0][0]; i < nodes; i++) {
+            final int node = index + i * NODE_ITEM_BYTES;
+            final int start = features + (int) in.getLong(node + 32);
+            final int length = 4 + in.getInt(start);
+            final int properties = deref(in, field(in, deref(in, start + 4), FEATURE_PROPERTIES));
+            final int end = properties + 4 + in.getInt(properties);
+            for (int p = properties + 4; p < end;) {
+                final int column = in.getShort(p) & 0xffff;
+                in.putShort(p, (short) mapping[column]);
+                p += 2;
+                p += valueSize(types[column], in, p);
+            }
+            spoolFeature(in.array(), start, length, in.getDouble(node), in.getDouble(node + 8));
+        }
+    }
+
+    /**
+     * Get the encoded size of a property value
+     *
+     * @param type the column type
+     * @param in the buffer
+     * @param position the position of the value
+     * @return the size in bytes
+     * @throws IOException if the type is unknown
+     */
+    private static int valueSize(byte type, @NotNull ByteBuffer in, int position) throws IOException {
+        switch (type) {
+        case 0: // Byte
+        case 1: // UByte
+        case 2: // Bool
+            return 1;
+        case 3: // Short
+        case 4: // UShort
+            return 2;
+        case 5: // Int
+        case 6: // UInt
+        case 9: // Float
+            return 4;
+        case COLUMN_LONG:
+        case 8: // ULong
+        case 10: // Double
+            return 8;
+        case COLUMN_STRING:
+        case COLUMN_JSON:
+        case 13: // DateTime
+        case COLUMN_BINARY:
+            return 4 + in.getInt(position);
+        default:
+            throw new IOException("Unknown column type " + type);
+        }
+    }
+
+    /**
+     * Nothing to do, the file is only written on close
+     */
+    @Override
+    public void checkpoint() {
+        // FlatGeobuf can't be extended in place
+    }
+
+    /**
+     * Write the header, the index and the features sorted by their Hilbert value to the file and remove the spool file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            spool.close();
+            final int[] order = hilbertOrder();
+            try (FileChannel in = FileChannel.open(spoolFile.toPath(), StandardOpenOption.READ);
+                    OutputStream out = new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE)) {
+                out.write(MAGIC);
+                final Encoder header = header();
+                out.write(header.array(), 0, header.position());
+                if (count > 0) {
+                    writeIndex(out, order);
+                }
+                // the features are read in random order, mapping the file avoids a read call per feature
+                final ByteBuffer mapped = spoolSize <= Integer.MAX_VALUE ? in.map(FileChannel.MapMode.READ_ONLY, 0, spoolSize) : null;
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                for (int i : order) {
+                    if (lengths[i] > buffer.capacity()) {
+                        buffer = ByteBuffer.allocate(lengths[i]);
+                    }
+                    if (mapped != null) {
+                        mapped.get((int) offsets[i], buffer.array(), 0, lengths[i]);
+                    } else {
+                        buffer.clear();
+                        buffer.limit(lengths[i]);
+                        while (buffer.hasRemaining()) {
+                            if (in.read(buffer, offsets[i] + buffer.position()) < 0) {
+                                throw new IOException("Unexpected end of " + spoolFile);
+                            }
+                        }
+                    }
+                    out.write(buffer.array(), 0, lengths[i]);
+                }
+            }
+        } finally {
+            Files.deleteIfExists(spoolFile.toPath());
+        }
+    }
+
+    /**
+     * Determine the output order of the features, descending by the Hilbert value of their coordinates
+     *
+     * @return the feature indices in output order
+     */
+    @NotNull
+    private int[] hilbertOrder() {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, xs[i]);
+            minY = Math.min(minY, ys[i]);
+            maxX = Math.max(maxX, xs[i]);
+            maxY = Math.max(maxY, ys[i]);
+        }
+        final double width = maxX - minX;
+        final double height = maxY - minY;
+        // the unsigned Hilbert value in the upper and the feature index in the lower 31 bits
+        final long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            final int x = width == 0 ? 0 : (int) Math.floor(HILBERT_MAX * (xs[i] - minX) / width);
+            final int y = height == 0 ? 0 : (int) Math.floor(HILBERT_MAX * (ys[i] - minY) / height);
+            keys[i] = ((~hilbert(x, y) & 0xffffffffL) << 31) | i;
+        }
+        Arrays.sort(keys);
+        final int[] order = new int[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (int) (keys[i] & Integer.MAX_VALUE);
+        }
+        return order;
+    }
+
+    /**
+     * Hilbert curve value of a position, from https://github.com/rawrunprotected/hilbert_curves as used by FlatGeobuf
+     *
+     * @param x x in the range 0 to HILBERT_MAX
+     * @param y y in the range 0 to HILBERT_MAX
+     * @return the value to be interpreted as unsigned
+     */
+    private static int hilbert(int x, int y) {
+        int a = x ^ y;
+        int b = 0xFFFF ^ a;
+        int c = 0xFFFF ^ (x | y);
+        int d = x & (y ^ 0xFFFF);
+
+        int A = a | (b >>> 1);
+        int B = (a >>> 1) ^ a;
+        int C = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+        int D = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = ((a & (a >>> 2)) ^ (b & (b >>> 2)));
+        B = ((a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2)));
+        C ^= ((a & (c >>> 2)) ^ (b & (d >>> 2)));
+        D ^= ((b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2)));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        A = ((a & (a >>> 4)) ^ (b & (b >>> 4)));
+        B = ((a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4)));
+        C ^= ((a & (c >>> 4)) ^ (b & (d >>> 4)));
+        D ^= ((b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4)));
+
+        a = A;
+        b = B;
+        c = C;
+        d = D;
+        C ^= ((a & (c >>> 8)) ^ (b & (d >>> 8)));
+        D ^= ((b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8)));
+
+        a = C ^ (C >>> 1);
+        b = D ^ (D >>> 1);
+
+        int i0 = x ^ y;
+        int i1 = b | (0xFFFF ^ (i0 | a));
+
+        i0 = (i0 | (i0 << 8)) & 0x00FF00FF;
+        i0 = (i0 | (i0 << 4)) & 0x0F0F0F0F;
+        i0 = (i0 | (i0 << 2)) & 0x33333333;
+        i0 = (i0 | (i0 << 1)) & 0x55555555;
+
+        i1 = (i1 | (i1 << 8)) & 0x00FF00FF;
+        i1 = (i1 | (i1 << 4)) & 0x0F0F0F0F;
+        i1 = (i1 | (i1 << 2)) & 0x33333333;
+        i1 = (i1 | (i1 << 1)) & 0x55555555;
+
+        return (i1 << 1) | i0;
+    }
+
+    /**
+     * Calculate the node index ranges of the levels of a packed R-tree
+     *
+     * @param items the number of items, must be larger than 0
+     * @param nodeSize the number of children per node
+     * @return start and end index of each level, the leaves first and the root last, the end of the leaf level is the
+     *         total number of nodes
+     */
+    @NotNull
+    private static int[][] levelBounds(int items, int nodeSize) {
+        final List<Integer> levelNodes = new ArrayList<>();
+        int n = items;
+        int nodes = n;
+        levelNodes.add(n);
+        do {
+            n = (n + nodeSize - 1) / nodeSize;
+            nodes += n;
+            levelNodes.add(n);
+        } while (n != 1);
+        final int[][] bounds = new int[levelNodes.size()][];
+        n = nodes;
+        for (int i = 0; i < bounds.length; i++) {
+            n -= levelNodes.get(i);
+            bounds[i] = new int[] { n, n + levelNodes.get(i) };
+        }
+        return bounds;
+    }
+
+    /**
+     * Build and write the packed R-tree, the leaves reference the features by their offset in the feature section
+     *
+     * @param out the output
+     * @param order the features in output order
+     * @throws IOException if writing fails
+     */
+    private void writeIndex(@NotNull OutputStream out, @NotNull int[] order) throws IOException {
+        final int[][] levelBounds = levelBounds(count, INDEX_NODE_SIZE);
+        final int nodes = levelBounds[0][1];
+        final double[] minX = new double[nodes];
+        final double[] minY = new double[nodes];
+        final double[] maxX = new double[nodes];
+        final double[] maxY = new double[nodes];
+        final long[] offset = new long[nodes];
+        long featureOffset = 0;
+        for (int i = 0; i < count; i++) {
+            final int node = levelBounds[0][0] + i;
+            final int feature = order[i];
+            minX[node] = xs[feature];
+            minY[node] = ys[feature];
+            maxX[node] = xs[feature];
+            maxY[node] = ys[feature];
+            offset[node] = featureOffset;
+            featureOffset += lengths[feature];
+        }
+        for (int level = 0; level < levelBounds.length - 1; level++) {
+            final int end = levelBounds[level][1];
+            int parent = levelBounds[level + 1][0];
+            for (int child = levelBounds[level][0]; child < end; parent++) {
+                minX[parent] = Double.POSITIVE_INFINITY;
+                minY[parent] = Double.POSITIVE_INFINITY;
+                maxX[parent] = Double.NEGATIVE_INFINITY;
+                maxY[parent] = Double.NEGATIVE_INFINITY;
+                offset[parent] = child;
+                for (int j = 0; j < INDEX_NODE_SIZE && child < end; j++, child++) {
+                    minX[parent] = Math.min(minX[parent], minX[child]);
+                    minY[parent] = Math.min(minY[parent], minY[child]);
+                    maxX[parent] = Math.max(maxX[parent], maxX[child]);
+                    maxY[parent] = Math.max(maxY[parent], maxY[child]);
+                }
+            }
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(NODE_ITEM_BYTES * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < nodes; i++) {
+            if (!buffer.hasRemaining()) {
+                out.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+            buffer.putDouble(minX[i]).putDouble(minY[i]).putDouble(maxX[i]).putDouble(maxY[i]).putLong(offset[i]);
+        }
+        out.write(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * Encode the size prefixed Header
+     *
+     * @return an Encoder holding the Header
+     */
+    @NotNull
+    private Encoder header() {
+        final Encoder e = new Encoder(1024);
+        e.putInt(0); // size prefix
+        e.putInt(0); // root offset
+        final boolean hasFeatures = count > 0;
+        final int[] ids = { HEADER_NAME, HEADER_ENVELOPE, HEADER_GEOMETRY_TYPE, HEADER_COLUMNS, HEADER_FEATURES_COUNT, HEADER_INDEX_NODE_SIZE,
+                HEADER_CRS };
+        final int[] sizes = { 4, hasFeatures ? 4 : 0, 1, columnNames.isEmpty() ? 0 : 4, 8, 2, 4 };
+        final long[] values = { 0, 0, GEOMETRY_POINT, 0, count, hasFeatures ? INDEX_NODE_SIZE : 0, 0 };
+        final int[] fields = e.table(ids, sizes, values);
+        e.patch(4, e.lastTable());
+
+        String name = file.getName();
+        if (name.endsWith(EXTENSION)) {
+            name = name.substring(0, name.length() - EXTENSION.length());
+        }
+        e.patch(fields[0], e.string(name));
+
+        if (hasFeatures) {
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < count; i++) {
+                minX = Math.min(minX, xs[i]);
+                minY = Math.min(minY, ys[i]);
+                maxX = Math.max(maxX, xs[i]);
+                maxY = Math.max(maxY, ys[i]);
+            }
+            e.patch(fields[1], e.doubles(minX, minY, maxX, maxY));
+        }
+
+        if (!columnNames.isEmpty()) {
+            final int columns = e.offsets(columnNames.size());
+            e.patch(fields[3], columns);
+            for (int i = 0; i < columnNames.size(); i++) {
+                final int[] columnFields = e.table(new int[] { COLUMN_NAME, COLUMN_TYPE }, new int[] { 4, 1 }, new long[] { 0, columnTypes.get(i) });
+                e.patch(columns + 4 + 4 * i, e.lastTable());
+                e.patch(columnFields[0], e.string(columnNames.get(i)));
+            }
+        }
+
+        final int[] crsFields = e.table(new int[] { CRS_ORG, CRS_CODE }, new int[] { 4, 4 }, new long[] { 0, WGS84 });
+        e.patch(fields[6], e.lastTable());
+        e.patch(crsFields[0], e.string(CRS_ORGANIZATION));
+
+        e.pad(8, 0);
+        e.putInt(0, e.position() - 4);
+        return e;
+    }
+
+    /**
+     * Follow an offset
+     *
+     * @param in the buffer
+     * @param position the position of the offset
+     * @return the position of the referenced object
+     */
+    private static int deref(@NotNull ByteBuffer in, int position) {
+        return position + in.getInt(position);
+    }
+
+    /**
+     * Find a field of a table
+     *
+     * @param in the buffer
+     * @param table the position of the table
+     * @param id the field id
+     * @return the position of the field or 0 if it is not present
+     */
+    private static int field(@NotNull ByteBuffer in, int table, int id) {
+        final int vtable = table - in.getInt(table);
+        final int vtableSize = in.getShort(vtable) & 0xffff;
+        if (4 + 2 * id >= vtableSize) {
+            return 0;
+        }
+        final int offset = in.getShort(vtable + 4 + 2 * id) & 0xffff;
+        return offset == 0 ? 0 : table + offset;
+    }
+
+    /**
+     * Read a string
+     *
+     * @param in the buffer
+     * @param field the position of the offset to the string
+     * @return the string
+     * @throws IOException if the field is missing
+     */
+    @NotNull
+    private static String string(@NotNull ByteBuffer in, int field) throws IOException {
+        if (field == 0) {
+            throw new IOException("Missing string");
+        }
+        final int string = deref(in, field);
+        return new String(in.array(), string + 4, in.getInt(string), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Growable little endian buffer with the minimum needed to encode FlatBuffers front to back
+     *
+     * Objects are written after the objects that reference them, offsets are patched once the position of the target
+     * is known. Alignment is relative to the start of the buffer.
+     */
+    private static final class Encoder {
+        private ByteBuffer buffer;
+        private int        lastTable;
+
+        /**
+         * Create a new Encoder
+         *
+         * @param capacity the initial capacity
+         */
+        Encoder(int capacity) {
+            buffer = ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Reset to empty
+         */
+        void clear() {
+            buffer.clear();
+        }
+
+        /**
+         * @return the current position
+         */
+        int position() {
+            return buffer.position();
+        }
+
+        /**
+         * @return the backing array
+         */
+        @NotNull
+        byte[] array() {
+            return buffer.array();
+        }
+
+        /**
+         * @return the position of the last table written with table
+         */
+        int lastTable() {
+            return lastTable;
+        }
+
+        /**
+         * Make sure there is room for a number of bytes
+         *
+         * @param count the number of bytes
+         */
+        private void ensure(int count) {
+            if (buffer.remaining() < count) {
+                final ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + count)).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+
+        void put(@NotNull byte[] bytes, int offset, int length) {
+            ensure(length);
+            buffer.put(bytes, offset, length);
+        }
+
+        void putByte(int value) {
+            ensure(1);
+            buffer.put((byte) value);
+        }
+
+        void putShort(int value) {
+            ensure(2);
+            buffer.putShort((short) value);
+        }
+
+        void putInt(int value) {
+            ensure(4);
+            buffer.putInt(value);
+        }
+
+        void putInt(int position, int value) {
+            buffer.putInt(position, value);
+        }
+
+        void putLong(long value) {
+            ensure(8);
+            buffer.putLong(value);
+        }
+
+        void putDouble(double value) {
+            ensure(8);
+            buffer.putDouble(value);
+        }
+
+        /**
+         * Write zeros until position + extra is a multiple of alignment
+         *
+         * @param alignment the alignment
+         * @param extra bytes that will be written before the aligned value
+         */
+        void pad(int alignment, int extra) {
+            while ((buffer.position() + extra) % alignment != 0) {
+                putByte(0);
+            }
+        }
+
+        /**
+         * Write a string as UTF-8
+         *
+         * @param s the string
+         * @return the number of bytes written
+         */
+        int putUtf8(@NotNull String s) {
+            final int start = buffer.position();
+            final int length = s.length();
+            for (int i = 0; i < length; i++) {
+                ensure(4);
+                final char c = s.charAt(i);
+                if (c < 0x80) {
+                    buffer.put((byte) c);
+                } else if (c < 0x800) {
+                    buffer.put((byte) (0xc0 | (c >> 6)));
+                    buffer.put((byte) (0x80 | (c & 0x3f)));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buffer.put((byte) (0xf0 | (cp >> 18)));
+                    buffer.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                    buffer.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                    buffer.put((byte) (0x80 | (cp & 0x3f)));
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired surrogate
+                    buffer.put((byte) '?');
+                } else {
+                    buffer.put((byte) (0xe0 | (c >> 12)));
+                    buffer.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                    buffer.put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+            return buffer.position() - start;
+        }
+
+        /**
+         * Point the offset at a position to a later object
+         *
+         * @param field the position of the offset
+         * @param target the position of the object
+         */
+        void patch(int field, int target) {
+            buffer.putInt(field, target - field);
+        }
+
+        /**
+         * Write a vtable followed by its table
+         *
+         * The fields are laid out by descending size after the soffset, as the table starts 4 bytes before a multiple
+         * of 8 they are all aligned.
+         *
+         * @param ids the field ids
+         * @param sizes the size of each field, 1, 2, 4 or 8, offsets have size 4, fields with size 0 are not present
+         * @param values the values of scalar fields, ignored for offsets
+         * @return the positions of the fields, offsets have to be patched later
+         */
+        @NotNull
+        int[] table(@NotNull int[] ids, @NotNull int[] sizes, @NotNull long[] values) {
+            int maxId = -1;
+            for (int i = 0; i < ids.length; i++) {
+                if (sizes[i] > 0) {
+                    maxId = Math.max(maxId, ids[i]);
+                }
+            }
+            final int[] fieldOffsets = new int[ids.length];
+            int tableSize = 4;
+            for (int size = 8; size > 0; size /= 2) {
+                for (int i = 0; i < ids.length; i++) {
+                    if (sizes[i] == size) {
+                        fieldOffsets[i] = tableSize;
+                        tableSize += size;
+                    }
+                }
+            }
+            final int vtableSize = 4 + 2 * (maxId + 1);
+            pad(8, vtableSize + 4);
+            final int vtable = buffer.position();
+            putShort(vtableSize);
+            putShort(tableSize);
+            final short[] entries = new short[maxId + 1];
+            for (int i = 0; i < ids.length; i++) {
+                if (sizes[i] > 0) {
+                    entries[ids[i]] = (short) fieldOffsets[i];
+                }
+            }
+            for (short entry : entries) {
+                putShort(entry);
+            }
+            lastTable = buffer.position();
+            putInt(lastTable - vtable);
+            ensure(tableSize);
+            final int[] positions = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                if (sizes[i] > 0) {
+                    positions[i] = lastTable + fieldOffsets[i];
+                    switch (sizes[i]) {
+                    case 1:
+                        buffer.put(positions[i], (byte) values[i]);
+                        break;
+                    case 2:
+                        buffer.putShort(positions[i], (short) values[i]);
+                        break;
+                    case 4:
+                        buffer.putInt(positions[i], (int) values[i]);
+                        break;
+                    default:
+                        buffer.putLong(positions[i], values[i]);
+                    }
+                }
+            }
+            buffer.position(lastTable + tableSize);
+            return positions;
+        }
+
+        /**
+         * Write a string
+         *
+         * @param s the string
+         * @return the position of the string
+         */
+        int string(@NotNull String s) {
+            pad(4, 0);
+            final int position = buffer.position();
+            putInt(0);
+            putInt(position, putUtf8(s));
+            putByte(0);
+            return position;
+        }
+
+        /**
+         * Write a vector of doubles
+         *
+         * @param values the values
+         * @return the position of the vector
+         */
+        int doubles(@NotNull double... values) {
+            pad(8, 4);
+            final int position = buffer.position();
+            putInt(values.length);
+            for (double value : values) {
+                putDouble(value);
+            }
+            return position;
+        }
+
+        /**
+         * Write a vector of offsets that have to be patched later
+         *
+         * @param count the number of offsets
+         * @return the position of the vector, the offsets start 4 bytes later
+         */
+        int offsets(int count) {
+            pad(4, 0);
+            final int position = buffer.position();
+            putInt(count);
+            for (int i = 0; i < count; i++) {
+                putInt(0);
+            }
+            return position;
+        }
+    }
+}
@@ -2,9 +2,11 @@
 package ch.poole.osm.qa.address;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.sql.Connection;
@@ -13,17 +15,25 @@ import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
-import java.util.regex.Matcher;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import org.apache.commons.cli.CommandLine;
@@ -36,6 +46,8 @@ import org.apache.commons.cli.ParseException;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import ch.poole.osm.qa.address.PhaseMetrics.Phase;
+
 public class GWRcompare {
 
     private static final int EARTH_RADIUS_EQUATOR = 6378137;
@@ -43,15 +55,20 @@ public class GWRcompare {
     /**
      * The arithmetic mean of the two WGS84 reference-ellipsoids.
      */
-    private static final int EARTH_RADIUS         = (EARTH_RADIUS_EQUATOR + EARTH_RADIUS_POLAR) / 2;
+    static final int         EARTH_RADIUS         = (EARTH_RADIUS_EQUATOR + EARTH_RADIUS_POLAR) / 2;
 
     // percentage of addresses that have to have the official flag set for it to be considered valid
     private static final float DEFAULT_OFFICIAL_VALID_LIMIT = 0.8F;
 
-    private static final int MATCHING_DISTANCE = 50;
+    static final int MATCHING_DISTANCE = 50;
+
+    static final String         WARNINGS_DIR = "warnings";
+    static final String         MISSING_DIR  = "missing";
+    private static final String STATE_DIR    = "state";
 
-    private static final String WARNINGS_DIR = "warnings";
-    private static final String MISSING_DIR  = "missing";
+    // increment when a change to the matching invalidates the saved state of the incremental mode
+    private static final int    STATE_VERSION    = 2;
+    private static final String FINGERPRINT_PROP = "fingerprint";
 
     private static final String OUTPUT_OPT               = "output";
     private static final String USER_OPT                 = "user";
@@ -59,6 +76,29 @@ public class GWRcompare {
     private static final String CONNECTION_OPT           = "connection";
     private static final String MUNICIPALITY_OPT         = "municipality";
     private static final String OFFICIAL_VALID_LIMIT_OPT = "limit";
+    private static final String THREADS_OPT              = "threads";
+    private static final String PREFETCH_OPT             = "prefetch";
+    private static final String FETCH_SIZE_OPT           = "fetch-size";
+    private static final String INCREMENTAL_OPT          = "incremental";
+    private static final String GZIP_OPT                 = "gzip";
+    private static final String FLATGEOBUF_OPT           = "flatgeobuf";
+    private static final String REFERENCE_SNAPSHOT_OPT   = "reference-snapshot";
+    private static final String SNAPSHOT_OUT_OPT         = "snapshot-out";
+    private static final String SNAPSHOT_IN_OPT          = "snapshot-in";
+    private static final String CSV_OPT                  = "csv";
+    private static final String SYNTHETIC_OPT            = "synthetic";
+    private static final String METRICS_OPT              = "metrics";
+    private static final String SLOWEST_OPT              = "slowest";
+    private static final String PIPELINE_OPT             = "pipeline";
+    private static final String CONCURRENT_QUERIES_OPT   = "concurrent-queries";
+    private static final String SQL_MATCHING_OPT         = "sql-matching";
+    private static final String CLIENT_PROJECTION_OPT    = "client-projection";
+    private static final String VERIFY_SQL_MATCHING_OPT  = "verify-sql-matching";
+
+    private static final int DEFAULT_SLOWEST = 10;
+
+    // municipalities in flight between two stages of the pipeline
+    private static final int PIPELINE_DEPTH = 2;
 
     private static final String PASSWORD_PROP = "password";
     private static final String USER_PROP     = "user";
@@ -71,101 +111,28 @@ public class GWRcompare {
     private static final String GWR_LANG_FR           = "9903";
     private static final String GWR_LANG_RM           = "9902";
     private static final String GWR_LANG_DE           = "9901";
-    private static final String SWISSTOPO_STREET_GEOM = "Street";
+    static final String         SWISSTOPO_STREET_GEOM = "Street";
 
-    private static final Pattern ANCILLARY_NUMBER = Pattern.compile("^[^\\.]+[\\.\\,].*$");
+    private static final int DEFAULT_GZIP_LEVEL = 6;
 
-    interface GeoJsonOut {
-        String toGeoJson();
-    }
-
-    private static class Address implements GeoJsonOut {
-
-        String  osmGeom;
-        long    osmId;
-        String  housenumber;
-        String  housename;
-        String  street;
-        String  streetDe;
-        String  streetFr;
-        String  streetIt;
-        String  streetRm;
-        String  place;
-        String  streetType;
-        String  streetLang;
-        String  postcode;
-        String  city;
-        String  full;
-        int     gwrCategory;
-        int     gwrClass;
-        boolean official;
-        float   lon;
-        float   lat;
+    private static final String DEFAULT_REFERENCE_SNAPSHOT = STATE_DIR + File.separator + "reference.bin";
 
-        @Override
-        public String toString() {
-            return housenumber + " " + street;
-        }
+    static final Pattern ANCILLARY_NUMBER = Pattern.compile("^[^\\.]+[\\.\\,].*$");
 
-        public boolean isAncillary() {
-            Matcher m = housenumber != null ? ANCILLARY_NUMBER.matcher(housenumber) : null;
-            return gwrCategory == 1010 || gwrCategory == 1080 || gwrClass == 1242 || gwrClass == 1252 || (m != null && m.find());
-        }
+    // flags are output as strings for compatibility with earlier output
+    private static final String TRUE = "true";
 
+    interface GeoJsonOut {
         /**
-         * Just output the GWR fields
+         * Write this object as one or more features
          * 
-         * @return
+         * @param writer the FeatureWriter
+         * @throws IOException if writing fails
          */
-        @Override
-        public String toGeoJson() {
-            StringBuilder s = new StringBuilder();
-            s.append("{\"type\":\"Feature\",\n");
-            s.append("\"properties\":{");
-            s.append("\"addr:housenumber\":\"" + housenumber + "\",");
-            if (SWISSTOPO_STREET_GEOM.equals(streetType)) {
-                s.append("\"addr:street\":\"" + (street != null ? street : "") + "\",");
-                if (streetDe != null) {
-                    s.append("\"addr:street:de\":\"" + streetDe + "\",");
-                }
-                if (streetFr != null) {
-                    s.append("\"addr:street:fr\":\"" + streetFr + "\",");
-                }
-                if (streetIt != null) {
-                    s.append("\"addr:street:it\":\"" + streetIt + "\",");
-                }
-                if (streetRm != null) {
-                    s.append("\"addr:street:rm\":\"" + streetRm + "\",");
-                }
-            } else {
-                s.append("\"addr:place\":\"" + (street != null ? street : "") + "\",");
-                if (streetDe != null) {
-                    s.append("\"addr:place:de\":\"" + streetDe + "\",");
-                }
-                if (streetFr != null) {
-                    s.append("\"addr:place:fr\":\"" + streetFr + "\",");
-                }
-                if (streetIt != null) {
-                    s.append("\"addr:place:it\":\"" + streetIt + "\",");
-                }
-                if (streetRm != null) {
-                    s.append("\"addr:place:rm\":\"" + streetRm + "\",");
-                }
-            }
-            s.append("\"addr:postcode\":\"" + postcode + "\",");
-            s.append("\"addr:city\":\"" + city + "\"");
-            s.append("},\n");
-            s.append("\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
-            s.append(Float.toString(lon));
-            s.append(",");
-            s.append(Float.toString(lat));
-            s.append("]}\n");
-            s.append("}");
-            return s.toString();
-        }
+        void write(@NotNull FeatureWriter writer) throws IOException;
     }
 
-    private static class Warnings implements GeoJsonOut {
+    static class Warnings implements GeoJsonOut {
         String      osmGeom;
         long        osmId;
         boolean     postcode;
@@ -179,6 +146,7 @@ public class GWRcompare {
         boolean     noStreet;
         boolean     notOfficial;
         boolean     nonGWR;
+        String      nearbyGwr;
         final float lon;
         final float lat;
 
@@ -194,56 +162,43 @@ public class GWRcompare {
         }
 
         @Override
-        public String toGeoJson() {
-            StringBuilder s = new StringBuilder();
-            s.append("{\"type\":\"Feature\",\n");
-            s.append("\"properties\":{");
-            s.append("\"OSM geometry\":\"" + osmGeom + "\",");
-            s.append("\"OSM id\":" + osmId);
+        public void write(@NotNull FeatureWriter writer) throws IOException {
+            writer.beginFeature();
+            writer.property("OSM geometry", osmGeom);
+            writer.property("OSM id", osmId);
             if (postcode) {
-                s.append(",");
-                s.append("\"missing or wrong addr:postcode\":\"" + postcode + "\",");
-                s.append("\"OSM postcode\":\"" + osmPostcode + "\",");
-                s.append("\"GWR postcode\":\"" + gwrPostcode + "\"");
+                writer.property("missing or wrong addr:postcode", TRUE);
+                writer.property("OSM postcode", osmPostcode);
+                writer.property("GWR postcode", gwrPostcode);
             }
             if (city) {
-                s.append(",");
-                s.append("\"missing or wrong addr:city\":\"" + city + "\",");
-                s.append("\"OSM city\":\"" + osmCity + "\",");
-                s.append("\"GWR city\":\"" + gwrCity + "\"");
+                writer.property("missing or wrong addr:city", TRUE);
+                writer.property("OSM city", osmCity);
+                writer.property("GWR city", gwrCity);
             }
             if (place) {
-                s.append(",");
-                s.append("\"addr:street instead of addr:place\":\"" + place + "\"");
+                writer.property("addr:street instead of addr:place", TRUE);
             }
             if (distance) {
-                s.append(",");
-                s.append("\"distance more than 50 m\":\"" + distance + "\"");
+                writer.property("distance more than 50 m", TRUE);
             }
             if (noStreet) {
-                s.append(",");
-                s.append("\"no addr:street or addr:place\":\"" + noStreet + "\"");
+                writer.property("no addr:street or addr:place", TRUE);
             }
             if (notOfficial) {
-                s.append(",");
-                s.append("\"not official\":\"" + notOfficial + "\"");
+                writer.property("not official", TRUE);
             }
             if (nonGWR) {
-                s.append(",");
-                s.append("\"not in GWR\":\"" + nonGWR + "\"");
+                writer.property("not in GWR", TRUE);
+            }
+            if (nearbyGwr != null) {
+                writer.property("nearby GWR address", nearbyGwr);
             }
-            s.append("},\n");
-            s.append("\"geometry\":{\"type\":\"Point\",\"coordinates\":[");
-            s.append(Float.toString(lon));
-            s.append(",");
-            s.append(Float.toString(lat));
-            s.append("]}\n");
-            s.append("}");
-            return s.toString();
+            writer.endFeature(lon, lat);
         }
     }
 
-    private class Stats {
+    static class Stats {
         int osmBuildingAddressesCount  = 0;
         int osmNodeAddressesCount      = 0;
         int gwrAddressesCount          = 0;
@@ -261,14 +216,446 @@ public class GWRcompare {
         int placeCount                 = 0;
         int warningsCount              = 0;
 
-        List<Address>  missing;
-        List<Warnings> warnings;
+        List<GeoJsonOut> missing;
+        List<GeoJsonOut> warnings;
+
+        /**
+         * Compare the counts with those of an other Stats object
+         *
+         * @param other the other Stats
+         * @return a description of each count that differs, empty if they are all the same
+         */
+        @NotNull
+        List<String> differences(@NotNull Stats other) {
+            List<String> result = new ArrayList<>();
+            difference(result, "OSM buildings", osmBuildingAddressesCount, other.osmBuildingAddressesCount);
+            difference(result, "OSM nodes", osmNodeAddressesCount, other.osmNodeAddressesCount);
+            difference(result, "GWR", gwrAddressesCount, other.gwrAddressesCount);
+            difference(result, "GWR ancillary", gwrAncillaryAddressesCount, other.gwrAncillaryAddressesCount);
+            difference(result, "GWR duplicates", gwrDuplicates, other.gwrDuplicates);
+            difference(result, "matching", matchingCount, other.matchingCount);
+            difference(result, "matching ancillary", matchingAncillaryCount, other.matchingAncillaryCount);
+            difference(result, "missing", missingCount, other.missingCount);
+            difference(result, "postcode", postcodeCount, other.postcodeCount);
+            difference(result, "city", cityCount, other.cityCount);
+            difference(result, "distance", distanceCount, other.distanceCount);
+            difference(result, "no street", noStreetCount, other.noStreetCount);
+            difference(result, "not official", notOfficialCount, other.notOfficialCount);
+            difference(result, "non-GWR", nonGWRCount, other.nonGWRCount);
+            difference(result, "place", placeCount, other.placeCount);
+            difference(result, "warnings", warningsCount, other.warningsCount);
+            return result;
+        }
+
+        /**
+         * Add a description of a count to a list if it differs
+         *
+         * @param differences the list of differences
+         * @param name the name of the count
+         * @param expected the expected value
+         * @param actual the actual value
+         */
+        private static void difference(@NotNull List<String> differences, @NotNull String name, int expected, int actual) {
+            if (expected != actual) {
+                differences.add(name + " " + actual + " instead of " + expected);
+            }
+        }
+
+        /**
+         * Add the counts from an other Stats object to this one
+         * 
+         * @param other the other Stats
+         */
+        void add(@NotNull Stats other) {
+            osmBuildingAddressesCount += other.osmBuildingAddressesCount;
+            osmNodeAddressesCount += other.osmNodeAddressesCount;
+            gwrAddressesCount += other.gwrAddressesCount;
+            gwrAncillaryAddressesCount += other.gwrAncillaryAddressesCount;
+            gwrDuplicates += other.gwrDuplicates;
+            matchingCount += other.matchingCount;
+            matchingAncillaryCount += other.matchingAncillaryCount;
+            missingCount += other.missingCount;
+            postcodeCount += other.postcodeCount;
+            cityCount += other.cityCount;
+            distanceCount += other.distanceCount;
+            noStreetCount += other.noStreetCount;
+            notOfficialCount += other.notOfficialCount;
+            nonGWRCount += other.nonGWRCount;
+            placeCount += other.placeCount;
+            warningsCount += other.warningsCount;
+        }
+
+        /**
+         * Get the counts as Properties
+         * 
+         * @return a Properties object
+         */
+        @NotNull
+        Properties toProperties() {
+            Properties p = new Properties();
+            p.setProperty("osmBuildingAddresses", Integer.toString(osmBuildingAddressesCount));
+            p.setProperty("osmNodeAddresses", Integer.toString(osmNodeAddressesCount));
+            p.setProperty("gwrAddresses", Integer.toString(gwrAddressesCount));
+            p.setProperty("gwrAncillaryAddresses", Integer.toString(gwrAncillaryAddressesCount));
+            p.setProperty("gwrDuplicates", Integer.toString(gwrDuplicates));
+            p.setProperty("matching", Integer.toString(matchingCount));
+            p.setProperty("matchingAncillary", Integer.toString(matchingAncillaryCount));
+            p.setProperty("missing", Integer.toString(missingCount));
+            p.setProperty("postcode", Integer.toString(postcodeCount));
+            p.setProperty("city", Integer.toString(cityCount));
+            p.setProperty("distance", Integer.toString(distanceCount));
+            p.setProperty("noStreet", Integer.toString(noStreetCount));
+            p.setProperty("notOfficial", Integer.toString(notOfficialCount));
+            p.setProperty("nonGWR", Integer.toString(nonGWRCount));
+            p.setProperty("place", Integer.toString(placeCount));
+            p.setProperty("warnings", Integer.toString(warningsCount));
+            return p;
+        }
+
+        /**
+         * Create a new Stats object from Properties created with toProperties
+         * 
+         * @param p the Properties
+         * @return a new Stats object
+         * @throws NumberFormatException if a count is missing or not a number
+         */
+        @NotNull
+        static Stats fromProperties(@NotNull Properties p) {
+            Stats stats = new Stats();
+            stats.osmBuildingAddressesCount = Integer.parseInt(p.getProperty("osmBuildingAddresses"));
+            stats.osmNodeAddressesCount = Integer.parseInt(p.getProperty("osmNodeAddresses"));
+            stats.gwrAddressesCount = Integer.parseInt(p.getProperty("gwrAddresses"));
+            stats.gwrAncillaryAddressesCount = Integer.parseInt(p.getProperty("gwrAncillaryAddresses"));
+            stats.gwrDuplicates = Integer.parseInt(p.getProperty("gwrDuplicates"));
+            stats.matchingCount = Integer.parseInt(p.getProperty("matching"));
+            stats.matchingAncillaryCount = Integer.parseInt(p.getProperty("matchingAncillary"));
+            stats.missingCount = Integer.parseInt(p.getProperty("missing"));
+            stats.postcodeCount = Integer.parseInt(p.getProperty("postcode"));
+            stats.cityCount = Integer.parseInt(p.getProperty("city"));
+            stats.distanceCount = Integer.parseInt(p.getProperty("distance"));
+            stats.noStreetCount = Integer.parseInt(p.getProperty("noStreet"));
+            stats.notOfficialCount = Integer.parseInt(p.getProperty("notOfficial"));
+            stats.nonGWRCount = Integer.parseInt(p.getProperty("nonGWR"));
+            stats.placeCount = Integer.parseInt(p.getProperty("place"));
+            stats.warningsCount = Integer.parseInt(p.getProperty("warnings"));
+            return stats;
+        }
+    }
+
+    /**
+     * Settings from the command line
+     */
+    static class Config {
+        float   officialValidLimit = DEFAULT_OFFICIAL_VALID_LIMIT;
+        int     threads            = 1;
+        boolean prefetch           = false;
+        int     fetchSize          = 0;
+        boolean incremental        = false;
+        int     gzipLevel          = GeoJsonWriter.NO_GZIP;
+        boolean flatGeobuf         = false;
+        String  referenceSnapshot  = null;
+        String  snapshotOut        = null;
+        String  snapshotIn         = null;
+        String  csv                = null;
+        String  synthetic          = null;
+        String  metrics            = null;
+        int     slowest            = DEFAULT_SLOWEST;
+        boolean pipeline           = false;
+        boolean concurrentQueries  = false;
+        boolean sqlMatching        = false;
+        boolean verifySqlMatching  = false;
+        boolean clientProjection   = false;
+    }
+
+    /**
+     * The columns we use from a row of the GWR address queries
+     */
+    static class GwrRecord {
+        final long    addressId;
+        final String  street;
+        final String  housenumber;
+        final String  postcode;
+        final String  city;
+        final String  lang;
+        final String  streetType;
+        final int     category;
+        final int     gwrClass;
+        final boolean official;
+        final float   lon;
+        final float   lat;
+
+        /**
+         * Construct a new record from the current row of a ResultSet
+         * 
+         * @param rs the ResultSet
+         * @param strings if not null used to share identical strings
+         * @param streetType the type of the street
+         * @throws SQLException
+         */
+        GwrRecord(@NotNull ResultSet rs, @Nullable Map<String, String> strings, @Nullable String streetType) throws SQLException {
+            addressId = rs.getLong(2);
+            street = share(strings, rs.getString(6));
+            housenumber = rs.getString(7);
+            postcode = share(strings, rs.getString(8));
+            city = share(strings, rs.getString(10));
+            lang = share(strings, rs.getString(11));
+            this.streetType = streetType;
+            category = rs.getInt(12);
+            gwrClass = rs.getInt(13);
+            official = rs.getBoolean(14);
+            lon = rs.getFloat(15);
+            lat = rs.getFloat(16);
+        }
+
+        /**
+         * Construct a new record from individual values
+         * 
+         * @param addressId the EGAID
+         * @param street the street name
+         * @param housenumber the house number
+         * @param postcode the postcode
+         * @param city the city
+         * @param lang the GWR language code
+         * @param streetType the type of the street
+         * @param category the GWR building category
+         * @param gwrClass the GWR building class
+         * @param official true if the address is official
+         * @param lon WGS84 longitude
+         * @param lat WGS84 latitude
+         */
+        GwrRecord(long addressId, @Nullable String street, @Nullable String housenumber, @Nullable String postcode, @Nullable String city,
+                @Nullable String lang, @Nullable String streetType, int category, int gwrClass, boolean official, float lon, float lat) {
+            this.addressId = addressId;
+            this.street = street;
+            this.housenumber = housenumber;
+            this.postcode = postcode;
+            this.city = city;
+            this.lang = lang;
+            this.streetType = streetType;
+            this.category = category;
+            this.gwrClass = gwrClass;
+            this.official = official;
+            this.lon = lon;
+            this.lat = lat;
+        }
+
+        /**
+         * Add all fields to a Fingerprint
+         * 
+         * @param fingerprint the Fingerprint
+         */
+        void addTo(@NotNull Fingerprint fingerprint) {
+            fingerprint.row();
+            fingerprint.add(addressId);
+            fingerprint.add(street);
+            fingerprint.add(housenumber);
+            fingerprint.add(postcode);
+            fingerprint.add(city);
+            fingerprint.add(lang);
+            fingerprint.add(streetType);
+            fingerprint.add(category);
+            fingerprint.add(gwrClass);
+            fingerprint.add(official);
+            fingerprint.add(lon);
+            fingerprint.add(lat);
+        }
+
+        /**
+         * Return a shared instance of a string
+         * 
+         * @param strings the string pool or null
+         * @param s the string
+         * @return s or an equal string from the pool
+         */
+        @Nullable
+        private static String share(@Nullable Map<String, String> strings, @Nullable String s) {
+            if (strings == null || s == null) {
+                return s;
+            }
+            String shared = strings.putIfAbsent(s, s);
+            return shared != null ? shared : s;
+        }
+    }
+
+    /**
+     * A row of the OSM address queries, instances are reused for all rows of a query
+     */
+    static class OsmRecord {
+        long   osmId;
+        String housenumber;
+        String housename;
+        String street;
+        String streetDe;
+        String streetFr;
+        String streetIt;
+        String streetRm;
+        String place;
+        String placeDe;
+        String placeFr;
+        String placeIt;
+        String placeRm;
+        String postcode;
+        String city;
+        String full;
+        float  lon;
+        float  lat;
+
+        /**
+         * Set the fields from another OsmRecord
+         * 
+         * @param other the OsmRecord to copy
+         */
+        void set(@NotNull OsmRecord other) {
+            osmId = other.osmId;
+            housenumber = other.housenumber;
+            housename = other.housename;
+            street = other.street;
+            streetDe = other.streetDe;
+            streetFr = other.streetFr;
+            streetIt = other.streetIt;
+            streetRm = other.streetRm;
+            place = other.place;
+            placeDe = other.placeDe;
+            placeFr = other.placeFr;
+            placeIt = other.placeIt;
+            placeRm = other.placeRm;
+            postcode = other.postcode;
+            city = other.city;
+            full = other.full;
+            lon = other.lon;
+            lat = other.lat;
+        }
+
+        /**
+         * Set the fields from the current row of a ResultSet
+         * 
+         * @param rs the ResultSet
+         * @param mercator if true the position is in EPSG:3857 coordinates and is converted to WGS84
+         * @throws SQLException
+         */
+        void read(@NotNull ResultSet rs, boolean mercator) throws SQLException {
+            osmId = rs.getLong(1);
+            housenumber = rs.getString(2);
+            housename = rs.getString(3);
+            street = rs.getString(4);
+            streetDe = rs.getString(5);
+            streetFr = rs.getString(6);
+            streetIt = rs.getString(7);
+            streetRm = rs.getString(8);
+            place = rs.getString(9);
+            placeDe = rs.getString(10);
+            placeFr = rs.getString(11);
+            placeIt = rs.getString(12);
+            placeRm = rs.getString(13);
+            postcode = rs.getString(14);
+            city = rs.getString(15);
+            full = rs.getString(16);
+            if (mercator) {
+                lon = (float) WebMercator.lon(rs.getDouble(17));
+                lat = (float) WebMercator.lat(rs.getDouble(18));
+            } else {
+                lon = rs.getFloat(17);
+                lat = rs.getFloat(18);
+            }
+        }
+
+        /**
+         * Add all fields to a Fingerprint
+         * 
+         * @param fingerprint the Fingerprint
+         */
+        void addTo(@NotNull Fingerprint fingerprint) {
+            fingerprint.row();
+            fingerprint.add(osmId);
+            fingerprint.add(housenumber);
+            fingerprint.add(housename);
+            fingerprint.add(street);
+            fingerprint.add(streetDe);
+            fingerprint.add(streetFr);
+            fingerprint.add(streetIt);
+            fingerprint.add(streetRm);
+            fingerprint.add(place);
+            fingerprint.add(placeDe);
+            fingerprint.add(placeFr);
+            fingerprint.add(placeIt);
+            fingerprint.add(placeRm);
+            fingerprint.add(postcode);
+            fingerprint.add(city);
+            fingerprint.add(full);
+            fingerprint.add(lon);
+            fingerprint.add(lat);
+        }
+    }
+
+    /**
+     * The rows of one OSM address query
+     */
+    interface OsmRows extends AutoCloseable {
+        /**
+         * Read the next row
+         * 
+         * @param record the OsmRecord to fill
+         * @return false if there are no more rows
+         * @throws SQLException
+         * @throws IOException
+         */
+        boolean next(@NotNull OsmRecord record) throws SQLException, IOException;
+
+        @Override
+        void close() throws SQLException, IOException;
+    }
+
+    static class Municipality {
+        final long   boundaryId;
+        final String name;
+        final String ref;
+
+        Municipality(long boundaryId, @NotNull String name, @NotNull String ref) {
+            this.boundaryId = boundaryId;
+            this.name = name;
+            this.ref = ref;
+        }
+    }
+
+    static class MunicipalityResult {
+        final Municipality municipality;
+        final String       canton;
+        final Stats        stats;
+        final boolean      cached;
+        final PhaseMetrics metrics;
+
+        // needed to write the per municipality output, null if cached
+        final Fingerprint               fingerprint;
+        final Events.MunicipalityEvent event;
+
+        MunicipalityResult(@NotNull Municipality municipality, @NotNull String canton, @NotNull Stats stats, boolean cached,
+                @Nullable PhaseMetrics metrics, @Nullable Fingerprint fingerprint, @Nullable Events.MunicipalityEvent event) {
+            this.municipality = municipality;
+            this.canton = canton;
+            this.stats = stats;
+            this.cached = cached;
+            this.metrics = metrics;
+            this.fingerprint = fingerprint;
+            this.event = event;
+        }
     }
 
     private final Stats global = new Stats();
 
     private Map<String, Stats> cantonal = new HashMap<>();
 
+    // per canton output, opened when the first municipality of the canton is output
+    private final Map<String, FeatureWriter> cantonalWarnings = new HashMap<>();
+    private final Map<String, FeatureWriter> cantonalMissing  = new HashMap<>();
+    private int                              gzipLevel        = GeoJsonWriter.NO_GZIP;
+    private boolean                          flatGeobuf       = false;
+
+    // density per BFS number, written to the stats table at the end of the run
+    private final Map<Long, Double> densities = new LinkedHashMap<>();
+
+    // null if no metrics are collected
+    private MetricsWriter metrics = null;
+
     public static void main(String[] args) {
 
         Option outputFileOption = Option.builder("o").longOpt(OUTPUT_OPT).hasArg().desc("output html file, default: standard out").build();
@@ -278,6 +665,61 @@ public class GWRcompare {
         Option municipalityOption = Option.builder("m").longOpt(MUNICIPALITY_OPT).hasArg().desc("municiplality name, default is all municiplities").build();
         Option officialLimitOption = Option.builder("l").longOpt(OFFICIAL_VALID_LIMIT_OPT).hasArg()
                 .desc("limit as a fraction of one, from which on we consider the official flag valid").build();
+        Option threadsOption = Option.builder("t").longOpt(THREADS_OPT).hasArg()
+                .desc("number of municipalities to process in parallel, each worker uses its own database connection, default: 1").build();
+        Option prefetchOption = Option.builder().longOpt(PREFETCH_OPT)
+                .desc("read all GWR addresses in one pass at startup and assign them to municipalities by BFS number instead of by boundary").build();
+        Option fetchSizeOption = Option.builder().longOpt(FETCH_SIZE_OPT).hasArg()
+                .desc("stream address query results using a cursor with this many rows per fetch, default: read complete results").build();
+        Option incrementalOption = Option.builder().longOpt(INCREMENTAL_OPT)
+                .desc("reuse the output of the previous run for municipalities with unchanged input, state is kept in the " + STATE_DIR + " directory")
+                .build();
+        Option gzipOption = Option.builder().longOpt(GZIP_OPT).hasArg().optionalArg(true).argName("level")
+                .desc("write gzip compressed copies of the GeoJson files with the given compression level 0-9, default level: " + DEFAULT_GZIP_LEVEL)
+                .build();
+        Option flatGeobufOption = Option.builder().longOpt(FLATGEOBUF_OPT)
+                .desc("additionally write the GeoJson files as FlatGeobuf files with a spatial index, the cantonal files are only complete at the end of the run")
+                .build();
+
+        Option referenceSnapshotOption = Option.builder().longOpt(REFERENCE_SNAPSHOT_OPT).hasArg().optionalArg(true).argName("file")
+                .desc("keep the municipalities, cantons and street types in a local file and only query them again if the tables have changed, default file: "
+                        + DEFAULT_REFERENCE_SNAPSHOT)
+                .build();
+        Option snapshotOutOption = Option.builder().longOpt(SNAPSHOT_OUT_OPT).hasArg().argName("file")
+                .desc("write the rows read from the database to a snapshot file that can be replayed with --" + SNAPSHOT_IN_OPT).build();
+        Option snapshotInOption = Option.builder().longOpt(SNAPSHOT_IN_OPT).hasArg().argName("file")
+                .desc("read the input from a snapshot file instead of the database, the stats table is not updated").build();
+        Option csvOption = Option.builder().longOpt(CSV_OPT).hasArg().argName("dir")
+                .desc("read the input from the CSV files municipalities.csv, gwr.csv and osm.csv in a directory instead of the database, the stats table is not updated")
+                .build();
+        Option syntheticOption = Option.builder().longOpt(SYNTHETIC_OPT).hasArg().optionalArg(true).argName("spec")
+                .desc("compare generated addresses instead of the database, spec is a comma separated list of municipalities=n, addresses=n, "
+                        + "match=rate, duplicates=rate, warnings=rate and seed=n, default: a dataset the size of Switzerland")
+                .build();
+        Option metricsOption = Option.builder().longOpt(METRICS_OPT).hasArg().argName("file")
+                .desc("write the time, rows and allocated bytes per phase and municipality as JSON lines to a file, and a Prometheus snapshot of the totals to the file with the extension "
+                        + MetricsWriter.PROMETHEUS_EXTENSION + " added")
+                .build();
+        Option slowestOption = Option.builder().longOpt(SLOWEST_OPT).hasArg().argName("count")
+                .desc("number of the slowest municipalities printed at the end if metrics are written, default: " + DEFAULT_SLOWEST).build();
+
+        Option pipelineOption = Option.builder().longOpt(PIPELINE_OPT)
+                .desc("read the next municipality and write the output of the previous one while matching the current one, can't be used with more than one thread")
+                .build();
+
+        Option concurrentQueriesOption = Option.builder().longOpt(CONCURRENT_QUERIES_OPT)
+                .desc("run the GWR and OSM address queries of a municipality at the same time, each worker uses a database connection per query").build();
+
+        Option sqlMatchingOption = Option.builder().longOpt(SQL_MATCHING_OPT)
+                .desc("match the unambiguous addresses in the database and only read the remaining ones, each worker uses its own database connection")
+                .build();
+        Option verifySqlMatchingOption = Option.builder().longOpt(VERIFY_SQL_MATCHING_OPT)
+                .desc("use --" + SQL_MATCHING_OPT + " and additionally match all addresses in Java, differences in the counts are printed to standard error")
+                .build();
+
+        Option clientProjectionOption = Option.builder().longOpt(CLIENT_PROJECTION_OPT)
+                .desc("read the positions of the OSM addresses in the coordinates of the database and convert them from Web Mercator to WGS84 locally")
+                .build();
 
         Options options = new Options();
 
@@ -287,6 +729,24 @@ public class GWRcompare {
         options.addOption(connectionOption);
         options.addOption(municipalityOption);
         options.addOption(officialLimitOption);
+        options.addOption(threadsOption);
+        options.addOption(prefetchOption);
+        options.addOption(fetchSizeOption);
+        options.addOption(incrementalOption);
+        options.addOption(gzipOption);
+        options.addOption(flatGeobufOption);
+        options.addOption(referenceSnapshotOption);
+        options.addOption(snapshotOutOption);
+        options.addOption(snapshotInOption);
+        options.addOption(csvOption);
+        options.addOption(syntheticOption);
+        options.addOption(metricsOption);
+        options.addOption(slowestOption);
+        options.addOption(pipelineOption);
+        options.addOption(concurrentQueriesOption);
+        options.addOption(sqlMatchingOption);
+        options.addOption(verifySqlMatchingOption);
+        options.addOption(clientProjectionOption);
 
         CommandLineParser parser = new DefaultParser();
         try {
@@ -296,11 +756,59 @@ public class GWRcompare {
             String user = line.hasOption(USER_OPT) ? line.getOptionValue(USER_OPT) : "www-data";
             String password = line.hasOption(PASSWORD_OPT) ? line.getOptionValue(PASSWORD_OPT) : "";
             String municipality = line.hasOption(MUNICIPALITY_OPT) ? line.getOptionValue(MUNICIPALITY_OPT) : null;
-            float officialValidLimit = line.hasOption(OFFICIAL_VALID_LIMIT_OPT) ? Float.parseFloat(line.getOptionValue(OFFICIAL_VALID_LIMIT_OPT))
+            Config config = new Config();
+            config.officialValidLimit = line.hasOption(OFFICIAL_VALID_LIMIT_OPT) ? Float.parseFloat(line.getOptionValue(OFFICIAL_VALID_LIMIT_OPT))
                     : DEFAULT_OFFICIAL_VALID_LIMIT;
+            config.threads = line.hasOption(THREADS_OPT) ? Integer.parseInt(line.getOptionValue(THREADS_OPT)) : 1;
+            config.prefetch = line.hasOption(PREFETCH_OPT);
+            config.fetchSize = line.hasOption(FETCH_SIZE_OPT) ? Integer.parseInt(line.getOptionValue(FETCH_SIZE_OPT)) : 0;
+            config.incremental = line.hasOption(INCREMENTAL_OPT);
+            if (line.hasOption(GZIP_OPT)) {
+                String level = line.getOptionValue(GZIP_OPT);
+                config.gzipLevel = level != null ? Integer.parseInt(level) : DEFAULT_GZIP_LEVEL;
+                if (config.gzipLevel < 0 || config.gzipLevel > 9) {
+                    throw new ParseException("gzip level must be between 0 and 9");
+                }
+            }
+            config.flatGeobuf = line.hasOption(FLATGEOBUF_OPT);
+            if (line.hasOption(REFERENCE_SNAPSHOT_OPT)) {
+                String snapshot = line.getOptionValue(REFERENCE_SNAPSHOT_OPT);
+                config.referenceSnapshot = snapshot != null ? snapshot : DEFAULT_REFERENCE_SNAPSHOT;
+            }
+            if (line.hasOption(SNAPSHOT_OUT_OPT) && line.hasOption(SNAPSHOT_IN_OPT)) {
+                throw new ParseException(SNAPSHOT_OUT_OPT + " and " + SNAPSHOT_IN_OPT + " can't be used together");
+            }
+            config.snapshotOut = line.getOptionValue(SNAPSHOT_OUT_OPT);
+            config.snapshotIn = line.getOptionValue(SNAPSHOT_IN_OPT);
+            config.csv = line.getOptionValue(CSV_OPT);
+            if (line.hasOption(SYNTHETIC_OPT)) {
+                String spec = line.getOptionValue(SYNTHETIC_OPT);
+                config.synthetic = spec != null ? spec : "";
+                try {
+                    SyntheticAddressSource.parse(config.synthetic);
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(e.getMessage());
+                }
+            }
+            config.metrics = line.getOptionValue(METRICS_OPT);
+            config.slowest = line.hasOption(SLOWEST_OPT) ? Integer.parseInt(line.getOptionValue(SLOWEST_OPT)) : DEFAULT_SLOWEST;
+            config.pipeline = line.hasOption(PIPELINE_OPT);
+            config.concurrentQueries = line.hasOption(CONCURRENT_QUERIES_OPT);
+            if (config.pipeline && config.threads > 1) {
+                throw new ParseException(PIPELINE_OPT + " can't be used with more than one thread");
+            }
+            if ((config.snapshotIn != null ? 1 : 0) + (config.csv != null ? 1 : 0) + (config.synthetic != null ? 1 : 0) > 1) {
+                throw new ParseException("only one of " + SNAPSHOT_IN_OPT + ", " + CSV_OPT + " and " + SYNTHETIC_OPT + " can be used");
+            }
+            config.clientProjection = line.hasOption(CLIENT_PROJECTION_OPT);
+            config.verifySqlMatching = line.hasOption(VERIFY_SQL_MATCHING_OPT);
+            config.sqlMatching = line.hasOption(SQL_MATCHING_OPT) || config.verifySqlMatching;
+            if (config.sqlMatching) {
+                checkSqlMatching(config);
+            }
             try (OutputStream os = line.hasOption(OUTPUT_OPT) ? new FileOutputStream(line.getOptionValue(OUTPUT_OPT)) : System.out) {
                 GWRcompare app = new GWRcompare();
-                app.run(os, url, user, password, municipality, officialValidLimit);
+                app.run(os, url, user, password, municipality, config);
             }
         } catch (ParseException | NumberFormatException exp) {
             HelpFormatter formatter = new HelpFormatter();
@@ -312,16 +820,44 @@ public class GWRcompare {
         }
     }
 
+    /**
+     * Check that the other options can be used together with SQL matching
+     *
+     * The input of the worker doesn't contain the addresses matched in the database, so it can't be saved or used to
+     * detect changes. The distances are calculated in the database, so the positions have to be in WGS84 there.
+     *
+     * @param config the configuration
+     * @throws ParseException if an option can't be used
+     */
+    private static void checkSqlMatching(@NotNull Config config) throws ParseException {
+        if (config.snapshotIn != null || config.csv != null || config.synthetic != null) {
+            throw new ParseException(SQL_MATCHING_OPT + " can only be used with the database");
+        }
+        if (config.incremental || config.snapshotOut != null || config.prefetch || config.concurrentQueries || config.clientProjection) {
+            throw new ParseException(SQL_MATCHING_OPT + " can't be used with " + INCREMENTAL_OPT + ", " + SNAPSHOT_OUT_OPT + ", " + PREFETCH_OPT + ", "
+                    + CONCURRENT_QUERIES_OPT + " or " + CLIENT_PROJECTION_OPT);
+        }
+        if (config.verifySqlMatching && (config.threads > 1 || config.pipeline)) {
+            throw new ParseException(VERIFY_SQL_MATCHING_OPT + " can't be used with more than one thread or " + PIPELINE_OPT);
+        }
+    }
+
     private void run(@NotNull OutputStream out, @NotNull String connection, @Nullable String user, @Nullable String password, @Nullable String municipality,
-            float officialValidLimit) {
+            @NotNull Config config) {
         Properties props = new Properties();
         props.setProperty(USER_PROP, user);
         props.setProperty(PASSWORD_PROP, password);
-
-        File warningsDir = new File(WARNINGS_DIR);
-        File missingDir = new File(MISSING_DIR);
-
-        try (PrintWriter pw = new PrintWriter(out); Connection conn = DriverManager.getConnection(connection, props)) {
+        gzipLevel = config.gzipLevel;
+        flatGeobuf = config.flatGeobuf;
+
+        // the database is only used if the input is read from it
+        final boolean database = config.snapshotIn == null && config.csv == null && config.synthetic == null;
+        final long runStart = System.nanoTime();
+        try (PrintWriter pw = new PrintWriter(out);
+                Connection conn = database ? DriverManager.getConnection(connection, props) : null;
+                AddressSource source = openSource(conn, connection, props, config);
+                MetricsWriter metricsOut = config.metrics != null ? new MetricsWriter(new File(config.metrics), config.slowest) : null) {
+            metrics = metricsOut;
 
             pw.println("<H3>Updated - " + new SimpleDateFormat("yyyy-MM-dd", Locale.US).format(new Date(System.currentTimeMillis())) + "</H3>");
             pw.println("<table class=\"sortable\">");
@@ -337,401 +873,36 @@ public class GWRcompare {
                     + "<th class=\"sorttable_numeric\">addr:street/<br>addr:place<br>missing</th>" + "<th class=\"sorttable_numeric\">Not official</th>"
                     + "<th class=\"sorttable_numeric\">Non-GWR</th>" + "<th class=\"sorttable_numeric\">Warnings<br>total</th></tr>");
 
-            try (Statement stmt = conn.createStatement();
-                    ResultSet municipalities = municipality != null
-                            ? stmt.executeQuery("select distinct osm_id,name,muni_ref from buffered_boundaries where name='" + municipality + "'")
-                            : stmt.executeQuery("select distinct osm_id,name,muni_ref from buffered_boundaries b order by name");
-                    PreparedStatement gwrAddressQuery = conn.prepareStatement(
-                            "select EGID, EGAID, g.ESID, g.GDENR, GDENAME, STRNAME, DEINR, PLZ4, PLZZ, PLZNAME, STRSP, strtype, gkat, gklas, doffadr, ST_X(loc), ST_Y(loc) from gwr_addresses g, planet_osm_polygon p, esid_type e "
-                                    + "where p.boundary='administrative' and p.admin_level='8' and tags->'swisstopo:BFS_NUMMER'=? and e.esid=g.esid and ST_Contains(ST_Transform(p.way,4326),g.loc) "
-                                    + "and g.gstat = 1004");
-                    PreparedStatement osmBuildingAddressQuery = conn
-                            .prepareStatement("with mp as (select ST_Multi(ST_Collect(way)) as w from planet_osm_polygon where osm_id = ?) "
-                                    + "select p.osm_id as osmid,\"addr:housenumber\" as housenumber,\"addr:housename\" as housename, "
-                                    + "tags->'addr:street' as street, tags->'addr:street:de' as streetde,  tags->'addr:street:fr' as streetfr, tags->'addr:street:it' as streetit, tags->'addr:street:rm' as streetrm, "
-                                    + "tags->'addr:place' as aplace,  tags->'addr:place:de' as placede,  tags->'addr:place:fr' as placefr, tags->'addr:place:it' as placeit, tags->'addr:place:rm' as placerm, "
-                                    + "tags->'addr:postcode' as postcode, tags->'addr:city' as city, tags->'addr:full' as afull, ST_X(ST_PointOnSurface(ST_Transform(p.way,4326))), ST_Y(ST_PointOnSurface(ST_Transform(p.way,4326))) from planet_osm_polygon p,mp "
-                                    + "where ST_IsValid(p.way) AND not St_IsEmpty(p.way) AND (p.\"addr:housenumber\" is not NULL or p.\"addr:housename\" is not NULL or exist(p.tags , 'addr:full')  or  exist(p.tags , 'addr:conscriptionnumber')) AND St_IsValid(mp.w) AND St_Covers(mp.w,p.way)");
-                    PreparedStatement osmBuildingAddressQuery2 = conn
-                            .prepareStatement("with mp as (select ST_Multi(ST_Collect(way)) as w from planet_osm_polygon where osm_id = ?) "
-                                    + "select p.osm_id as osmid,\"addr:housenumber\" as housenumber,\"addr:housename\" as housename, "
-                                    + "tags->'addr:street' as street, tags->'addr:street:de' as streetde,  tags->'addr:street:fr' as streetfr, tags->'addr:street:it' as streetit, tags->'addr:street:rm' as streetrm, "
-                                    + "tags->'addr:place' as aplace,  tags->'addr:place:de' as placede,  tags->'addr:place:fr' as placefr, tags->'addr:place:it' as placeit, tags->'addr:place:rm' as placerm, "
-                                    + "tags->'addr:postcode' as postcode, tags->'addr:city' as city, tags->'addr:full' as afull, ST_X(ST_PointOnSurface(ST_Transform(p.way,4326))), ST_Y(ST_PointOnSurface(ST_Transform(p.way,4326))) from planet_osm_line p,mp "
-                                    + "where ST_IsValid(p.way) AND not St_IsEmpty(p.way) AND (p.\"addr:housenumber\" is not NULL or p.\"addr:housename\" is not NULL or exist(p.tags , 'addr:full')  or  exist(p.tags , 'addr:conscriptionnumber')) AND St_IsValid(mp.w) AND St_Covers(mp.w,p.way)");
-
-                    PreparedStatement osmNodeAddressQuery = conn
-                            .prepareStatement("select p.osm_id as osmid,\"addr:housenumber\" as housenumber,\"addr:housename\" as housename, "
-                                    + "tags->'addr:street' as street, tags->'addr:street:de' as streetde,  tags->'addr:street:fr' as streetfr, tags->'addr:street:it' as streetit, tags->'addr:street:rm' as streetrm, "
-                                    + "tags->'addr:place' as aplace,  tags->'addr:place:de' as placede,  tags->'addr:place:fr' as placefr, tags->'addr:place:it' as placeit, tags->'addr:place:rm' as placerm, "
-                                    + "tags->'addr:postcode' as postcode, tags->'addr:city' as city, tags->'addr:full' as afull, ST_X(ST_Transform(p.way,4326)), ST_Y(ST_Transform(p.way,4326)) from planet_osm_point p,buffered_boundaries b "
-                                    + "where (p.\"addr:housenumber\" is not NULL   or p.\"addr:housename\" is not NULL  or  exist(p.tags , 'addr:full')  or  exist(p.tags , 'addr:conscriptionnumber')) AND St_IsValid(b.way) AND St_Covers(b.way,p.way) and b.osm_id=?");
-                    PreparedStatement updateStats = conn.prepareStatement("update muni_address_stats set density=? where muni_ref=?");
-                    PreparedStatement insertStats = conn.prepareStatement("insert into muni_address_stats (muni_ref,density) values(?,?)");
-                    PreparedStatement muniCantonQuery = conn.prepareStatement("select distinct gdekt from gwr_addresses where gdenr=?");) {
-                // loop over municipalities
-                while (municipalities.next()) {
-                    long muniBoundaryId = municipalities.getInt(1);
-                    String muniName = municipalities.getString(2);
-                    String muniRef = municipalities.getString(3);
-
-                    // get canton
-                    muniCantonQuery.setInt(1, Integer.parseInt(muniRef));
-                    ResultSet canton = muniCantonQuery.executeQuery();
-                    String muniCanton = "?";
-                    if (canton.next()) {
-                        muniCanton = canton.getString(1);
-                    }
-
-                    // get GWR addresses
-                    MultiHashMap<String, Address> gwrAddressesMap = new MultiHashMap<>();
-                    Map<String, Boolean> gwrHasValidation = new HashMap<>();
-                    Map<Long, Address> seen = new HashMap<>();
-                    gwrAddressQuery.setString(1, muniRef);
-                    ResultSet gwrAddresses = gwrAddressQuery.executeQuery();
-                    int gwrCount = 0;
-                    int gwrAncillaryCount = 0;
-                    int gwrNoNumber = 0;
-                    int officialCount = 0;
-                    while (gwrAddresses.next()) {
-                        long addressId = gwrAddresses.getLong(2);
-                        Address seenAddress = seen.get(addressId);
-                        if (seenAddress != null) {
-                            // multilingual
-                            if (seenAddress.street != null) {
-                                // move to correct language
-                                switch (seenAddress.streetLang) {
-                                case LANG_DE:
-                                    seenAddress.streetDe = seenAddress.street;
-                                    break;
-                                case LANG_RM:
-                                    seenAddress.streetRm = seenAddress.street;
-                                    break;
-                                case LANG_FR:
-                                    seenAddress.streetFr = seenAddress.street;
-                                    break;
-                                case LANG_IT:
-                                    seenAddress.streetIt = seenAddress.street;
-                                    break;
-                                default:
-                                    // no language set
-                                }
-                                seenAddress.street = null;
-                            }
-                            // add street name to correct field
-                            String street = gwrAddresses.getString(6);
-                            switch (gwrAddresses.getString(11)) {
-                            case GWR_LANG_DE:
-                                seenAddress.streetDe = street;
-                                break;
-                            case GWR_LANG_RM:
-                                seenAddress.streetRm = street;
-                                break;
-                            case GWR_LANG_FR:
-                                seenAddress.streetFr = street;
-                                break;
-                            case GWR_LANG_IT:
-                                seenAddress.streetIt = street;
-                                break;
-                            default:
-                                // no language set
-                            }
-                            continue;
-                        }
-                        Address address = new Address();
-                        address.housenumber = gwrAddresses.getString(7);
-                        if (address.housenumber == null) {
-                            gwrNoNumber++;
-                            continue;
-                        }
-                        address.street = gwrAddresses.getString(6);
-                        address.streetType = gwrAddresses.getString(12);
-                        switch (gwrAddresses.getString(11)) {
-                        case GWR_LANG_DE:
-                            address.streetLang = LANG_DE;
-                            break;
-                        case GWR_LANG_RM:
-                            address.streetLang = LANG_RM;
-                            break;
-                        case GWR_LANG_FR:
-                            address.streetLang = LANG_FR;
-                            break;
-                        case GWR_LANG_IT:
-                            address.streetLang = LANG_IT;
-                            break;
-                        default:
-                            // no language set
-                        }
-                        address.postcode = gwrAddresses.getString(8);
-                        address.city = gwrAddresses.getString(10);
-                        address.gwrCategory = gwrAddresses.getInt(13);
-                        address.gwrClass = gwrAddresses.getInt(14);
-                        address.official = gwrAddresses.getBoolean(15);
-                        if (address.official) {
-                            officialCount++;
-                        }
-                        address.lon = gwrAddresses.getFloat(16);
-                        address.lat = gwrAddresses.getFloat(17);
-                        if (!address.isAncillary()) {
-                            gwrCount++;
-                        } else {
-                            gwrAncillaryCount++;
-                        }
-                        gwrAddressesMap.add(createKey(address.street, address.housenumber), address);
-                        seen.put(addressId, address);
-                    }
-                    // if more than OFFICIAL_VALID_LIMIT of the addresses have the official flag set assume that the
-                    // flag is valid
-                    if (gwrCount > 0 && officialCount / gwrCount >= officialValidLimit) {
-                        gwrHasValidation.put(muniRef, true);
-                    }
-                    global.gwrAddressesCount += gwrCount;
-                    global.gwrAncillaryAddressesCount += gwrAncillaryCount;
-
-                    // accumulate per canton stats
-                    Stats cantonalStats = cantonal.get(muniCanton);
-                    if (cantonalStats == null) {
-                        cantonalStats = new Stats();
-                        cantonal.put(muniCanton, cantonalStats);
-                    }
-                    cantonalStats.gwrAddressesCount += gwrCount;
-                    cantonalStats.gwrAncillaryAddressesCount += gwrAncillaryCount;
-
-                    MultiHashMap<String, Address> osmAddresses = new MultiHashMap<>();
-
-                    // get OSM addresses
-                    osmBuildingAddressQuery.setLong(1, muniBoundaryId);
-                    ResultSet osmBuildingAddresses = osmBuildingAddressQuery.executeQuery();
-                    int osmBuildingsCount = getOsmAddresses("polygon", osmAddresses, osmBuildingAddresses, gwrAddressesMap);
-                    osmBuildingAddressQuery2.setLong(1, muniBoundaryId);
-                    osmBuildingAddresses = osmBuildingAddressQuery2.executeQuery();
-                    osmBuildingsCount += getOsmAddresses("polygon", osmAddresses, osmBuildingAddresses, gwrAddressesMap);
-                    global.osmBuildingAddressesCount += osmBuildingsCount;
-                    cantonalStats.osmBuildingAddressesCount += osmBuildingsCount;
-
-                    osmNodeAddressQuery.setLong(1, muniBoundaryId);
-                    ResultSet osmNodeAddresses = osmNodeAddressQuery.executeQuery();
-                    int osmNodesCount = getOsmAddresses("point", osmAddresses, osmNodeAddresses, gwrAddressesMap);
-                    global.osmNodeAddressesCount += osmNodesCount;
-                    cantonalStats.osmNodeAddressesCount += osmNodesCount;
-
-                    //
-                    int notOfficial = 0;
-                    int gwrDuplicates = 0;
-                    //
-                    List<Address> matching = new ArrayList<>();
-                    List<Address> matchingAncillary = new ArrayList<>();
-                    List<Address> missing = new ArrayList<>();
-                    List<Address> postcode = new ArrayList<>();
-                    List<Address> city = new ArrayList<>();
-                    List<Address> distance = new ArrayList<>();
-                    List<Address> place = new ArrayList<>();
-                    List<Warnings> warnings = new ArrayList<>();
-                    for (String k : new ArrayList<>(gwrAddressesMap.getKeys())) {
-                        List<Address> sameKey = new ArrayList<>(gwrAddressesMap.get(k));
-                        // check for duplicates
-                        // for now we count them and then remove all but one
-                        if (sameKey.size() > 1) {
-                            MultiHashMap<String, Address> samePostcode = new MultiHashMap<>();
-                            for (Address a : sameKey) {
-                                samePostcode.add(a.postcode, a);
-                            }
-                            for (String p : samePostcode.getKeys()) {
-                                List<Address> dups = new ArrayList<>(samePostcode.get(p));
-                                if (dups.size() > 1) {
-                                    gwrDuplicates += dups.size() - 1;
-                                    for (int i = 1; i < dups.size(); i++) {
-                                        gwrAddressesMap.removeItem(k, dups.get(i));
-                                    }
-                                }
-                            }
-                        }
-                        for (Address gwr : new ArrayList<>(gwrAddressesMap.get(k))) {
-                            Address osm = null;
-                            String key = null;
-                            if (gwr.street == null) { // multilingual
-                                for (String street : new String[] { gwr.streetDe, gwr.streetRm, gwr.streetFr, gwr.streetIt }) {
-                                    if (street != null) {
-                                        key = createKey(street, gwr.housenumber);
-                                        Set<Address> temp = osmAddresses.get(key);
-                                        if (!temp.isEmpty()) {
-                                            osm = temp.iterator().next();
-                                            break;
-                                        }
-                                    }
-                                }
-                            } else {
-                                key = createKey(gwr.street, gwr.housenumber);
-                                Set<Address> temp = osmAddresses.get(key);
-                                if (!temp.isEmpty()) {
-                                    double lowestDistance = Double.MAX_VALUE;
-                                    Address closest = null;
-                                    for (Address o : temp) {
-                                        double tempDistance = haversineDistance(gwr.lon, gwr.lat, o.lon, o.lat);
-                                        if (tempDistance < lowestDistance) {
-                                            closest = o;
-                                            lowestDistance = tempDistance;
-                                        }
-                                    }
-                                    if (gwr.postcode.equals(closest.postcode) || lowestDistance <= 50) {
-                                        osm = closest;
-                                    }
-                                }
-                            }
-                            final boolean ancillary = gwr.isAncillary();
-                            if (osm != null) {
-                                for (Address a : new ArrayList<>(osmAddresses.get(key))) {
-                                    // skip addresses that would not have matched above
-                                    final boolean noPostCodeMatch = !gwr.postcode.equals(a.postcode);
-                                    double tempDistance = haversineDistance(gwr.lon, gwr.lat, a.lon, a.lat);
-
-                                    if (noPostCodeMatch && tempDistance > 50) {
-                                        continue;
-                                    }
-
-                                    Warnings w = new Warnings(a.osmGeom, a.osmId, a.lon, a.lat);
-
-                                    if (noPostCodeMatch) {
-                                        postcode.add(a);
-                                        w.postcode = true;
-                                        w.osmPostcode = a.postcode;
-                                        w.gwrPostcode = gwr.postcode;
-                                    }
-                                    if (!gwr.city.equals(a.city)) {
-                                        city.add(a);
-                                        w.city = true;
-                                        w.osmCity = a.city;
-                                        w.gwrCity = gwr.city;
-                                    }
-                                    if (tempDistance > MATCHING_DISTANCE) {
-                                        distance.add(a);
-                                        w.distance = true;
-                                    }
-                                    if (!SWISSTOPO_STREET_GEOM.equals(gwr.streetType) && a.place == null) {
-                                        place.add(a);
-                                        w.place = true;
-                                    }
-                                    w.notOfficial = !gwr.official;
-                                    if (w.notOfficial && !ancillary) {
-                                        notOfficial++;
-                                    }
-                                    if (w.hasWarning()) {
-                                        warnings.add(w);
-                                    }
-                                    osmAddresses.removeItem(key, a);
-                                }
-                                if (ancillary) {
-                                    matchingAncillary.add(osm);
-                                } else {
-                                    matching.add(osm);
-                                }
-                                gwrAddressesMap.removeItem(key, gwr);
-                                continue;
-                            }
-                            if (!ancillary && (gwr.official || !gwrHasValidation.containsKey(muniRef))) {
-                                missing.add(gwr);
-                            }
-                        }
-                    }
-                    int noStreet = 0;
-                    for (Address leftOver : osmAddresses.getValues()) {
-                        Warnings w = new Warnings(leftOver.osmGeom, leftOver.osmId, leftOver.lon, leftOver.lat);
-                        if (leftOver.street == null && leftOver.place == null) {
-                            w.noStreet = true;
-                            noStreet++;
-                        } else {
-                            w.nonGWR = true;
-                        }
-                        warnings.add(w);
-                    }
-                    final int osmMatching = matching.size();
-                    global.matchingCount += osmMatching;
-                    global.matchingAncillaryCount += matchingAncillary.size();
-                    global.missingCount += missing.size();
-                    global.postcodeCount += postcode.size();
-                    global.cityCount += city.size();
-                    global.distanceCount += distance.size();
-                    global.placeCount += place.size();
-                    global.noStreetCount += noStreet;
-                    global.notOfficialCount += notOfficial;
-                    global.nonGWRCount += osmAddresses.size() - noStreet;
-                    global.warningsCount += warnings.size();
-                    global.gwrDuplicates += gwrDuplicates;
-
-                    cantonalStats.matchingCount += osmMatching;
-                    cantonalStats.matchingAncillaryCount += matchingAncillary.size();
-                    cantonalStats.missingCount += missing.size();
-                    cantonalStats.postcodeCount += postcode.size();
-                    cantonalStats.cityCount += city.size();
-                    cantonalStats.distanceCount += distance.size();
-                    cantonalStats.placeCount += place.size();
-                    cantonalStats.noStreetCount += noStreet;
-                    cantonalStats.notOfficialCount += notOfficial;
-                    cantonalStats.nonGWRCount += osmAddresses.size() - noStreet;
-                    cantonalStats.warningsCount += warnings.size();
-                    cantonalStats.gwrDuplicates += gwrDuplicates;
-
-                    pw.print("<tr><td>" + muniName + "</td><td>" + muniCanton + "</td><td align=\"center\">" + "<a href=\"https://qa.poole.ch/addresses/GWR/"
-                            + muniRef + ".zip\">S</a> <a href=\"https://qa.poole.ch/addresses/GWR/" + muniRef
-                            + ".geojson.zip\">G</a> <a href=\"https://qa.poole.ch/addresses/GWR/" + muniRef
-                            + ".osm.zip\">O</a> <a href=\"https://qa.poole.ch/addresses/GWR/" + muniRef
-                            + "_all.geojson.zip\">GA</a> <a href=\"https://qa.poole.ch/addresses/GWR/" + muniRef + "_all.osm.zip\">OA</a></td>");
-                    pw.print("<td align=\"right\">" + gwrCount + "</td>");
-                    pw.print("<td align=\"right\">" + gwrAncillaryCount + "</td>");
-                    pw.print("<td align=\"right\">" + gwrDuplicates + "</td>");
-
-                    final int osmTotal = osmBuildingsCount + osmNodesCount;
-
-                    pw.println("<td align=\"right\">" + osmTotal + "</td><td align=\"right\">" + osmBuildingsCount + "</td><td align=\"right\">" + osmNodesCount
-                            + "</td>");
-                    File warningsFile = new File(warningsDir, muniRef + ".geojson");
-                    File missingFile = new File(missingDir, muniRef + ".geojson");
-                    pw.println("<td align=\"right\">" + osmMatching + "</td>");
-
-                    if (gwrCount != 0) {
-                        pw.printf("<td align=\"right\">%1$d</td>", (int) (osmMatching * 100f / (gwrCount - gwrDuplicates)));
+            try {
+                final long referenceStart = System.nanoTime();
+                ReferenceData reference = source.referenceData();
+                final long referenceNanos = System.nanoTime() - referenceStart;
+                List<Municipality> municipalities = reference.municipalities(municipality);
+                try (SnapshotWriter snapshotOut = config.snapshotOut != null ? new SnapshotWriter(new File(config.snapshotOut), municipalities, reference)
+                        : null) {
+                    // loop over municipalities
+                    if (config.threads > 1) {
+                        runParallel(pw, municipalities, source, config, reference, snapshotOut);
+                    } else if (config.pipeline) {
+                        runPipeline(pw, municipalities, source, config, reference, snapshotOut);
+                    } else if (config.verifySqlMatching) {
+                        runVerified(pw, municipalities, (JdbcAddressSource) source, config, reference);
                     } else {
-                        pw.print("<td align=\"right\">-</td>");
-                    }
-
-                    pw.println("<td align=\"right\">" + matchingAncillary.size() + "</td><td align=\"right\">" + "<a href=\"https://qa.poole.ch/addresses/ch/"
-                            + missingFile.getPath() + "\" download=\"missing-" + muniRef + ".geojson\">" + missing.size() + "</a></td><td align=\"right\">"
-                            + postcode.size() + "</td><td align=\"right\">" + city.size() + "</td><td align=\"right\">" + distance.size()
-                            + "</td><td align=\"right\">" + place.size() + "</td><td align=\"right\">" + noStreet + "</td><td align=\"right\">" + notOfficial
-                            + "</td><td align=\"right\">" + (osmAddresses.size() - noStreet) + "</td><td align=\"right\">"
-                            + "<a href=\"https://qa.poole.ch/addresses/ch/" + warningsFile.getPath() + "\" download=\"warnings-" + muniRef + ".geojson\">"
-                            + warnings.size() + "</a></td></tr>");
-
-                    writeGeoJsonListToFile(warnings, warningsFile);
-                    writeGeoJsonListToFile(missing, missingFile);
-
-                    if (cantonalStats.warnings == null) {
-                        cantonalStats.warnings = new ArrayList<>();
-                    }
-                    cantonalStats.warnings.addAll(warnings);
-
-                    if (cantonalStats.missing == null) {
-                        cantonalStats.missing = new ArrayList<>();
-                    }
-                    cantonalStats.missing.addAll(missing);
-
-                    if (gwrCount != 0) {
-                        double density = osmMatching / (double) gwrCount;
-                        long muniRefLong = Long.parseLong(muniRef);
-                        updateStats.setDouble(1, density);
-                        updateStats.setLong(2, muniRefLong);
-                        try {
-                            int rows = updateStats.executeUpdate();
-                            if (rows == 0) {
-                                throw new SQLException("stats row doesn't exist");
+                        try (MunicipalityWorker worker = new MunicipalityWorker(source.newReader(), config, reference, snapshotOut)) {
+                            for (Municipality m : municipalities) {
+                                output(pw, worker.process(m));
                             }
-                        } catch (SQLException ex) {
-                            insertStats.setLong(1, muniRefLong);
-                            insertStats.setDouble(2, density);
-                            insertStats.executeUpdate();
                         }
                     }
                 }
+                final long densitiesStart = System.nanoTime();
+                if (conn != null) {
+                    writeDensities(conn);
+                }
+                if (metrics != null) {
+                    final long now = System.nanoTime();
+                    metrics.finish(referenceNanos, now - densitiesStart, now - runStart, System.err);
+                }
                 pw.println("<tr class=\"sortbottom\">");
                 printStatsLine(pw, "TOTAL", global, true);
                 pw.println("</table>");
@@ -756,16 +927,800 @@ public class GWRcompare {
                     Stats cantonalStats = cantonal.get(canton);
                     pw.println("<tr>");
                     printStatsLine(pw, canton, cantonalStats, false);
-                    writeGeoJsonListToFile(cantonalStats.warnings, new File(warningsDir, canton + ".geojson"));
-                    writeGeoJsonListToFile(cantonalStats.missing, new File(missingDir, canton + ".geojson"));
                 }
                 pw.println("</table>");
+            } finally {
+                metrics = null;
+                closeCantonalOutput();
             }
-        } catch (FileNotFoundException | SQLException e) {
+        } catch (IOException | SQLException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Append features to the cantonal output files, opening them if necessary
+     * 
+     * After the features have been written the GeoJson file is a complete FeatureCollection, so that it is usable even
+     * if the run is aborted before all municipalities have been processed.
+     * 
+     * @param writers the open writers by canton
+     * @param dir the output directory
+     * @param canton the canton
+     * @param features the features to append
+     * @throws IOException if the file can't be written
+     */
+    private void appendCantonal(@NotNull Map<String, FeatureWriter> writers, @NotNull String dir, @NotNull String canton,
+            @NotNull List<GeoJsonOut> features) throws IOException {
+        FeatureWriter writer = writers.get(canton);
+        if (writer == null) {
+            writer = openFeatureWriter(new File(dir, canton + ".geojson"), gzipLevel, flatGeobuf);
+            writers.put(canton, writer);
+        }
+        for (GeoJsonOut feature : features) {
+            feature.write(writer);
+        }
+        writer.checkpoint();
+    }
+
+    /**
+     * Close all cantonal output files
+     * 
+     * @throws IOException if a file can't be written, all files are closed regardless
+     */
+    private void closeCantonalOutput() throws IOException {
+        IOException error = null;
+        for (FeatureWriter writer : cantonalWarnings.values()) {
+            error = close(writer, error);
+        }
+        for (FeatureWriter writer : cantonalMissing.values()) {
+            error = close(writer, error);
+        }
+        cantonalWarnings.clear();
+        cantonalMissing.clear();
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Close a writer remembering the first exception
+     * 
+     * @param writer the FeatureWriter
+     * @param error the previous exception or null
+     * @return the exception to throw at the end or null
+     */
+    @Nullable
+    private static IOException close(@NotNull FeatureWriter writer, @Nullable IOException error) {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            if (error == null) {
+                return e;
+            }
+            error.addSuppressed(e);
+        }
+        return error;
+    }
+
+    /**
+     * Open the source of the addresses
+     *
+     * @param conn the database connection, null if the input isn't read from the database
+     * @param connection the database url
+     * @param props connection properties
+     * @param config the configuration
+     * @return an AddressSource
+     * @throws IOException if a file can't be read
+     */
+    @NotNull
+    private static AddressSource openSource(@Nullable Connection conn, @NotNull String connection, @NotNull Properties props, @NotNull Config config)
+            throws IOException {
+        if (config.snapshotIn != null) {
+            return new SnapshotReader(new File(config.snapshotIn));
+        }
+        if (config.csv != null) {
+            return MemoryAddressSource.readCsv(new File(config.csv));
+        }
+        if (config.synthetic != null) {
+            return SyntheticAddressSource.parse(config.synthetic);
+        }
+        return new JdbcAddressSource(conn, connection, props, config);
+    }
+
+    /**
+     * Process the municipalities on a pool of workers, each with its own AddressSource.Reader
+     *
+     * Results are output in the order of the municipalities list, to bound memory use only a limited number of
+     * municipalities are in flight at any time.
+     *
+     * @param pw the PrintWriter for the HTML output
+     * @param municipalities the municipalities to process
+     * @param source the AddressSource
+     * @param config the configuration
+     * @param reference the ReferenceData
+     * @param snapshotOut if not null the snapshot the input is written to
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void runParallel(@NotNull PrintWriter pw, @NotNull List<Municipality> municipalities, @NotNull AddressSource source, @NotNull Config config,
+            @NotNull ReferenceData reference, @Nullable SnapshotWriter snapshotOut) throws SQLException, IOException {
+        final List<MunicipalityWorker> workers = Collections.synchronizedList(new ArrayList<>());
+        final ThreadLocal<MunicipalityWorker> threadWorker = new ThreadLocal<>();
+        final int threads = config.threads;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final Deque<Future<MunicipalityResult>> pending = new ArrayDeque<>();
+        try {
+            for (Municipality m : municipalities) {
+                pending.add(executor.submit(() -> {
+                    MunicipalityWorker worker = threadWorker.get();
+                    if (worker == null) {
+                        worker = new MunicipalityWorker(source.newReader(), config, reference, snapshotOut);
+                        workers.add(worker);
+                        threadWorker.set(worker);
+                    }
+                    return worker.process(m);
+                }));
+                if (pending.size() >= threads * 2) {
+                    output(pw, await(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                output(pw, await(pending.poll()));
+            }
+        } finally {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (MunicipalityWorker worker : workers) {
+                worker.close();
+            }
+        }
+    }
+
+    /**
+     * Process the municipalities with SQL matching and compare the counts with those of matching all addresses in Java
+     *
+     * The output is that of SQL matching, the differences are printed to standard error. This is for checking a
+     * database, for example one with a different ctype, the predicate itself is covered by SqlMatchingReaderTest.
+     *
+     * @param pw the PrintWriter for the HTML output
+     * @param municipalities the municipalities to process
+     * @param source the JdbcAddressSource
+     * @param config the configuration
+     * @param reference the ReferenceData
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void runVerified(@NotNull PrintWriter pw, @NotNull List<Municipality> municipalities, @NotNull JdbcAddressSource source,
+            @NotNull Config config, @NotNull ReferenceData reference) throws SQLException, IOException {
+        int differing = 0;
+        try (MunicipalityWorker worker = new MunicipalityWorker(source.newReader(true), config, reference, null);
+                MunicipalityWorker verifier = new MunicipalityWorker(source.newReader(false), config, reference, null)) {
+            for (Municipality m : municipalities) {
+                final MunicipalityResult result = worker.match(m);
+                final List<String> differences = verifier.match(m).stats.differences(result.stats);
+                if (!differences.isEmpty()) {
+                    differing++;
+                    System.err.println("SQL matching differs for " + m.name + " (" + m.ref + "): " + String.join(", ", differences));
+                }
+                worker.write(result);
+                output(pw, result);
+            }
+        }
+        System.err.println("SQL matching verified for " + municipalities.size() + " municipalities, " + differing + " differ");
+    }
+
+    /**
+     * Process the municipalities in three stages that run concurrently
+     *
+     * The rows of the following municipalities are read on a background thread, a single worker thread matches and the
+     * calling thread writes the per municipality files and outputs the results in order. The stages are connected by
+     * bounded queues, so that at most PIPELINE_DEPTH municipalities are waiting between two stages.
+     *
+     * @param pw the PrintWriter for the HTML output
+     * @param municipalities the municipalities to process
+     * @param source the AddressSource
+     * @param config the configuration
+     * @param reference the ReferenceData
+     * @param snapshotOut if not null the snapshot the input is written to
+     * @throws SQLException
+     * @throws IOException
+     */
+    private void runPipeline(@NotNull PrintWriter pw, @NotNull List<Municipality> municipalities, @NotNull AddressSource source, @NotNull Config config,
+            @NotNull ReferenceData reference, @Nullable SnapshotWriter snapshotOut) throws SQLException, IOException {
+        try (MunicipalityWorker worker = new MunicipalityWorker(new PrefetchingReader(source.newReader(), municipalities, PIPELINE_DEPTH), config,
+                reference, snapshotOut)) {
+            final ExecutorService matcher = Executors.newSingleThreadExecutor();
+            final Deque<Future<MunicipalityResult>> pending = new ArrayDeque<>();
+            try {
+                for (Municipality m : municipalities) {
+                    pending.add(matcher.submit(() -> worker.match(m)));
+                    if (pending.size() > PIPELINE_DEPTH) {
+                        writeAndOutput(pw, worker, await(pending.poll()));
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    writeAndOutput(pw, worker, await(pending.poll()));
+                }
+            } finally {
+                // the worker must be idle before it is closed
+                matcher.shutdownNow();
+                try {
+                    matcher.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the per municipality files and then output a result
+     *
+     * @param pw the PrintWriter for the HTML output
+     * @param worker the MunicipalityWorker that produced the result
+     * @param result the MunicipalityResult
+     * @throws IOException if a file can't be written
+     */
+    private void writeAndOutput(@NotNull PrintWriter pw, @NotNull MunicipalityWorker worker, @NotNull MunicipalityResult result) throws IOException {
+        worker.write(result);
+        output(pw, result);
+    }
+
+    /**
+     * Wait for the result of a worker
+     *
+     * @param future the Future holding the result
+     * @return the MunicipalityResult
+     * @throws SQLException
+     * @throws IOException
+     */
+    @NotNull
+    private static MunicipalityResult await(@NotNull Future<MunicipalityResult> future) throws SQLException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for municipality", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Accumulate the global and cantonal stats, output the HTML row, append the features to the cantonal files and
+     * remember the density for the stats table for one municipality
+     *
+     * This is always called on the main thread in municipality order
+     *
+     * @param pw the PrintWriter for the HTML output
+     * @param result the result for the municipality
+     * @throws IOException if a cantonal file can't be written
+     */
+    private void output(@NotNull PrintWriter pw, @NotNull MunicipalityResult result) throws IOException {
+        final Stats stats = result.stats;
+        global.add(stats);
+
+        // accumulate per canton stats
+        Stats cantonalStats = cantonal.get(result.canton);
+        if (cantonalStats == null) {
+            cantonalStats = new Stats();
+            cantonal.put(result.canton, cantonalStats);
+        }
+        cantonalStats.add(stats);
+
+        printMunicipalityLine(pw, result);
+
+        appendCantonal(cantonalWarnings, WARNINGS_DIR, result.canton, stats.warnings);
+        appendCantonal(cantonalMissing, MISSING_DIR, result.canton, stats.missing);
+
+        if (stats.gwrAddressesCount != 0) {
+            densities.put(Long.parseLong(result.municipality.ref), stats.matchingCount / (double) stats.gwrAddressesCount);
+        }
+        if (metrics != null) {
+            metrics.add(result);
+        }
+    }
+
+    /**
+     * Write the densities of all processed municipalities to the stats table
+     *
+     * Existing rows are updated in one batch and the missing ones inserted in a second batch, all in one transaction
+     * so that readers of the table see either the previous or the new values.
+     *
+     * @param conn the database connection
+     * @throws SQLException
+     */
+    private void writeDensities(@NotNull Connection conn) throws SQLException {
+        if (densities.isEmpty()) {
+            return;
+        }
+        final boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (PreparedStatement updateStats = conn.prepareStatement("update muni_address_stats set density=? where muni_ref=?");
+                PreparedStatement insertStats = conn.prepareStatement("insert into muni_address_stats (muni_ref,density) values(?,?)")) {
+            final List<Map.Entry<Long, Double>> entries = new ArrayList<>(densities.entrySet());
+            for (Map.Entry<Long, Double> entry : entries) {
+                updateStats.setDouble(1, entry.getValue());
+                updateStats.setLong(2, entry.getKey());
+                updateStats.addBatch();
+            }
+            final int[] rows = updateStats.executeBatch();
+            boolean missing = false;
+            for (int i = 0; i < rows.length; i++) {
+                if (rows[i] == 0) {
+                    Map.Entry<Long, Double> entry = entries.get(i);
+                    insertStats.setLong(1, entry.getKey());
+                    insertStats.setDouble(2, entry.getValue());
+                    insertStats.addBatch();
+                    missing = true;
+                }
+            }
+            if (missing) {
+                insertStats.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Print out the table row for one municipality
+     *
+     * @param pw the PrintWriter
+     * @param result the result for the municipality
+     */
+    private static void printMunicipalityLine(@NotNull PrintWriter pw, @NotNull MunicipalityResult result) {
+        final String muniRef = result.municipality.ref;
+        final Stats stats = result.stats;
+        pw.print("<tr><td>" + result.municipality.name + "</td><td>" + result.canton + "</td><td align=\"center\">"
+                + "<a href=\"https://qa.poole.ch/addresses/GWR/" + muniRef + ".zip\">S</a> <a href=\"https://qa.poole.ch/addresses/GWR/" + muniRef
+                + ".geojson.zip\">G</a> <a href=\"https://qa.poole.ch/addresses/GWR/" + muniRef + ".osm.zip\">O</a> <a href=\"https://qa.poole.ch/addresses/GWR/"
+                + muniRef + "_all.geojson.zip\">GA</a> <a href=\"https://qa.poole.ch/addresses/GWR/" + muniRef + "_all.osm.zip\">OA</a></td>");
+        pw.print("<td align=\"right\">" + stats.gwrAddressesCount + "</td>");
+        pw.print("<td align=\"right\">" + stats.gwrAncillaryAddressesCount + "</td>");
+        pw.print("<td align=\"right\">" + stats.gwrDuplicates + "</td>");
+
+        final int osmTotal = stats.osmBuildingAddressesCount + stats.osmNodeAddressesCount;
+
+        pw.println("<td align=\"right\">" + osmTotal + "</td><td align=\"right\">" + stats.osmBuildingAddressesCount + "</td><td align=\"right\">"
+                + stats.osmNodeAddressesCount + "</td>");
+        File warningsFile = new File(WARNINGS_DIR, muniRef + ".geojson");
+        File missingFile = new File(MISSING_DIR, muniRef + ".geojson");
+        pw.println("<td align=\"right\">" + stats.matchingCount + "</td>");
+
+        if (stats.gwrAddressesCount != 0) {
+            pw.printf("<td align=\"right\">%1$d</td>", (int) (stats.matchingCount * 100f / (stats.gwrAddressesCount - stats.gwrDuplicates)));
+        } else {
+            pw.print("<td align=\"right\">-</td>");
+        }
+
+        pw.println("<td align=\"right\">" + stats.matchingAncillaryCount + "</td><td align=\"right\">" + "<a href=\"https://qa.poole.ch/addresses/ch/"
+                + missingFile.getPath() + "\" download=\"missing-" + muniRef + ".geojson\">" + stats.missingCount + "</a></td><td align=\"right\">"
+                + stats.postcodeCount + "</td><td align=\"right\">" + stats.cityCount + "</td><td align=\"right\">" + stats.distanceCount
+                + "</td><td align=\"right\">" + stats.placeCount + "</td><td align=\"right\">" + stats.noStreetCount + "</td><td align=\"right\">"
+                + stats.notOfficialCount + "</td><td align=\"right\">" + stats.nonGWRCount + "</td><td align=\"right\">"
+                + "<a href=\"https://qa.poole.ch/addresses/ch/" + warningsFile.getPath() + "\" download=\"warnings-" + muniRef + ".geojson\">"
+                + stats.warningsCount + "</a></td></tr>");
+    }
+
+    /**
+     * Compares the GWR and OSM addresses of single municipalities
+     *
+     * Each worker reads its input through its own AddressSource.Reader and must only be used from one thread.
+     */
+    static class MunicipalityWorker implements AutoCloseable {
+
+        private final AddressSource.Reader input;
+        private final float                officialValidLimit;
+        private final boolean              incremental;
+        private final int                  gzipLevel;
+        private final boolean              flatGeobuf;
+        private final boolean              collectMetrics;
+
+        private final ReferenceData  reference;
+        private final SnapshotWriter snapshotOut;
+
+        private final KeyEngine keys = new KeyEngine();
+
+        // the per municipality address rows and their indices, reused for all municipalities
+        private final StringPool            strings         = new StringPool();
+        // sharing the StringPool allows comparing the ids of GWR and OSM values
+        private final AddressStore          gwrStore        = new AddressStore(strings);
+        private final AddressStore          osmStore        = new AddressStore(strings);
+        private final LongIntMultiHashMap   gwrAddressesMap = new LongIntMultiHashMap();
+        private final LongIntMultiHashMap   osmAddresses    = new LongIntMultiHashMap();
+        // GWR address id to row
+        private final LongIntMultiHashMap   seen            = new LongIntMultiHashMap();
+        private final AddressMatcher        matcher         = new AddressMatcher(keys, gwrAddressesMap, osmAddresses);
+        private final AddressMatcher.Result matchResult     = new AddressMatcher.Result();
+        private final OsmRecord             osmRecord       = new OsmRecord();
+
+        /**
+         * Create a new worker
+         *
+         * @param input the Reader the input is read from, it is closed together with the worker
+         * @param config the configuration
+         * @param reference the ReferenceData
+         * @param snapshotOut if not null the snapshot the input is written to
+         */
+        MunicipalityWorker(@NotNull AddressSource.Reader input, @NotNull Config config, @NotNull ReferenceData reference,
+                @Nullable SnapshotWriter snapshotOut) {
+            this.input = input;
+            this.officialValidLimit = config.officialValidLimit;
+            incremental = config.incremental;
+            gzipLevel = config.gzipLevel;
+            flatGeobuf = config.flatGeobuf;
+            collectMetrics = config.metrics != null;
+            this.reference = reference;
+            this.snapshotOut = snapshotOut;
+        }
+
+        /**
+         * Compare the addresses of one municipality and write the per municipality GeoJson files
+         *
+         * @param municipality the Municipality
+         * @return a MunicipalityResult
+         * @throws SQLException
+         * @throws IOException
+         */
+        @NotNull
+        MunicipalityResult process(@NotNull Municipality municipality) throws SQLException, IOException {
+            final MunicipalityResult result = match(municipality);
+            write(result);
+            return result;
+        }
+
+        /**
+         * Compare the addresses of one municipality without writing any output
+         *
+         * @param municipality the Municipality
+         * @return a MunicipalityResult that still has to be passed to write
+         * @throws SQLException
+         * @throws IOException
+         */
+        @NotNull
+        MunicipalityResult match(@NotNull Municipality municipality) throws SQLException, IOException {
+            final PhaseMetrics metrics = collectMetrics ? new PhaseMetrics() : null;
+            final Events.MunicipalityEvent municipalityEvent = new Events.MunicipalityEvent();
+            municipalityEvent.begin();
+            String muniRef = municipality.ref;
+
+            final String muniCanton = reference.canton(muniRef);
+
+            // get GWR addresses
+            keys.clear();
+            gwrAddressesMap.clear();
+            seen.clear();
+            strings.clear();
+            gwrStore.clear();
+            osmStore.clear();
+            Events.QueryEvent queryEvent = new Events.QueryEvent();
+            queryEvent.begin();
+            final List<GwrRecord> gwrAddresses = input.gwr(municipality);
+            // pairs the input has already matched, these aren't in the rows
+            final AddressSource.Matched matched = input.matched();
+            queryEvent.commit(muniRef, "gwr", gwrAddresses.size());
+            if (metrics != null) {
+                metrics.end(Phase.GWR, gwrAddresses.size());
+            }
+            final SnapshotWriter.Block snapshot = snapshotOut != null ? snapshotOut.newBlock() : null;
+            if (snapshot != null) {
+                snapshot.gwr(gwrAddresses);
+            }
+            final Fingerprint fingerprint = incremental ? new Fingerprint() : null;
+            if (fingerprint != null) {
+                fingerprint.add(STATE_VERSION);
+                fingerprint.add(officialValidLimit);
+                fingerprint.add(muniCanton);
+                for (GwrRecord gwrAddress : gwrAddresses) {
+                    gwrAddress.addTo(fingerprint);
+                }
+            }
+            int gwrCount = 0;
+            int gwrAncillaryCount = 0;
+            int gwrNoNumber = 0;
+            int officialCount = 0;
+            if (matched != null) {
+                // only official addresses are matched by the input
+                gwrCount = matched.gwr;
+                gwrAncillaryCount = matched.gwrAncillary;
+                officialCount = matched.gwr + matched.gwrAncillary;
+            }
+            for (GwrRecord gwrAddress : gwrAddresses) {
+                long addressId = gwrAddress.addressId;
+                final int seenRow = seen.first(addressId);
+                if (seenRow != LongIntMultiHashMap.NO_VALUE) {
+                    final int row = seenRow;
+                    // multilingual
+                    if (gwrStore.street[row] != StringPool.NULL) {
+                        // move to correct language
+                        switch (gwrStore.get(gwrStore.streetLang, row)) {
+                        case LANG_DE:
+                            gwrStore.streetDe[row] = gwrStore.street[row];
+                            break;
+                        case LANG_RM:
+                            gwrStore.streetRm[row] = gwrStore.street[row];
+                            break;
+                        case LANG_FR:
+                            gwrStore.streetFr[row] = gwrStore.street[row];
+                            break;
+                        case LANG_IT:
+                            gwrStore.streetIt[row] = gwrStore.street[row];
+                            break;
+                        default:
+                            // no language set
+                        }
+                        gwrStore.street[row] = StringPool.NULL;
+                    }
+                    // add street name to correct field
+                    String street = gwrAddress.street;
+                    switch (gwrAddress.lang) {
+                    case GWR_LANG_DE:
+                        gwrStore.set(gwrStore.streetDe, row, street);
+                        break;
+                    case GWR_LANG_RM:
+                        gwrStore.set(gwrStore.streetRm, row, street);
+                        break;
+                    case GWR_LANG_FR:
+                        gwrStore.set(gwrStore.streetFr, row, street);
+                        break;
+                    case GWR_LANG_IT:
+                        gwrStore.set(gwrStore.streetIt, row, street);
+                        break;
+                    default:
+                        // no language set
+                    }
+                    continue;
+                }
+                if (gwrAddress.housenumber == null) {
+                    gwrNoNumber++;
+                    continue;
+                }
+                final int row = gwrStore.add();
+                gwrStore.set(gwrStore.housenumber, row, gwrAddress.housenumber);
+                gwrStore.set(gwrStore.street, row, gwrAddress.street);
+                gwrStore.set(gwrStore.streetType, row, gwrAddress.streetType);
+                switch (gwrAddress.lang) {
+                case GWR_LANG_DE:
+                    gwrStore.set(gwrStore.streetLang, row, LANG_DE);
+                    break;
+                case GWR_LANG_RM:
+                    gwrStore.set(gwrStore.streetLang, row, LANG_RM);
+                    break;
+                case GWR_LANG_FR:
+                    gwrStore.set(gwrStore.streetLang, row, LANG_FR);
+                    break;
+                case GWR_LANG_IT:
+                    gwrStore.set(gwrStore.streetLang, row, LANG_IT);
+                    break;
+                default:
+                    // no language set
+                }
+                gwrStore.set(gwrStore.postcode, row, gwrAddress.postcode);
+                gwrStore.set(gwrStore.city, row, gwrAddress.city);
+                gwrStore.category[row] = gwrAddress.category;
+                gwrStore.gwrClass[row] = gwrAddress.gwrClass;
+                gwrStore.official[row] = gwrAddress.official;
+                if (gwrAddress.official) {
+                    officialCount++;
+                }
+                gwrStore.lon[row] = gwrAddress.lon;
+                gwrStore.lat[row] = gwrAddress.lat;
+                if (!gwrStore.isAncillary(row)) {
+                    gwrCount++;
+                } else {
+                    gwrAncillaryCount++;
+                }
+                gwrAddressesMap.add(keys.key(gwrAddress.street, gwrAddress.housenumber), row);
+                seen.add(addressId, row);
+            }
+            // if more than OFFICIAL_VALID_LIMIT of the addresses have the official flag set assume that the
+            // flag is valid
+            final boolean gwrHasValidation = gwrCount > 0 && officialCount / gwrCount >= officialValidLimit;
+
+            if (metrics != null) {
+                metrics.end(Phase.MATCH, 0);
+            }
+            final Stats stats = new Stats();
+            stats.gwrAddressesCount = gwrCount;
+            stats.gwrAncillaryAddressesCount = gwrAncillaryCount;
+
+            osmAddresses.clear();
+
+            // get OSM addresses
+            queryEvent = new Events.QueryEvent();
+            queryEvent.begin();
+            final int osmPolygonCount = getOsmAddresses("polygon", osmAddresses, osmStore, input.osm(municipality, AddressSource.OsmQuery.POLYGON),
+                    osmRecord, snapshot, gwrAddressesMap, keys, fingerprint);
+            queryEvent.commit(muniRef, "polygon", osmPolygonCount);
+            if (metrics != null) {
+                metrics.end(Phase.OSM_POLYGON, osmPolygonCount);
+            }
+            queryEvent = new Events.QueryEvent();
+            queryEvent.begin();
+            final int osmLineCount = getOsmAddresses("polygon", osmAddresses, osmStore, input.osm(municipality, AddressSource.OsmQuery.LINE), osmRecord,
+                    snapshot, gwrAddressesMap, keys, fingerprint);
+            queryEvent.commit(muniRef, "line", osmLineCount);
+            if (metrics != null) {
+                metrics.end(Phase.OSM_LINE, osmLineCount);
+            }
+            stats.osmBuildingAddressesCount = osmPolygonCount + osmLineCount;
+            if (matched != null) {
+                stats.osmBuildingAddressesCount += matched.osm[AddressSource.OsmQuery.POLYGON.ordinal()] + matched.osm[AddressSource.OsmQuery.LINE.ordinal()];
+            }
+
+            queryEvent = new Events.QueryEvent();
+            queryEvent.begin();
+            int osmNodesCount = getOsmAddresses("point", osmAddresses, osmStore, input.osm(municipality, AddressSource.OsmQuery.POINT), osmRecord,
+                    snapshot, gwrAddressesMap, keys, fingerprint);
+            stats.osmNodeAddressesCount = osmNodesCount + (matched != null ? matched.osm[AddressSource.OsmQuery.POINT.ordinal()] : 0);
+            input.endMunicipality();
+            queryEvent.commit(muniRef, "point", osmNodesCount);
+            if (metrics != null) {
+                metrics.end(Phase.OSM_POINT, osmNodesCount);
+            }
+            if (snapshot != null) {
+                snapshotOut.append(muniRef, snapshot);
+            }
+
+            if (fingerprint != null) {
+                Stats previous = previousStats(muniRef, fingerprint, gzipLevel != GeoJsonWriter.NO_GZIP, flatGeobuf);
+                if (previous != null) {
+                    if (metrics != null) {
+                        metrics.end(Phase.MATCH, 0);
+                    }
+                    municipalityEvent.commit(municipality, muniCanton, previous, true);
+                    return new MunicipalityResult(municipality, muniCanton, previous, true, metrics, null, null);
+                }
+            }
+
+            final Events.MatchingEvent matchingEvent = new Events.MatchingEvent();
+            matchingEvent.begin();
+            final int keyCount = gwrAddressesMap.keyCount();
+            matcher.match(gwrStore, osmStore, gwrHasValidation, matchResult);
+            final List<Warnings> warnings = matchResult.warnings;
+            // only keep the rows we need for output
+            final List<GeoJsonOut> missingFeatures = gwrStore.select(matchResult.missing, matchResult.missingCount).features();
+
+            stats.matchingCount = matchResult.matching + (matched != null ? matched.gwr : 0);
+            stats.matchingAncillaryCount = matchResult.matchingAncillary + (matched != null ? matched.gwrAncillary : 0);
+            stats.missingCount = matchResult.missingCount;
+            stats.postcodeCount = matchResult.postcode;
+            stats.cityCount = matchResult.city;
+            stats.distanceCount = matchResult.distance;
+            stats.placeCount = matchResult.place;
+            stats.noStreetCount = matchResult.noStreet;
+            stats.notOfficialCount = matchResult.notOfficial;
+            stats.nonGWRCount = matchResult.nonGWR;
+            stats.warningsCount = warnings.size();
+            stats.gwrDuplicates = matchResult.gwrDuplicates;
+            stats.warnings = Collections.unmodifiableList(warnings);
+            stats.missing = missingFeatures;
+            matchingEvent.commit(muniRef, keyCount, warnings.size());
+            if (metrics != null) {
+                metrics.end(Phase.MATCH, gwrCount);
+            }
+            return new MunicipalityResult(municipality, muniCanton, stats, false, metrics, fingerprint, municipalityEvent);
+        }
+
+        /**
+         * Write the per municipality GeoJson files and the state for incremental runs
+         *
+         * This only uses the result and the immutable configuration of the worker, so it can run on a different thread
+         * than match, while the worker is matching the next municipality.
+         *
+         * @param result the result of match
+         * @throws IOException if a file can't be written
+         */
+        void write(@NotNull MunicipalityResult result) throws IOException {
+            if (result.cached) {
+                return;
+            }
+            final PhaseMetrics metrics = result.metrics;
+            if (metrics != null) {
+                metrics.restart();
+            }
+            final String muniRef = result.municipality.ref;
+            final Stats stats = result.stats;
+            writeGeoJsonListToFile(stats.warnings, new File(WARNINGS_DIR, muniRef + ".geojson"), gzipLevel, flatGeobuf);
+            writeGeoJsonListToFile(stats.missing, new File(MISSING_DIR, muniRef + ".geojson"), gzipLevel, flatGeobuf);
+            if (result.fingerprint != null) {
+                // only save after the output has been written
+                saveState(muniRef, result.fingerprint, stats);
+            }
+            if (metrics != null) {
+                metrics.end(Phase.WRITE, stats.warnings.size() + stats.missing.size());
+            }
+            if (result.event != null) {
+                result.event.commit(result.municipality, result.canton, stats, false);
+            }
+        }
+
+        /**
+         * Get the results of the previous run if the input hasn't changed
+         *
+         * @param muniRef the BFS number of the municipality
+         * @param fingerprint the fingerprint of the current input
+         * @param gzip if true the compressed copies of the output files must exist too
+         * @param flatGeobuf if true the FlatGeobuf versions of the output files must exist too
+         * @return a Stats object with the previous counts and output or null if the input has changed or the previous
+         *         state is not usable
+         */
+        @Nullable
+        private static Stats previousStats(@NotNull String muniRef, @NotNull Fingerprint fingerprint, boolean gzip, boolean flatGeobuf) {
+            File stateFile = new File(STATE_DIR, muniRef + ".properties");
+            File warningsFile = new File(WARNINGS_DIR, muniRef + ".geojson");
+            File missingFile = new File(MISSING_DIR, muniRef + ".geojson");
+            if (!stateFile.exists() || !warningsFile.exists() || !missingFile.exists()) {
+                return null;
+            }
+            if (gzip && (!new File(warningsFile.getPath() + GeoJsonWriter.GZIP_EXTENSION).exists()
+                    || !new File(missingFile.getPath() + GeoJsonWriter.GZIP_EXTENSION).exists())) {
+                return null;
+            }
+            final File warningsFlatGeobuf = flatGeobuf ? flatGeobufFile(warningsFile) : null;
+            final File missingFlatGeobuf = flatGeobuf ? flatGeobufFile(missingFile) : null;
+            if (flatGeobuf && (!warningsFlatGeobuf.exists() || !missingFlatGeobuf.exists())) {
+                return null;
+            }
+            Properties state = new Properties();
+            try (InputStream in = new FileInputStream(stateFile)) {
+                state.load(in);
+                if (!fingerprint.toString().equals(state.getProperty(FINGERPRINT_PROP))) {
+                    return null;
+                }
+                Stats stats = Stats.fromProperties(state);
+                stats.warnings = readPreviousFeatures(warningsFile, warningsFlatGeobuf);
+                stats.missing = readPreviousFeatures(missingFile, missingFlatGeobuf);
+                return stats;
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Ignoring state for " + muniRef + " " + e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Save the fingerprint of the input and the stats for a municipality
+         *
+         * @param muniRef the BFS number of the municipality
+         * @param fingerprint the fingerprint of the input
+         * @param stats the Stats for the municipality
+         * @throws IOException
+         */
+        private static void saveState(@NotNull String muniRef, @NotNull Fingerprint fingerprint, @NotNull Stats stats) throws IOException {
+            File stateDir = new File(STATE_DIR);
+            if (!stateDir.exists() && !stateDir.mkdirs()) {
+                throw new IOException("Unable to create " + stateDir);
+            }
+            Properties state = stats.toProperties();
+            state.setProperty(FINGERPRINT_PROP, fingerprint.toString());
+            try (OutputStream out = new FileOutputStream(new File(stateDir, muniRef + ".properties"))) {
+                state.store(out, null);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException, IOException {
+            input.close();
+        }
+    }
+
     /**
      * Print out one line of stats, without the start or the
      * <tr>
@@ -803,53 +1758,136 @@ public class GWRcompare {
      * 
      * @param list the list of objects
      * @param file the File
-     * @throws FileNotFoundException
+     * @param gzipLevel compression level for a compressed copy or GeoJsonWriter.NO_GZIP
+     * @param flatGeobuf if true the objects are written to a FlatGeobuf file too
+     * @throws IOException if the file can't be written
      */
-    private <T extends GeoJsonOut> void writeGeoJsonListToFile(@NotNull List<T> list, @NotNull File file) throws FileNotFoundException {
-        try (PrintWriter writer = new PrintWriter(new FileOutputStream(file))) {
-            writer.println("{\"type\":\"FeatureCollection\",");
-            writer.println("\"features\":[");
-            boolean first = true;
+    private static <T extends GeoJsonOut> void writeGeoJsonListToFile(@NotNull List<T> list, @NotNull File file, int gzipLevel, boolean flatGeobuf)
+            throws IOException {
+        final Events.FileWriteEvent event = new Events.FileWriteEvent();
+        event.begin();
+        try (FeatureWriter writer = openFeatureWriter(file, gzipLevel, flatGeobuf)) {
             for (T w : list) {
-                if (first) {
-                    first = false;
-                } else {
-                    writer.println(",");
-                }
-                writer.println(w.toGeoJson());
+                w.write(writer);
             }
-            writer.println("]}");
         }
+        event.commit(file, list.size(), new File(file.getPath() + GeoJsonWriter.GZIP_EXTENSION), flatGeobufFile(file));
+    }
+
+    /**
+     * Open the writers for a GeoJson file and optionally its FlatGeobuf sibling
+     * 
+     * @param file the GeoJson File
+     * @param gzipLevel compression level for a compressed copy or GeoJsonWriter.NO_GZIP
+     * @param flatGeobuf if true a FlatGeobuf file is written too, if false an existing, now outdated, one is deleted
+     * @return a FeatureWriter
+     * @throws IOException if the files can't be opened
+     */
+    @NotNull
+    private static FeatureWriter openFeatureWriter(@NotNull File file, int gzipLevel, boolean flatGeobuf) throws IOException {
+        final File flatGeobufFile = flatGeobufFile(file);
+        if (!flatGeobuf) {
+            Files.deleteIfExists(flatGeobufFile.toPath());
+            return new GeoJsonWriter(file, gzipLevel);
+        }
+        final GeoJsonWriter geoJsonWriter = new GeoJsonWriter(file, gzipLevel);
+        try {
+            return new MultiFeatureWriter(Arrays.asList(geoJsonWriter, new FlatGeobufWriter(flatGeobufFile)));
+        } catch (IOException e) {
+            geoJsonWriter.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the FlatGeobuf file corresponding to a GeoJson file
+     * 
+     * @param file the GeoJson File
+     * @return the FlatGeobuf File in the same directory
+     */
+    @NotNull
+    private static File flatGeobufFile(@NotNull File file) {
+        final String name = file.getName();
+        final int dot = name.lastIndexOf('.');
+        return new File(file.getParentFile(), (dot > 0 ? name.substring(0, dot) : name) + FlatGeobufWriter.EXTENSION);
+    }
+
+    /**
+     * Read back the features from the files written by writeGeoJsonListToFile
+     * 
+     * @param file the GeoJson File
+     * @param flatGeobufFile the FlatGeobuf File or null if there is none
+     * @return a List containing the features as one element or an empty List
+     * @throws IOException if the file can't be read or has an unexpected format
+     */
+    @NotNull
+    private static List<GeoJsonOut> readPreviousFeatures(@NotNull File file, @Nullable File flatGeobufFile) throws IOException {
+        final String header = GeoJsonWriter.HEADER;
+        final String footer = GeoJsonWriter.FOOTER;
+        String content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        if (!content.startsWith(header) || !content.endsWith(footer)) {
+            throw new IOException("Unexpected content in " + file);
+        }
+        List<GeoJsonOut> result = new ArrayList<>();
+        if (content.length() > header.length() + footer.length()) {
+            // the trailing line end is added again when writing
+            final String features = content.substring(header.length(), content.length() - footer.length() - 1);
+            result.add(new PreviousFeatures(features, flatGeobufFile));
+        }
+        return result;
     }
 
     /**
+     * Add the rows of an OSM address query to a Map as they are read, the rows are closed afterwards
+     * 
      * @param osmGeom an indication of if this is for a polygon or a point
-     * @param osmAddresses a Map that will contain the osm addresses
-     * @param addresses the ResultSet from the database
+     * @param osmAddresses a Map that will contain the rows of the osm addresses
+     * @param osmStore the AddressStore the osm addresses are added to
+     * @param addresses the rows from the database or a snapshot
+     * @param r the OsmRecord the rows are read in to
+     * @param snapshot if not null the rows are added to this snapshot block
      * @param gwrAddressesMap the GWR addresses for the municipality
+     * @param keys the KeyEngine for the municipality
+     * @param fingerprint if not null the rows are added to this Fingerprint
      * @return a count of addresses
      * @throws SQLException
+     * @throws IOException
      */
-    private static int getOsmAddresses(String osmGeom, MultiHashMap<String, Address> osmAddresses, ResultSet addresses,
-            MultiHashMap<String, Address> gwrAddressesMap) throws SQLException {
+    private static int getOsmAddresses(String osmGeom, LongIntMultiHashMap osmAddresses, AddressStore osmStore, OsmRows addresses, @NotNull OsmRecord r,
+            @Nullable SnapshotWriter.Block snapshot, LongIntMultiHashMap gwrAddressesMap, @NotNull KeyEngine keys, @Nullable Fingerprint fingerprint)
+            throws SQLException, IOException {
         int count = 0;
-        while (addresses.next()) {
-            count++;
-            String housenumber = addresses.getString(2);
-            if (housenumber == null) {
-                Address address = new Address();
-                addNonNumberFields(osmGeom, addresses, address, gwrAddressesMap);
-                osmAddresses.add(createKey(address.street != null ? address.street : address.place, address.housename), address);
-                continue;
-            }
-            String[] numbers = housenumber.split("[;,]");
-            for (String number : numbers) {
-                Address address = new Address();
-                address.housenumber = number.replaceAll("\\s", "");
-                addNonNumberFields(osmGeom, addresses, address, gwrAddressesMap);
-                osmAddresses.add(createKey(address.street != null ? address.street : address.place, address.housenumber), address);
+        if (snapshot != null) {
+            snapshot.beginOsm();
+        }
+        try (OsmRows rows = addresses) {
+            while (rows.next(r)) {
+                count++;
+                if (snapshot != null) {
+                    snapshot.osm(r);
+                }
+                if (fingerprint != null) {
+                    r.addTo(fingerprint);
+                }
+                String housenumber = r.housenumber;
+                if (housenumber == null) {
+                    int row = osmStore.add();
+                    addNonNumberFields(osmGeom, r, osmStore, row, gwrAddressesMap, keys);
+                    osmAddresses.add(keys.key(streetOrPlace(osmStore, row), osmStore.get(osmStore.housename, row)), row);
+                    continue;
+                }
+                String[] numbers = housenumber.split("[;,]");
+                for (String number : numbers) {
+                    int row = osmStore.add();
+                    osmStore.set(osmStore.housenumber, row, number.replaceAll("\\s", ""));
+                    addNonNumberFields(osmGeom, r, osmStore, row, gwrAddressesMap, keys);
+                    osmAddresses.add(keys.key(streetOrPlace(osmStore, row), osmStore.get(osmStore.housenumber, row)), row);
+                }
             }
         }
+        if (snapshot != null) {
+            snapshot.endOsm();
+        }
         return count;
     }
 
@@ -857,74 +1895,89 @@ public class GWRcompare {
      * Add all non-housenumber fields
      * 
      * @param osmGeom the OSM geometry
-     * @param addresses ResultSet with OSM addresses from query
-     * @param address Address object
+     * @param address the current OSM address row
+     * @param osmStore the AddressStore
+     * @param row the row in osmStore
      * @param gwrAddressesMap the GWR addresses
-     * @throws SQLException
+     * @param keys the KeyEngine for the municipality
      */
-    private static void addNonNumberFields(@NotNull String osmGeom, @NotNull ResultSet addresses, @NotNull Address address,
-            @NotNull MultiHashMap<String, Address> gwrAddressesMap) throws SQLException {
-        address.osmGeom = osmGeom;
-        address.osmId = addresses.getLong(1);
-        address.housename = addresses.getString(3);
-        String street = addresses.getString(4);
-        String streetde = addresses.getString(5);
-        String streetfr = addresses.getString(6);
-        String streetit = addresses.getString(7);
-        String streetrm = addresses.getString(8);
-        String place = addresses.getString(9);
-        String placede = addresses.getString(10);
-        String placefr = addresses.getString(11);
-        String placeit = addresses.getString(12);
-        String placerm = addresses.getString(13);
+    private static void addNonNumberFields(@NotNull String osmGeom, @NotNull OsmRecord address, @NotNull AddressStore osmStore, int row,
+            @NotNull LongIntMultiHashMap gwrAddressesMap, @NotNull KeyEngine keys) {
+        osmStore.set(osmStore.osmGeom, row, osmGeom);
+        osmStore.osmId[row] = address.osmId;
+        osmStore.set(osmStore.housename, row, address.housename);
+        final String housenumber = osmStore.get(osmStore.housenumber, row);
+        String street = address.street;
+        String streetde = address.streetDe;
+        String streetfr = address.streetFr;
+        String streetit = address.streetIt;
+        String streetrm = address.streetRm;
+        String place = address.place;
+        String placede = address.placeDe;
+        String placefr = address.placeFr;
+        String placeit = address.placeIt;
+        String placerm = address.placeRm;
         // this is a hack to determine if we need to use a multi-lingual street / place name
         // useful for example for Biel/Bienne
-        address.street = street;
-        if (streetde != null && gwrAddressesMap.containsKey(createKey(streetde, address.housenumber))) {
-            address.street = streetde;
-            address.streetLang = LANG_DE;
-        } else if (streetfr != null && gwrAddressesMap.containsKey(createKey(streetfr, address.housenumber))) {
-            address.street = streetfr;
-            address.streetLang = LANG_FR;
-        } else if (streetit != null && gwrAddressesMap.containsKey(createKey(streetit, address.housenumber))) {
-            address.street = streetit;
-            address.streetLang = LANG_IT;
-        } else if (streetrm != null && gwrAddressesMap.containsKey(createKey(streetrm, address.housenumber))) {
-            address.street = streetrm;
-            address.streetLang = LANG_RM;
-        }
-        address.place = place;
-        if (placede != null && gwrAddressesMap.containsKey(createKey(placede, address.housenumber))) {
-            address.place = placede;
-            address.streetLang = LANG_DE;
-        } else if (placefr != null && gwrAddressesMap.containsKey(createKey(placefr, address.housenumber))) {
-            address.place = placefr;
-            address.streetLang = LANG_FR;
-        } else if (placeit != null && gwrAddressesMap.containsKey(createKey(placeit, address.housenumber))) {
-            address.place = placeit;
-            address.streetLang = LANG_IT;
-        } else if (placerm != null && gwrAddressesMap.containsKey(createKey(placerm, address.housenumber))) {
-            address.place = placerm;
-            address.streetLang = LANG_RM;
-        }
-
-        address.postcode = addresses.getString(14);
-        address.city = addresses.getString(15);
-        address.full = addresses.getString(16);
-        address.lon = addresses.getFloat(17);
-        address.lat = addresses.getFloat(18);
+        osmStore.set(osmStore.street, row, street);
+        if (streetde != null && hasKey(gwrAddressesMap, keys, streetde, housenumber)) {
+            osmStore.set(osmStore.street, row, streetde);
+            osmStore.set(osmStore.streetLang, row, LANG_DE);
+        } else if (streetfr != null && hasKey(gwrAddressesMap, keys, streetfr, housenumber)) {
+            osmStore.set(osmStore.street, row, streetfr);
+            osmStore.set(osmStore.streetLang, row, LANG_FR);
+        } else if (streetit != null && hasKey(gwrAddressesMap, keys, streetit, housenumber)) {
+            osmStore.set(osmStore.street, row, streetit);
+            osmStore.set(osmStore.streetLang, row, LANG_IT);
+        } else if (streetrm != null && hasKey(gwrAddressesMap, keys, streetrm, housenumber)) {
+            osmStore.set(osmStore.street, row, streetrm);
+            osmStore.set(osmStore.streetLang, row, LANG_RM);
+        }
+        osmStore.set(osmStore.place, row, place);
+        if (placede != null && hasKey(gwrAddressesMap, keys, placede, housenumber)) {
+            osmStore.set(osmStore.place, row, placede);
+            osmStore.set(osmStore.streetLang, row, LANG_DE);
+        } else if (placefr != null && hasKey(gwrAddressesMap, keys, placefr, housenumber)) {
+            osmStore.set(osmStore.place, row, placefr);
+            osmStore.set(osmStore.streetLang, row, LANG_FR);
+        } else if (placeit != null && hasKey(gwrAddressesMap, keys, placeit, housenumber)) {
+            osmStore.set(osmStore.place, row, placeit);
+            osmStore.set(osmStore.streetLang, row, LANG_IT);
+        } else if (placerm != null && hasKey(gwrAddressesMap, keys, placerm, housenumber)) {
+            osmStore.set(osmStore.place, row, placerm);
+            osmStore.set(osmStore.streetLang, row, LANG_RM);
+        }
+
+        osmStore.set(osmStore.postcode, row, address.postcode);
+        osmStore.set(osmStore.city, row, address.city);
+        osmStore.lon[row] = address.lon;
+        osmStore.lat[row] = address.lat;
     }
 
     /**
-     * Create the key used for matching
+     * Get the street or if not present the place of an OSM address
      * 
+     * @param osmStore the AddressStore
+     * @param row the row
+     * @return the street, place or null
+     */
+    @Nullable
+    private static String streetOrPlace(@NotNull AddressStore osmStore, int row) {
+        return osmStore.street[row] != StringPool.NULL ? osmStore.get(osmStore.street, row) : osmStore.get(osmStore.place, row);
+    }
+
+    /**
+     * Check if a map contains the key for a name and number
+     * 
+     * @param map the map
+     * @param keys the KeyEngine that created the keys in the map
      * @param name the street/place name
      * @param number the house number
-     * @return a suitable key
+     * @return true if the key is present
      */
-    @NotNull
-    private static String createKey(@Nullable String name, @Nullable String number) {
-        return (name + " " + number).toLowerCase();
+    private static boolean hasKey(@NotNull LongIntMultiHashMap map, @NotNull KeyEngine keys, @Nullable String name, @Nullable String number) {
+        long key = keys.lookup(name, number);
+        return key != KeyEngine.NO_KEY && map.containsKey(key);
     }
 
     /**
@@ -936,7 +1989,7 @@ public class GWRcompare {
      * @param lat2 latitude of the second point in degree
      * @return distance between the two point in meters
      */
-    private static double haversineDistance(double lon1, double lat1, double lon2, double lat2) {
+    static double haversineDistance(double lon1, double lat1, double lon2, double lat2) {
         double dLat = Math.toRadians(lat2 - lat1);
         double dLon = Math.toRadians(lon2 - lon1);
         lat1 = Math.toRadians(lat1);
@@ -0,0 +1,464 @@
+package ch.poole.osm.qa.address;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPOutputStream;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Streams a GeoJson FeatureCollection of Point features to a file
+ *
+ * Output is encoded to UTF-8 directly in to a buffer that is written to a FileChannel when full, strings are escaped
+ * as required by JSON and coordinates are formatted without creating intermediate objects.
+ *
+ * The collection is terminated when the writer is closed, or temporarily with checkpoint.
+ *
+ * Optionally a gzip compressed copy is written to a sibling file with the additional extension .gz while the output
+ * is produced, this is only complete after the writer has been closed.
+ */
+class GeoJsonWriter implements FeatureWriter {
+
+    /**
+     * Everything before the first feature
+     */
+    static final String HEADER = "{\"type\":\"FeatureCollection\",\n\"features\":[\n";
+    /**
+     * Everything after the last feature
+     */
+    static final String FOOTER = "]}\n";
+    /**
+     * Written between two features
+     */
+    static final String SEPARATOR = ",\n";
+    /**
+     * Compression level value for no compressed copy
+     */
+    static final int NO_GZIP = -1;
+    /**
+     * Extension of the compressed copy
+     */
+    static final String GZIP_EXTENSION = ".gz";
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    // a complete coordinate or other small token always fits in this many bytes
+    private static final int MAX_TOKEN = 64;
+    // decimals we output for coordinates, 7 is roughly 1 cm
+    private static final int  COORDINATE_DECIMALS = 7;
+    private static final long COORDINATE_SCALE    = 10_000_000L;
+
+    private static final byte[] HEX            = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(StandardCharsets.US_ASCII);
+
+    private static final String FEATURE_START  = "{\"type\":\"Feature\",\"properties\":{";
+    private static final String GEOMETRY_START = "},\"geometry\":{\"type\":\"Point\",\"coordinates\":[";
+    private static final String FEATURE_END    = "]}}\n";
+
+    private final FileChannel  channel;
+    private final OutputStream compressed;
+    private final byte[]      bytes  = new byte[BUFFER_SIZE];
+    private final ByteBuffer  buffer = ByteBuffer.wrap(bytes);
+    private int               pos    = 0;
+
+    private boolean firstFeature  = true;
+    private boolean firstProperty = true;
+
+    /**
+     * Create a new writer and write the start of the FeatureCollection, an existing file is overwritten
+     *
+     * @param file the output File
+     * @throws IOException if the file can't be opened or written
+     */
+    GeoJsonWriter(@NotNull File file) throws IOException {
+        this(file, NO_GZIP);
+    }
+
+    /**
+     * Create a new writer and write the start of the FeatureCollection, existing files are overwritten
+     *
+     * @param file the output File
+     * @param gzipLevel the compression level (0-9) for the compressed copy or NO_GZIP, if NO_GZIP an existing, now
+     *            outdated, compressed copy is deleted
+     * @throws IOException if the files can't be opened or written
+     */
+    GeoJsonWriter(@NotNull File file, int gzipLevel) throws IOException {
+        final File gzipFile = new File(file.getPath() + GZIP_EXTENSION);
+        if (gzipLevel == NO_GZIP) {
+            Files.deleteIfExists(gzipFile.toPath());
+            compressed = null;
+        } else {
+            compressed = new GZIPOutputStream(new FileOutputStream(gzipFile), BUFFER_SIZE) {
+                {
+                    def.setLevel(gzipLevel);
+                }
+            };
+        }
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException e) {
+            if (compressed != null) {
+                compressed.close();
+            }
+            throw e;
+        }
+        writeAscii(HEADER);
+    }
+
+    /**
+     * Start a new feature
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void beginFeature() throws IOException {
+        separate();
+        writeAscii(FEATURE_START);
+        firstProperty = true;
+    }
+
+    /**
+     * Write a string property
+     *
+     * @param key the key
+     * @param value the value, null is written as a JSON null
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void property(@NotNull String key, @Nullable String value) throws IOException {
+        key(key);
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            string(value);
+        }
+    }
+
+    /**
+     * Write a numeric property
+     *
+     * @param key the key
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void property(@NotNull String key, long value) throws IOException {
+        key(key);
+        ensure(MAX_TOKEN);
+        writeLong(value);
+    }
+
+    /**
+     * Terminate the properties and write the Point geometry of the current feature
+     *
+     * @param lon WGS84 longitude
+     * @param lat WGS84 latitude
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void endFeature(float lon, float lat) throws IOException {
+        writeAscii(GEOMETRY_START);
+        ensure(MAX_TOKEN);
+        writeCoordinate(lon);
+        bytes[pos++] = ',';
+        writeCoordinate(lat);
+        writeAscii(FEATURE_END);
+    }
+
+    /**
+     * Terminate the FeatureCollection and write everything to the file without closing it
+     *
+     * The file is then a complete GeoJson document, further features overwrite the end of the collection which is
+     * written again on the next checkpoint or close.
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void checkpoint() throws IOException {
+        flush();
+        // the compressed copy only gets the end of the collection when closed
+        writeAscii(FOOTER);
+        writeBuffer();
+        channel.position(channel.position() - FOOTER.length());
+    }
+
+    @Override
+    public void copy(@NotNull PreviousFeatures previous) throws IOException {
+        rawFeatures(previous.geoJson);
+    }
+
+    /**
+     * Write already encoded features as read back from a file written by this class
+     *
+     * @param features one or more features separated by SEPARATOR without the final line end
+     * @throws IOException if writing fails
+     */
+    void rawFeatures(@NotNull String features) throws IOException {
+        separate();
+        writeUtf8(features);
+        writeAscii("\n");
+    }
+
+    /**
+     * Write the separator if this isn't the first feature
+     *
+     * @throws IOException if writing fails
+     */
+    private void separate() throws IOException {
+        if (!firstFeature) {
+            writeAscii(SEPARATOR);
+        }
+        firstFeature = false;
+    }
+
+    /**
+     * Write a property key including the preceding comma if necessary and the colon
+     *
+     * @param key the key
+     * @throws IOException if writing fails
+     */
+    private void key(@NotNull String key) throws IOException {
+        if (!firstProperty) {
+            writeAscii(",");
+        }
+        firstProperty = false;
+        string(key);
+        writeAscii(":");
+    }
+
+    /**
+     * Write a quoted and escaped string
+     *
+     * @param s the string
+     * @throws IOException if writing fails
+     */
+    private void string(@NotNull String s) throws IOException {
+        ensure(1);
+        bytes[pos++] = '"';
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            ensure(6);
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                bytes[pos++] = '\\';
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x20) {
+                switch (c) {
+                case '\n':
+                    bytes[pos++] = '\\';
+                    bytes[pos++] = 'n';
+                    break;
+                case '\r':
+                    bytes[pos++] = '\\';
+                    bytes[pos++] = 'r';
+                    break;
+                case '\t':
+                    bytes[pos++] = '\\';
+                    bytes[pos++] = 't';
+                    break;
+                default:
+                    bytes[pos++] = '\\';
+                    bytes[pos++] = 'u';
+                    bytes[pos++] = '0';
+                    bytes[pos++] = '0';
+                    bytes[pos++] = HEX[c >> 4];
+                    bytes[pos++] = HEX[c & 0xf];
+                }
+            } else {
+                i = encode(s, i, c);
+            }
+        }
+        ensure(1);
+        bytes[pos++] = '"';
+    }
+
+    /**
+     * Write a string as UTF-8 without escaping
+     *
+     * @param s the string
+     * @throws IOException if writing fails
+     */
+    private void writeUtf8(@NotNull String s) throws IOException {
+        final int length = s.length();
+        for (int i = 0; i < length; i++) {
+            ensure(4);
+            i = encode(s, i, s.charAt(i));
+        }
+    }
+
+    /**
+     * Encode one character as UTF-8, there must be room for 4 bytes in the buffer
+     *
+     * @param s the string the character is from
+     * @param i the index of the character
+     * @param c the character
+     * @return the index of the last character consumed
+     */
+    private int encode(@NotNull String s, int i, char c) {
+        if (c < 0x80) {
+            bytes[pos++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[pos++] = (byte) (0xc0 | (c >> 6));
+            bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+            final int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+            bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate
+            bytes[pos++] = '?';
+        } else {
+            bytes[pos++] = (byte) (0xe0 | (c >> 12));
+            bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    /**
+     * Write a string that only contains ASCII characters that don't need escaping
+     *
+     * @param s the string
+     * @throws IOException if writing fails
+     */
+    private void writeAscii(@NotNull String s) throws IOException {
+        final int length = s.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            bytes[pos++] = (byte) s.charAt(i);
+        }
+    }
+
+    /**
+     * Write a long in decimal, there must be room for 20 bytes in the buffer
+     *
+     * @param value the value
+     */
+    private void writeLong(long value) {
+        if (value < 0) {
+            if (value == Long.MIN_VALUE) {
+                // can't be negated
+                System.arraycopy(LONG_MIN_VALUE, 0, bytes, pos, LONG_MIN_VALUE.length);
+                pos += LONG_MIN_VALUE.length;
+                return;
+            }
+            bytes[pos++] = '-';
+            value = -value;
+        }
+        writeDigits(value, 0);
+    }
+
+    /**
+     * Write a non-negative number in decimal
+     *
+     * @param value the value
+     * @param minDigits the minimum number of digits, shorter numbers are padded with leading zeros
+     */
+    private void writeDigits(long value, int minDigits) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        digits = Math.max(digits, minDigits);
+        for (int i = pos + digits - 1; i >= pos; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        pos += digits;
+    }
+
+    /**
+     * Write a coordinate with at most COORDINATE_DECIMALS decimals, trailing zeros are removed
+     *
+     * @param value the coordinate
+     */
+    private void writeCoordinate(float value) {
+        long scaled = Math.round((double) value * COORDINATE_SCALE);
+        if (scaled < 0) {
+            bytes[pos++] = '-';
+            scaled = -scaled;
+        }
+        writeDigits(scaled / COORDINATE_SCALE, 0);
+        long fraction = scaled % COORDINATE_SCALE;
+        if (fraction == 0) {
+            return;
+        }
+        int decimals = COORDINATE_DECIMALS;
+        while (fraction % 10 == 0) {
+            fraction /= 10;
+            decimals--;
+        }
+        bytes[pos++] = '.';
+        writeDigits(fraction, decimals);
+    }
+
+    /**
+     * Make sure that there is room for a number of bytes in the buffer
+     *
+     * @param count the number of bytes
+     * @throws IOException if writing fails
+     */
+    private void ensure(int count) throws IOException {
+        if (pos + count > bytes.length) {
+            flush();
+            if (count > bytes.length) {
+                throw new IOException("Token too large " + count);
+            }
+        }
+    }
+
+    /**
+     * Write the buffer to the file
+     *
+     * @throws IOException if writing fails
+     */
+    private void flush() throws IOException {
+        if (compressed != null) {
+            compressed.write(bytes, 0, pos);
+        }
+        writeBuffer();
+    }
+
+    /**
+     * Write the buffer to the file only
+     *
+     * @throws IOException if writing fails
+     */
+    private void writeBuffer() throws IOException {
+        buffer.clear();
+        buffer.limit(pos);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        pos = 0;
+    }
+
+    /**
+     * Terminate the FeatureCollection and close the file and the compressed copy
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            writeAscii(FOOTER);
+            flush();
+        } finally {
+            try {
+                channel.close();
+            } finally {
+                if (compressed != null) {
+                    compressed.close();
+                }
+            }
+        }
+    }
+}
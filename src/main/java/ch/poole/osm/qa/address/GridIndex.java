@@ -0,0 +1,306 @@
+package ch.poole.osm.qa.address;
+
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A simple uniform grid spatial index over points given in WGS84 coordinates
+ *
+ * Items are int values, typically row numbers, that are first added and the index is then built once, after that it
+ * can be queried for the closest items within a distance. Distances are calculated with GWRcompare.haversineDistance
+ * and returned with the results so that they don't need to be calculated again. The items are stored in cell order, the
+ * items of a cell that are clearly too far away are skipped with the approximation of a DistanceKernel. After clear
+ * the index can be filled again, the arrays are only reallocated if they are too small.
+ */
+class GridIndex {
+
+    private static final double METERS_PER_DEGREE = GWRcompare.EARTH_RADIUS * Math.PI / 180;
+    // limit the number of cells for degenerate extents
+    private static final int MAX_CELLS = 1 << 22;
+    // safety margin for converting the search distance to an extent in degrees
+    private static final double SEARCH_MARGIN = 1.01;
+
+    private final double cellSize;
+
+    private int[]   items = new int[16];
+    private float[] lons  = new float[16];
+    private float[] lats  = new float[16];
+    private int     size  = 0;
+
+    private boolean built = false;
+    private double  minLon;
+    private double  minLat;
+    private double  cellLon;
+    private double  cellLat;
+    private int     columns;
+    private int     rows;
+    private int[]   cellStart;
+
+    // scratch arrays for build
+    private int[]   cells      = new int[16];
+    private int[]   fill       = new int[0];
+    private int[]   spareItems = new int[16];
+    private float[] spareLons  = new float[16];
+    private float[] spareLats  = new float[16];
+
+    private final DistanceKernel kernel = new DistanceKernel();
+
+    /**
+     * Query results ordered by ascending distance
+     */
+    static class Neighbours {
+        private int[]    items     = new int[8];
+        private double[] distances = new double[8];
+        private int      size      = 0;
+
+        /**
+         * @return the number of results
+         */
+        int size() {
+            return size;
+        }
+
+        /**
+         * Get a result
+         *
+         * @param i the index of the result, 0 is the closest
+         * @return the item
+         */
+        int get(int i) {
+            return items[i];
+        }
+
+        /**
+         * Get the distance of a result
+         *
+         * @param i the index of the result, 0 is the closest
+         * @return the distance in meters
+         */
+        double distance(int i) {
+            return distances[i];
+        }
+
+        /**
+         * Insert a result keeping the order by distance and the maximum number of results
+         *
+         * @param item the item
+         * @param distance its distance
+         * @param k the maximum number of results
+         */
+        private void insert(int item, double distance, int k) {
+            if (size == k) {
+                if (distance >= distances[size - 1]) {
+                    return;
+                }
+                size--;
+            }
+            if (size == distances.length) {
+                distances = Arrays.copyOf(distances, size * 2);
+                items = Arrays.copyOf(items, size * 2);
+            }
+            int pos = size;
+            while (pos > 0 && distances[pos - 1] > distance) {
+                distances[pos] = distances[pos - 1];
+                items[pos] = items[pos - 1];
+                pos--;
+            }
+            distances[pos] = distance;
+            items[pos] = item;
+            size++;
+        }
+    }
+
+    /**
+     * Construct a new index
+     *
+     * @param cellSize the nominal size of the grid cells in meters, typically the distance used in queries
+     */
+    GridIndex(double cellSize) {
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Remove all items so that the index can be reused
+     */
+    void clear() {
+        size = 0;
+        built = false;
+    }
+
+    /**
+     * Add an item to the index, this must be called before the index is queried
+     *
+     * @param item the item
+     * @param lon WGS84 longitude
+     * @param lat WGS84 latitude
+     */
+    void add(int item, float lon, float lat) {
+        if (built) {
+            throw new IllegalStateException("Index already built");
+        }
+        if (size == lons.length) {
+            items = Arrays.copyOf(items, size * 2);
+            lons = Arrays.copyOf(lons, size * 2);
+            lats = Arrays.copyOf(lats, size * 2);
+        }
+        items[size] = item;
+        lons[size] = lon;
+        lats[size] = lat;
+        size++;
+    }
+
+    /**
+     * Sort the items in to the grid cells
+     */
+    private void build() {
+        built = true;
+        if (size == 0) {
+            return;
+        }
+        double maxLon = -Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        minLon = Double.MAX_VALUE;
+        minLat = Double.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+        }
+        cellLat = cellSize / METERS_PER_DEGREE;
+        cellLon = cellLat / Math.max(0.01, Math.cos(Math.toRadians((minLat + maxLat) / 2)));
+        columns = (int) ((maxLon - minLon) / cellLon) + 1;
+        rows = (int) ((maxLat - minLat) / cellLat) + 1;
+        while ((long) columns * rows > MAX_CELLS) {
+            cellLon *= 2;
+            cellLat *= 2;
+            columns = (int) ((maxLon - minLon) / cellLon) + 1;
+            rows = (int) ((maxLat - minLat) / cellLat) + 1;
+        }
+        // counting sort of the items by cell
+        final int cellCount = columns * rows;
+        if (cells.length < size) {
+            cells = new int[items.length];
+        }
+        if (cellStart == null || cellStart.length < cellCount + 1) {
+            cellStart = new int[cellCount + 1];
+            fill = new int[cellCount];
+        } else {
+            Arrays.fill(cellStart, 0, cellCount + 1, 0);
+        }
+        for (int i = 0; i < size; i++) {
+            cells[i] = cell(column(lons[i]), row(lats[i]));
+            cellStart[cells[i] + 1]++;
+        }
+        for (int c = 0; c < cellCount; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        System.arraycopy(cellStart, 0, fill, 0, cellCount);
+        if (spareItems.length < size) {
+            spareItems = new int[items.length];
+            spareLons = new float[items.length];
+            spareLats = new float[items.length];
+        }
+        for (int i = 0; i < size; i++) {
+            final int j = fill[cells[i]]++;
+            spareItems[j] = items[i];
+            spareLons[j] = lons[i];
+            spareLats[j] = lats[i];
+        }
+        // swap, the unsorted arrays are reused for the next build
+        final int[] sortedItems = spareItems;
+        final float[] sortedLons = spareLons;
+        final float[] sortedLats = spareLats;
+        spareItems = items;
+        spareLons = lons;
+        spareLats = lats;
+        items = sortedItems;
+        lons = sortedLons;
+        lats = sortedLats;
+    }
+
+    /**
+     * Find the closest items within a distance
+     *
+     * @param lon WGS84 longitude of the query point
+     * @param lat WGS84 latitude of the query point
+     * @param k the maximum number of items to return
+     * @param maxDistance the maximum distance in meters, items at exactly this distance are included
+     * @param filter if not null only items for which this returns true are considered
+     * @param result the Neighbours object the results are returned in, previous content is removed
+     */
+    void nearest(double lon, double lat, int k, double maxDistance, @Nullable IntPredicate filter, @NotNull Neighbours result) {
+        if (!built) {
+            build();
+        }
+        result.size = 0;
+        if (size == 0 || k <= 0) {
+            return;
+        }
+        final double dLat = SEARCH_MARGIN * maxDistance / METERS_PER_DEGREE;
+        final double dLon = SEARCH_MARGIN * dLat / Math.max(0.01, Math.cos(Math.toRadians(Math.abs(lat) + dLat)));
+        final int minColumn = Math.max(0, column(lon - dLon));
+        final int maxColumn = Math.min(columns - 1, column(lon + dLon));
+        final int minRow = Math.max(0, row(lat - dLat));
+        final int maxRow = Math.min(rows - 1, row(lat + dLat));
+        for (int r = minRow; r <= maxRow; r++) {
+            for (int c = minColumn; c <= maxColumn; c++) {
+                final int cell = cell(c, r);
+                final int start = cellStart[cell];
+                final int end = cellStart[cell + 1];
+                if (start == end) {
+                    continue;
+                }
+                kernel.approximate(lon, lat, lons, lats, start, end);
+                for (int i = start; i < end; i++) {
+                    final int item = items[i];
+                    if (!kernel.mayBeWithin(i, maxDistance) || (filter != null && !filter.test(item))) {
+                        continue;
+                    }
+                    final double distance = GWRcompare.haversineDistance(lon, lat, lons[i], lats[i]);
+                    if (distance <= maxDistance) {
+                        result.insert(item, distance, k);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a Neighbours object suitable for use with this index
+     *
+     * @return a new Neighbours object
+     */
+    @NotNull
+    Neighbours newNeighbours() {
+        return new Neighbours();
+    }
+
+    /**
+     * @param lon WGS84 longitude
+     * @return the (potentially out of range) grid column
+     */
+    private int column(double lon) {
+        return (int) Math.floor((lon - minLon) / cellLon);
+    }
+
+    /**
+     * @param lat WGS84 latitude
+     * @return the (potentially out of range) grid row
+     */
+    private int row(double lat) {
+        return (int) Math.floor((lat - minLat) / cellLat);
+    }
+
+    /**
+     * @param column grid column
+     * @param row grid row
+     * @return the cell number
+     */
+    private int cell(int column, int row) {
+        return row * columns + column;
+    }
+}
@@ -0,0 +1,454 @@
+package ch.poole.osm.qa.address;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+
+import ch.poole.osm.qa.address.GWRcompare.Config;
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.OsmRecord;
+import ch.poole.osm.qa.address.GWRcompare.OsmRows;
+
+/**
+ * Reads the addresses from the PostGIS database
+ *
+ * With a single thread and without streaming the reader uses the connection of the run, otherwise each reader has its
+ * own connection. With concurrent queries each reader has a connection per query and issues all queries of a
+ * municipality at once. With SQL matching each reader has its own connection and only reads the addresses that the
+ * database couldn't match. With client projection the positions of the OSM addresses are converted from Web Mercator
+ * to WGS84 by the reader instead of the database.
+ */
+class JdbcAddressSource implements AddressSource {
+
+    private static final int GWR_PREFETCH_FETCH_SIZE = 10000;
+
+    // the street type is added from the ReferenceData, streets without a type are ignored
+    private static final String GWR_PREFETCH_QUERY = "select EGID, EGAID, g.ESID, g.GDENR, GDENAME, STRNAME, DEINR, PLZ4, PLZZ, PLZNAME, STRSP, gkat, gklas, doffadr, ST_X(loc), ST_Y(loc) from gwr_addresses g "
+            + "where g.esid is not null and g.gstat = 1004";
+
+    static final String GWR_QUERY = "select EGID, EGAID, g.ESID, g.GDENR, GDENAME, STRNAME, DEINR, PLZ4, PLZZ, PLZNAME, STRSP, gkat, gklas, doffadr, ST_X(loc), ST_Y(loc) from gwr_addresses g, planet_osm_polygon p "
+            + "where p.boundary='administrative' and p.admin_level='8' and tags->'swisstopo:BFS_NUMMER'=? and g.esid is not null and ST_Contains(ST_Transform(p.way,4326),g.loc) "
+            + "and g.gstat = 1004";
+
+    static final String OSM_POLYGON_QUERY = "with mp as (select ST_Multi(ST_Collect(way)) as w from planet_osm_polygon where osm_id = ?) "
+            + "select p.osm_id as osmid,\"addr:housenumber\" as housenumber,\"addr:housename\" as housename, "
+            + "tags->'addr:street' as street, tags->'addr:street:de' as streetde,  tags->'addr:street:fr' as streetfr, tags->'addr:street:it' as streetit, tags->'addr:street:rm' as streetrm, "
+            + "tags->'addr:place' as aplace,  tags->'addr:place:de' as placede,  tags->'addr:place:fr' as placefr, tags->'addr:place:it' as placeit, tags->'addr:place:rm' as placerm, "
+            + "tags->'addr:postcode' as postcode, tags->'addr:city' as city, tags->'addr:full' as afull, ST_X(ST_PointOnSurface(ST_Transform(p.way,4326))), ST_Y(ST_PointOnSurface(ST_Transform(p.way,4326))) from planet_osm_polygon p,mp "
+            + "where ST_IsValid(p.way) AND not St_IsEmpty(p.way) AND (p.\"addr:housenumber\" is not NULL or p.\"addr:housename\" is not NULL or exist(p.tags , 'addr:full')  or  exist(p.tags , 'addr:conscriptionnumber')) AND St_IsValid(mp.w) AND St_Covers(mp.w,p.way)";
+
+    static final String OSM_LINE_QUERY = "with mp as (select ST_Multi(ST_Collect(way)) as w from planet_osm_polygon where osm_id = ?) "
+            + "select p.osm_id as osmid,\"addr:housenumber\" as housenumber,\"addr:housename\" as housename, "
+            + "tags->'addr:street' as street, tags->'addr:street:de' as streetde,  tags->'addr:street:fr' as streetfr, tags->'addr:street:it' as streetit, tags->'addr:street:rm' as streetrm, "
+            + "tags->'addr:place' as aplace,  tags->'addr:place:de' as placede,  tags->'addr:place:fr' as placefr, tags->'addr:place:it' as placeit, tags->'addr:place:rm' as placerm, "
+            + "tags->'addr:postcode' as postcode, tags->'addr:city' as city, tags->'addr:full' as afull, ST_X(ST_PointOnSurface(ST_Transform(p.way,4326))), ST_Y(ST_PointOnSurface(ST_Transform(p.way,4326))) from planet_osm_line p,mp "
+            + "where ST_IsValid(p.way) AND not St_IsEmpty(p.way) AND (p.\"addr:housenumber\" is not NULL or p.\"addr:housename\" is not NULL or exist(p.tags , 'addr:full')  or  exist(p.tags , 'addr:conscriptionnumber')) AND St_IsValid(mp.w) AND St_Covers(mp.w,p.way)";
+
+    static final String OSM_POINT_QUERY = "select p.osm_id as osmid,\"addr:housenumber\" as housenumber,\"addr:housename\" as housename, "
+            + "tags->'addr:street' as street, tags->'addr:street:de' as streetde,  tags->'addr:street:fr' as streetfr, tags->'addr:street:it' as streetit, tags->'addr:street:rm' as streetrm, "
+            + "tags->'addr:place' as aplace,  tags->'addr:place:de' as placede,  tags->'addr:place:fr' as placefr, tags->'addr:place:it' as placeit, tags->'addr:place:rm' as placerm, "
+            + "tags->'addr:postcode' as postcode, tags->'addr:city' as city, tags->'addr:full' as afull, ST_X(ST_Transform(p.way,4326)), ST_Y(ST_Transform(p.way,4326)) from planet_osm_point p,buffered_boundaries b "
+            + "where (p.\"addr:housenumber\" is not NULL   or p.\"addr:housename\" is not NULL  or  exist(p.tags , 'addr:full')  or  exist(p.tags , 'addr:conscriptionnumber')) AND St_IsValid(b.way) AND St_Covers(b.way,p.way) and b.osm_id=?";
+
+    // the same queries with the OSM positions in the coordinates of the tables, Web Mercator, and the boundary for the
+    // GWR addresses transformed only once
+    private static final String GWR_MERCATOR_QUERY = "with b as (select ST_Transform(way,4326) as w from planet_osm_polygon "
+            + "where boundary='administrative' and admin_level='8' and tags->'swisstopo:BFS_NUMMER'=? offset 0) "
+            + "select EGID, EGAID, g.ESID, g.GDENR, GDENAME, STRNAME, DEINR, PLZ4, PLZZ, PLZNAME, STRSP, gkat, gklas, doffadr, ST_X(loc), ST_Y(loc) from gwr_addresses g, b "
+            + "where g.esid is not null and ST_Contains(b.w,g.loc) and g.gstat = 1004";
+
+    private static final String TRANSFORM = "ST_Transform(p.way,4326)";
+
+    private static final String OSM_POLYGON_MERCATOR_QUERY = OSM_POLYGON_QUERY.replace(TRANSFORM, "p.way");
+    private static final String OSM_LINE_MERCATOR_QUERY    = OSM_LINE_QUERY.replace(TRANSFORM, "p.way");
+    private static final String OSM_POINT_MERCATOR_QUERY   = OSM_POINT_QUERY.replace(TRANSFORM, "p.way");
+
+    private final Connection conn;
+    private final String     url;
+    private final Properties props;
+    private final Config     config;
+
+    private ReferenceData                 reference;
+    private Map<Integer, List<GwrRecord>> gwrPrefetch;
+
+    /**
+     * Construct a new instance
+     *
+     * @param conn the connection of the run, it is not closed by the source
+     * @param url the database url for additional connections
+     * @param props the connection properties
+     * @param config the configuration
+     */
+    JdbcAddressSource(@NotNull Connection conn, @NotNull String url, @NotNull Properties props, @NotNull Config config) {
+        this.conn = conn;
+        this.url = url;
+        this.props = props;
+        this.config = config;
+    }
+
+    /**
+     * Load the reference data and, if configured, prefetch the GWR addresses
+     */
+    @Override
+    @NotNull
+    public ReferenceData referenceData() throws SQLException, IOException {
+        reference = ReferenceData.load(conn, config.referenceSnapshot != null ? new File(config.referenceSnapshot) : null);
+        if (config.prefetch) {
+            gwrPrefetch = prefetchGwrAddresses(conn, reference);
+        }
+        return reference;
+    }
+
+    @Override
+    @NotNull
+    public Reader newReader() throws SQLException {
+        return newReader(config.sqlMatching);
+    }
+
+    /**
+     * Create a Reader for one worker
+     *
+     * @param sqlMatching if true the unambiguous addresses are matched in the database
+     * @return a new Reader
+     * @throws SQLException
+     */
+    @NotNull
+    Reader newReader(boolean sqlMatching) throws SQLException {
+        if (sqlMatching) {
+            // the temporary tables belong to the connection
+            return new SqlMatchingReader(DriverManager.getConnection(url, props), reference);
+        }
+        if (config.concurrentQueries) {
+            return new ConcurrentJdbcReader();
+        }
+        // when streaming the reader needs its own connection as it doesn't run in autocommit mode
+        if (config.threads <= 1 && config.fetchSize <= 0) {
+            return new JdbcReader(conn, false);
+        }
+        return new JdbcReader(DriverManager.getConnection(url, props), true);
+    }
+
+    @Override
+    public void close() {
+        // the connection belongs to the caller
+    }
+
+    /**
+     * Read all current GWR addresses in one pass and partition them by BFS number
+     *
+     * A cursor is used so that the driver doesn't hold the complete result in memory, repeated strings are shared.
+     * Entries are removed by the readers when they are used.
+     *
+     * @param conn the database connection
+     * @param reference the ReferenceData
+     * @return a Map from BFS number to the GWR addresses of the municipality
+     * @throws SQLException
+     */
+    @NotNull
+    private static Map<Integer, List<GwrRecord>> prefetchGwrAddresses(@NotNull Connection conn, @NotNull ReferenceData reference) throws SQLException {
+        Map<Integer, List<GwrRecord>> result = new ConcurrentHashMap<>();
+        Map<String, String> strings = new HashMap<>();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.setFetchSize(GWR_PREFETCH_FETCH_SIZE);
+            try (ResultSet rs = stmt.executeQuery(GWR_PREFETCH_QUERY)) {
+                while (rs.next()) {
+                    final long esid = rs.getLong(3);
+                    if (reference.isKnownStreet(esid)) {
+                        result.computeIfAbsent(rs.getInt(4), k -> new ArrayList<>()).add(new GwrRecord(rs, strings, reference.streetType(esid)));
+                    }
+                }
+            }
+            conn.commit();
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+        return result;
+    }
+
+    /**
+     * Read GWR address rows from a ResultSet
+     *
+     * @param rs the ResultSet
+     * @param reference the ReferenceData
+     * @return a List of GwrRecord
+     * @throws SQLException
+     */
+    @NotNull
+    static List<GwrRecord> readGwrRecords(@NotNull ResultSet rs, @NotNull ReferenceData reference) throws SQLException {
+        List<GwrRecord> result = new ArrayList<>();
+        try (ResultSet r = rs) {
+            while (r.next()) {
+                final long esid = r.getLong(3);
+                if (reference.isKnownStreet(esid)) {
+                    result.add(new GwrRecord(r, null, reference.streetType(esid)));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Read OSM address rows from a ResultSet
+     *
+     * @param rs the ResultSet, it is closed together with the OsmRows
+     * @param mercator if true the positions are in EPSG:3857 coordinates
+     * @return the OsmRows
+     */
+    @NotNull
+    static OsmRows rows(@NotNull ResultSet rs, boolean mercator) {
+        return new OsmRows() {
+            @Override
+            public boolean next(@NotNull OsmRecord record) throws SQLException {
+                if (!rs.next()) {
+                    return false;
+                }
+                record.read(rs, mercator);
+                return true;
+            }
+
+            @Override
+            public void close() throws SQLException {
+                rs.close();
+            }
+        };
+    }
+
+    /**
+     * A reader with its own prepared statements
+     */
+    private class JdbcReader implements Reader {
+        private final Connection readerConn;
+        private final boolean    ownsConnection;
+        private final boolean    streaming;
+        private final boolean    mercator;
+
+        private final PreparedStatement gwrAddressQuery;
+        private final PreparedStatement osmBuildingAddressQuery;
+        private final PreparedStatement osmBuildingAddressQuery2;
+        private final PreparedStatement osmNodeAddressQuery;
+
+        /**
+         * Create a new reader
+         *
+         * @param readerConn the database connection to use
+         * @param ownsConnection if true the connection will be closed together with the reader
+         * @throws SQLException
+         */
+        JdbcReader(@NotNull Connection readerConn, boolean ownsConnection) throws SQLException {
+            this.readerConn = readerConn;
+            this.ownsConnection = ownsConnection;
+            // the PostgreSQL driver only uses a cursor outside of autocommit mode
+            streaming = config.fetchSize > 0;
+            if (streaming) {
+                readerConn.setAutoCommit(false);
+            }
+            mercator = config.clientProjection;
+            gwrAddressQuery = readerConn.prepareStatement(mercator ? GWR_MERCATOR_QUERY : GWR_QUERY);
+            osmBuildingAddressQuery = readerConn.prepareStatement(mercator ? OSM_POLYGON_MERCATOR_QUERY : OSM_POLYGON_QUERY);
+            osmBuildingAddressQuery2 = readerConn.prepareStatement(mercator ? OSM_LINE_MERCATOR_QUERY : OSM_LINE_QUERY);
+            osmNodeAddressQuery = readerConn.prepareStatement(mercator ? OSM_POINT_MERCATOR_QUERY : OSM_POINT_QUERY);
+            if (streaming) {
+                gwrAddressQuery.setFetchSize(config.fetchSize);
+                osmBuildingAddressQuery.setFetchSize(config.fetchSize);
+                osmBuildingAddressQuery2.setFetchSize(config.fetchSize);
+                osmNodeAddressQuery.setFetchSize(config.fetchSize);
+            }
+        }
+
+        @Override
+        @NotNull
+        public List<GwrRecord> gwr(@NotNull Municipality municipality) throws SQLException {
+            List<GwrRecord> gwrAddresses;
+            if (gwrPrefetch != null) {
+                gwrAddresses = gwrPrefetch.remove(Integer.parseInt(municipality.ref));
+            } else {
+                gwrAddressQuery.setString(1, municipality.ref);
+                gwrAddresses = readGwrRecords(gwrAddressQuery.executeQuery(), reference);
+            }
+            return gwrAddresses != null ? gwrAddresses : Collections.emptyList();
+        }
+
+        @Override
+        @NotNull
+        public OsmRows osm(@NotNull Municipality municipality, @NotNull OsmQuery query) throws SQLException {
+            final PreparedStatement statement = statement(query);
+            statement.setLong(1, municipality.boundaryId);
+            return rows(statement.executeQuery(), mercator);
+        }
+
+        /**
+         * Get the prepared statement for a query
+         *
+         * @param query the query
+         * @return the PreparedStatement
+         */
+        @NotNull
+        private PreparedStatement statement(@NotNull OsmQuery query) {
+            switch (query) {
+            case POLYGON:
+                return osmBuildingAddressQuery;
+            case LINE:
+                return osmBuildingAddressQuery2;
+            default:
+                return osmNodeAddressQuery;
+            }
+        }
+
+        @Override
+        public void endMunicipality() throws SQLException {
+            if (streaming) {
+                // end the read only transaction
+                readerConn.commit();
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            gwrAddressQuery.close();
+            osmBuildingAddressQuery.close();
+            osmBuildingAddressQuery2.close();
+            osmNodeAddressQuery.close();
+            if (ownsConnection) {
+                readerConn.close();
+            }
+        }
+    }
+
+    /**
+     * A reader that runs the GWR and the three OSM queries of a municipality at the same time
+     *
+     * When the GWR rows are requested all queries are started, each on its own connection, and the OSM rows are read
+     * in to memory. The rows are then returned in the usual order, so that the OSM rows are only added after the GWR
+     * addresses of the municipality are known.
+     */
+    private class ConcurrentJdbcReader implements Reader {
+        // the GWR reader is followed by one reader per OSM query
+        private final JdbcReader[]                           readers = new JdbcReader[OsmQuery.values().length + 1];
+        private final ExecutorService                        executor;
+        private final Map<OsmQuery, Future<List<OsmRecord>>> osmRows = new EnumMap<>(OsmQuery.class);
+
+        /**
+         * Create a new reader with its own connections
+         *
+         * @throws SQLException
+         */
+        ConcurrentJdbcReader() throws SQLException {
+            executor = Executors.newFixedThreadPool(readers.length, runnable -> {
+                Thread thread = new Thread(runnable, "query");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                for (int i = 0; i < readers.length; i++) {
+                    readers[i] = new JdbcReader(DriverManager.getConnection(url, props), true);
+                }
+            } catch (SQLException e) {
+                close();
+                throw e;
+            }
+        }
+
+        @Override
+        @NotNull
+        public List<GwrRecord> gwr(@NotNull Municipality municipality) throws SQLException, IOException {
+            for (OsmQuery query : OsmQuery.values()) {
+                final JdbcReader reader = readers[query.ordinal() + 1];
+                osmRows.put(query, executor.submit(() -> {
+                    List<OsmRecord> records = MemoryAddressSource.readAll(reader.osm(municipality, query));
+                    reader.endMunicipality();
+                    return records;
+                }));
+            }
+            final JdbcReader reader = readers[0];
+            return await(executor.submit(() -> {
+                List<GwrRecord> records = reader.gwr(municipality);
+                reader.endMunicipality();
+                return records;
+            }));
+        }
+
+        @Override
+        @NotNull
+        public OsmRows osm(@NotNull Municipality municipality, @NotNull OsmQuery query) throws SQLException, IOException {
+            return MemoryAddressSource.rows(await(osmRows.remove(query)));
+        }
+
+        /**
+         * Wait for the result of a query
+         *
+         * @param <T> the type of the result
+         * @param future the Future holding the result
+         * @return the result
+         * @throws SQLException
+         * @throws IOException
+         */
+        private <T> T await(@NotNull Future<T> future) throws SQLException, IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for query", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof SQLException) {
+                    throw (SQLException) cause;
+                }
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            executor.shutdownNow();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            SQLException error = null;
+            for (JdbcReader reader : readers) {
+                if (reader == null) {
+                    continue;
+                }
+                try {
+                    reader.close();
+                } catch (SQLException e) {
+                    if (error == null) {
+                        error = e;
+                    } else {
+                        error.addSuppressed(e);
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package ch.poole.osm.qa.address;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Creates the keys used for matching addresses
+ *
+ * Street/place names and house numbers are case folded and dictionary encoded to int ids, the key is the two ids
+ * packed in to a long. Each distinct spelling is only case folded once, further lookups are a single hash map access
+ * on the original string. The dictionaries are intended to be used for one municipality at a time and should be
+ * cleared between municipalities.
+ *
+ * Keys are only comparable if they were created by the same KeyEngine without an intervening clear.
+ */
+class KeyEngine {
+
+    /**
+     * Returned by lookup if a name or number is not known, this will never be returned by key
+     */
+    static final long NO_KEY = -1L;
+
+    // null is handled like the string "null" for compatibility with the previous string based keys
+    private static final String NULL = "null";
+
+    private final Dictionary names   = new Dictionary();
+    private final Dictionary numbers = new Dictionary();
+
+    /**
+     * Maps strings to ids, strings that are equal after case folding get the same id
+     */
+    private static class Dictionary {
+        private final Map<String, Integer> raw    = new HashMap<>();
+        private final Map<String, Integer> folded = new HashMap<>();
+
+        /**
+         * Get the id for a string, assigning a new one if necessary
+         *
+         * @param s the string
+         * @return the id
+         */
+        int id(@Nullable String s) {
+            final String value = s != null ? s : NULL;
+            Integer id = raw.get(value);
+            if (id == null) {
+                final String lower = value.toLowerCase();
+                id = folded.get(lower);
+                if (id == null) {
+                    id = folded.size();
+                    folded.put(lower, id);
+                }
+                raw.put(value, id);
+            }
+            return id;
+        }
+
+        /**
+         * Get the id for a string without assigning a new one
+         *
+         * @param s the string
+         * @return the id or -1 if the string is not known
+         */
+        int lookup(@Nullable String s) {
+            final String value = s != null ? s : NULL;
+            Integer id = raw.get(value);
+            if (id == null) {
+                id = folded.get(value.toLowerCase());
+                if (id == null) {
+                    return -1;
+                }
+                // remember this spelling
+                raw.put(value, id);
+            }
+            return id;
+        }
+
+        /**
+         * Remove all entries
+         */
+        void clear() {
+            raw.clear();
+            folded.clear();
+        }
+    }
+
+    /**
+     * Create the key used for matching
+     *
+     * @param name the street/place name
+     * @param number the house number
+     * @return a suitable key
+     */
+    long key(@Nullable String name, @Nullable String number) {
+        return pack(names.id(name), numbers.id(number));
+    }
+
+    /**
+     * Get the key for a name and number without adding them to the dictionaries
+     *
+     * If NO_KEY is returned no key for this name and number has been created yet
+     *
+     * @param name the street/place name
+     * @param number the house number
+     * @return the key or NO_KEY
+     */
+    long lookup(@Nullable String name, @Nullable String number) {
+        final int nameId = names.lookup(name);
+        if (nameId < 0) {
+            return NO_KEY;
+        }
+        final int numberId = numbers.lookup(number);
+        if (numberId < 0) {
+            return NO_KEY;
+        }
+        return pack(nameId, numberId);
+    }
+
+    /**
+     * Remove all entries from the dictionaries
+     */
+    void clear() {
+        names.clear();
+        numbers.clear();
+    }
+
+    /**
+     * Pack two ids in to a long
+     *
+     * @param nameId the name id
+     * @param numberId the number id
+     * @return the key
+     */
+    private static long pack(int nameId, int numberId) {
+        return ((long) nameId << 32) | (numberId & 0xffffffffL);
+    }
+}
@@ -0,0 +1,477 @@
+package ch.poole.osm.qa.address;
+
+import java.util.Arrays;
+
+/**
+ * A multi map from long keys to sets of non-negative int values
+ *
+ * This is a companion to MultiHashMap for the matching hot path, the values are typically indices of addresses. Keys
+ * are stored with open addressing and linear probing, the first value of each key is stored inline, further values in
+ * overflow chains in shared arrays. As in MultiHashMap the values for a key form a set and keys stay present when all
+ * their values have been removed.
+ *
+ * Removing values only marks them as removed and doesn't change the structure, this allows removing values while
+ * iterating with a KeyCursor or ValueCursor. Adding values or keys while iterating is not supported. The space used
+ * by removed values is reused when values are added to the same key, or after clear.
+ */
+public class LongIntMultiHashMap {
+
+    /**
+     * Value returned if there is no value
+     */
+    public static final int NO_VALUE = -1;
+
+    private static final byte FREE    = 0;
+    private static final byte USED    = 1;
+    private static final byte REMOVED = 2;
+
+    private static final int   NO_NODE          = -1;
+    private static final float LOAD_FACTOR      = 0.6f;
+    private static final int   DEFAULT_CAPACITY = 64;
+
+    private long[] keys;
+    private int[]  inline;
+    private int[]  chains;
+    private byte[] states;
+    private int    mask;
+    private int    keyCount  = 0;
+    private int    usedSlots = 0;
+
+    private int[] nodeValues = new int[16];
+    private int[] nodeNext   = new int[16];
+    private int   nodeCount  = 0;
+
+    private long size = 0;
+
+    /**
+     * Iterates over the keys of the map without copying
+     */
+    public class KeyCursor {
+        private int slot = -1;
+
+        /**
+         * Restart the iteration
+         */
+        public void reset() {
+            slot = -1;
+        }
+
+        /**
+         * Advance to the next key
+         *
+         * @return true if there is a further key
+         */
+        public boolean next() {
+            while (++slot < states.length) {
+                if (states[slot] == USED) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the current key
+         */
+        public long key() {
+            return keys[slot];
+        }
+    }
+
+    /**
+     * Iterates over the values of a key without copying
+     */
+    public class ValueCursor {
+        private int     slot = -1;
+        private int     node = NO_NODE;
+        private boolean atInline;
+        private int     value;
+
+        /**
+         * Start iterating over the values of a key
+         *
+         * @param key the key
+         * @return this ValueCursor
+         */
+        public ValueCursor reset(long key) {
+            slot = find(key);
+            atInline = false;
+            node = NO_NODE;
+            return this;
+        }
+
+        /**
+         * Advance to the next value
+         *
+         * @return true if there is a further value
+         */
+        public boolean next() {
+            if (slot < 0) {
+                return false;
+            }
+            if (!atInline && node == NO_NODE) {
+                // first call
+                atInline = true;
+                if (inline[slot] != NO_VALUE) {
+                    value = inline[slot];
+                    return true;
+                }
+            }
+            node = node == NO_NODE ? chains[slot] : nodeNext[node];
+            while (node != NO_NODE) {
+                if (nodeValues[node] != NO_VALUE) {
+                    value = nodeValues[node];
+                    return true;
+                }
+                node = nodeNext[node];
+            }
+            slot = -1;
+            return false;
+        }
+
+        /**
+         * @return the current value
+         */
+        public int value() {
+            return value;
+        }
+    }
+
+    /**
+     * Create a new map with the default capacity
+     */
+    public LongIntMultiHashMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create a new map
+     *
+     * @param expectedKeys the number of keys the map should hold without resizing
+     */
+    public LongIntMultiHashMap(int expectedKeys) {
+        int capacity = Integer.highestOneBit(Math.max(4, (int) (expectedKeys / LOAD_FACTOR)) - 1) << 1;
+        allocate(capacity);
+    }
+
+    /**
+     * Allocate the key table
+     *
+     * @param capacity the capacity, must be a power of 2
+     */
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        inline = new int[capacity];
+        chains = new int[capacity];
+        states = new byte[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Check for key in map
+     *
+     * @param key the key we are looking for
+     * @return true if key exists in map
+     */
+    public boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Check if a value is associated with a key
+     *
+     * @param key the key
+     * @param value the value
+     * @return true if the value is associated with the key
+     */
+    public boolean contains(long key, int value) {
+        int slot = find(key);
+        return slot >= 0 && contains(slot, value);
+    }
+
+    /**
+     * Adds value to the set of values associated with the key
+     *
+     * @param key key to add
+     * @param value value to add, must not be negative
+     * @return true if the value was added, false if it was already in the set
+     */
+    public boolean add(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        int slot = insert(key);
+        if (contains(slot, value)) {
+            return false;
+        }
+        size++;
+        if (inline[slot] == NO_VALUE) {
+            inline[slot] = value;
+            return true;
+        }
+        // reuse a removed node
+        for (int node = chains[slot]; node != NO_NODE; node = nodeNext[node]) {
+            if (nodeValues[node] == NO_VALUE) {
+                nodeValues[node] = value;
+                return true;
+            }
+        }
+        if (nodeCount == nodeValues.length) {
+            nodeValues = Arrays.copyOf(nodeValues, nodeCount * 2);
+            nodeNext = Arrays.copyOf(nodeNext, nodeCount * 2);
+        }
+        nodeValues[nodeCount] = value;
+        nodeNext[nodeCount] = chains[slot];
+        chains[slot] = nodeCount++;
+        return true;
+    }
+
+    /**
+     * Adds a key without values
+     *
+     * @param key the key
+     */
+    public void addKey(long key) {
+        insert(key);
+    }
+
+    /**
+     * Removes the value from the set associated with the given key
+     *
+     * @param key the key of the value to remove
+     * @param value the value to remove
+     * @return true if the value was in the set
+     */
+    public boolean removeItem(long key, int value) {
+        int slot = find(key);
+        if (slot < 0 || value < 0) {
+            return false;
+        }
+        if (inline[slot] == value) {
+            inline[slot] = NO_VALUE;
+            size--;
+            return true;
+        }
+        for (int node = chains[slot]; node != NO_NODE; node = nodeNext[node]) {
+            if (nodeValues[node] == value) {
+                nodeValues[node] = NO_VALUE;
+                size--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Completely removes a key and all values associated with it
+     *
+     * @param key key to remove
+     */
+    public void removeKey(long key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            size -= valueCount(slot);
+            states[slot] = REMOVED;
+            keyCount--;
+        }
+    }
+
+    /**
+     * Get the number of values associated with a key
+     *
+     * @param key the key
+     * @return the number of values, 0 if the key is not present
+     */
+    public int valueCount(long key) {
+        int slot = find(key);
+        return slot >= 0 ? valueCount(slot) : 0;
+    }
+
+    /**
+     * Get any one value associated with a key
+     *
+     * @param key the key
+     * @return a value or NO_VALUE if there is none
+     */
+    public int first(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return NO_VALUE;
+        }
+        if (inline[slot] != NO_VALUE) {
+            return inline[slot];
+        }
+        for (int node = chains[slot]; node != NO_NODE; node = nodeNext[node]) {
+            if (nodeValues[node] != NO_VALUE) {
+                return nodeValues[node];
+            }
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Create a cursor for iterating over the keys
+     *
+     * @return a new KeyCursor
+     */
+    public KeyCursor keyCursor() {
+        return new KeyCursor();
+    }
+
+    /**
+     * Create a cursor for iterating over the values of a key, use ValueCursor.reset to start the iteration
+     *
+     * @return a new ValueCursor
+     */
+    public ValueCursor valueCursor() {
+        return new ValueCursor();
+    }
+
+    /**
+     * Remove all keys and values, the allocated space is retained
+     */
+    public void clear() {
+        Arrays.fill(states, FREE);
+        keyCount = 0;
+        usedSlots = 0;
+        nodeCount = 0;
+        size = 0;
+    }
+
+    /**
+     * Return a total value count
+     *
+     * @return the total number of values
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return the number of keys
+     */
+    public int keyCount() {
+        return keyCount;
+    }
+
+    /**
+     * Check if a value is in the set of a slot
+     *
+     * @param slot the slot
+     * @param value the value
+     * @return true if present
+     */
+    private boolean contains(int slot, int value) {
+        if (inline[slot] == value) {
+            return true;
+        }
+        for (int node = chains[slot]; node != NO_NODE; node = nodeNext[node]) {
+            if (nodeValues[node] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Count the values of a slot
+     *
+     * @param slot the slot
+     * @return the count
+     */
+    private int valueCount(int slot) {
+        int count = inline[slot] != NO_VALUE ? 1 : 0;
+        for (int node = chains[slot]; node != NO_NODE; node = nodeNext[node]) {
+            if (nodeValues[node] != NO_VALUE) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Find the slot of a key
+     *
+     * @param key the key
+     * @return the slot or -1 if not found
+     */
+    private int find(long key) {
+        int slot = hash(key) & mask;
+        while (states[slot] != FREE) {
+            if (states[slot] == USED && keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the slot of a key, adding the key if necessary
+     *
+     * @param key the key
+     * @return the slot
+     */
+    private int insert(long key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (usedSlots + 1 > LOAD_FACTOR * states.length) {
+            rehash(keyCount + 1 > LOAD_FACTOR * states.length / 2 ? states.length * 2 : states.length);
+        }
+        slot = hash(key) & mask;
+        while (states[slot] == USED) {
+            slot = (slot + 1) & mask;
+        }
+        if (states[slot] == FREE) {
+            usedSlots++;
+        }
+        states[slot] = USED;
+        keys[slot] = key;
+        inline[slot] = NO_VALUE;
+        chains[slot] = NO_NODE;
+        keyCount++;
+        return slot;
+    }
+
+    /**
+     * Rebuild the key table dropping removed keys
+     *
+     * @param capacity the new capacity, must be a power of 2
+     */
+    private void rehash(int capacity) {
+        final long[] oldKeys = keys;
+        final int[] oldInline = inline;
+        final int[] oldChains = chains;
+        final byte[] oldStates = states;
+        allocate(capacity);
+        usedSlots = 0;
+        for (int i = 0; i < oldStates.length; i++) {
+            if (oldStates[i] == USED) {
+                int slot = hash(oldKeys[i]) & mask;
+                while (states[slot] != FREE) {
+                    slot = (slot + 1) & mask;
+                }
+                states[slot] = USED;
+                keys[slot] = oldKeys[i];
+                inline[slot] = oldInline[i];
+                chains[slot] = oldChains[i];
+                usedSlots++;
+            }
+        }
+    }
+
+    /**
+     * Spread the bits of a key, the slot a key is probed from is the hash masked with the capacity - 1
+     *
+     * @param key the key
+     * @return a hash value
+     */
+    static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+}
@@ -0,0 +1,306 @@
+package ch.poole.osm.qa.address;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.OsmRecord;
+import ch.poole.osm.qa.address.GWRcompare.OsmRows;
+
+/**
+ * Holds the addresses of all municipalities in memory
+ *
+ * The content can be added directly or read from CSV files. Municipalities have to be added before the reference data
+ * is retrieved.
+ */
+class MemoryAddressSource implements AddressSource {
+
+    static final String MUNICIPALITIES_CSV = "municipalities.csv";
+    static final String GWR_CSV            = "gwr.csv";
+    static final String OSM_CSV            = "osm.csv";
+
+    // in the order of the OsmRecord fields
+    private static final String[] OSM_COLUMNS = { "osm_id", "housenumber", "housename", "street", "street_de", "street_fr", "street_it", "street_rm",
+            "place", "place_de", "place_fr", "place_it", "place_rm", "postcode", "city", "full", "lon", "lat" };
+
+    private final List<Municipality>   municipalities = new ArrayList<>();
+    private final Map<Integer, String> cantons        = new HashMap<>();
+    private final Map<String, Rows>    rows           = new HashMap<>();
+
+    /**
+     * The address rows of one municipality
+     */
+    static final class Rows {
+        final List<GwrRecord> gwr      = new ArrayList<>();
+        final List<OsmRecord> polygons = new ArrayList<>();
+        final List<OsmRecord> lines    = new ArrayList<>();
+        final List<OsmRecord> points   = new ArrayList<>();
+
+        /**
+         * Get the rows of an OSM query
+         *
+         * @param query the query
+         * @return a List of OsmRecord
+         */
+        @NotNull
+        List<OsmRecord> osm(@NotNull OsmQuery query) {
+            switch (query) {
+            case POLYGON:
+                return polygons;
+            case LINE:
+                return lines;
+            default:
+                return points;
+            }
+        }
+    }
+
+    /**
+     * Add a municipality
+     *
+     * @param municipality the Municipality
+     * @param canton the canton abbreviation
+     * @param content the address rows
+     */
+    void add(@NotNull Municipality municipality, @NotNull String canton, @NotNull Rows content) {
+        municipalities.add(municipality);
+        cantons.put(Integer.parseInt(municipality.ref), canton);
+        rows.put(municipality.ref, content);
+    }
+
+    @Override
+    @NotNull
+    public ReferenceData referenceData() {
+        List<Municipality> sorted = new ArrayList<>(municipalities);
+        sorted.sort(Comparator.comparing(m -> m.name));
+        return ReferenceData.of(Collections.unmodifiableList(sorted), cantons);
+    }
+
+    @Override
+    @NotNull
+    public Reader newReader() {
+        return new Reader() {
+            private Rows current;
+
+            @Override
+            @NotNull
+            public List<GwrRecord> gwr(@NotNull Municipality municipality) {
+                current = rows.get(municipality.ref);
+                if (current == null) {
+                    current = new Rows();
+                }
+                return current.gwr;
+            }
+
+            @Override
+            @NotNull
+            public OsmRows osm(@NotNull Municipality municipality, @NotNull OsmQuery query) {
+                return rows(current.osm(query));
+            }
+
+            @Override
+            public void close() {
+                current = null;
+            }
+        };
+    }
+
+    /**
+     * Iterate over a list of records
+     *
+     * @param records the OsmRecords
+     * @return OsmRows that copy the records
+     */
+    @NotNull
+    static OsmRows rows(@NotNull List<OsmRecord> records) {
+        return new OsmRows() {
+            int next = 0;
+
+            @Override
+            public boolean next(@NotNull OsmRecord record) {
+                if (next == records.size()) {
+                    return false;
+                }
+                record.set(records.get(next++));
+                return true;
+            }
+
+            @Override
+            public void close() {
+                // nothing to do
+            }
+        };
+    }
+
+    /**
+     * Read all remaining rows and close the OsmRows
+     *
+     * @param osmRows the OsmRows
+     * @return a List with a new OsmRecord for each row
+     * @throws SQLException
+     * @throws IOException
+     */
+    @NotNull
+    static List<OsmRecord> readAll(@NotNull OsmRows osmRows) throws SQLException, IOException {
+        final List<OsmRecord> records = new ArrayList<>();
+        try (OsmRows r = osmRows) {
+            OsmRecord record = new OsmRecord();
+            while (r.next(record)) {
+                records.add(record);
+                record = new OsmRecord();
+            }
+        }
+        return records;
+    }
+
+    @Override
+    public void close() {
+        rows.clear();
+    }
+
+    /**
+     * Read the addresses from the CSV files in a directory
+     *
+     * The files need a header line, additional columns are ignored.
+     * <ul>
+     * <li>municipalities.csv: osm_id (of the boundary), name, muni_ref, canton</li>
+     * <li>gwr.csv: muni_ref, egaid, street, housenumber, postcode, city, lang (STRSP code), street_type, category, class,
+     * official, lon, lat</li>
+     * <li>osm.csv: muni_ref, query (polygon, line or point), osm_id, housenumber, housename, street, street_de, street_fr,
+     * street_it, street_rm, place, place_de, place_fr, place_it, place_rm, postcode, city, full, lon, lat</li>
+     * </ul>
+     *
+     * @param dir the directory
+     * @return a MemoryAddressSource with the content
+     * @throws IOException if a file can't be read or is invalid
+     */
+    @NotNull
+    static MemoryAddressSource readCsv(@NotNull File dir) throws IOException {
+        MemoryAddressSource source = new MemoryAddressSource();
+        try (CsvReader csv = new CsvReader(new File(dir, MUNICIPALITIES_CSV))) {
+            final int osmId = csv.column("osm_id");
+            final int name = csv.column("name");
+            final int muniRef = csv.column("muni_ref");
+            final int canton = csv.column("canton");
+            while (csv.next()) {
+                final String ref = csv.get(muniRef);
+                final String n = csv.get(name);
+                if (ref == null || n == null) {
+                    throw new IOException(csv.position() + " name and muni_ref are required");
+                }
+                final String c = csv.get(canton);
+                source.add(new Municipality(csv.getLong(osmId), n, ref), c != null ? c : "?", new Rows());
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException(MUNICIPALITIES_CSV + " invalid muni_ref " + e.getMessage());
+        }
+        Map<String, String> strings = new HashMap<>();
+        try (CsvReader csv = new CsvReader(new File(dir, GWR_CSV))) {
+            final int muniRef = csv.column("muni_ref");
+            final int egaid = csv.column("egaid");
+            final int street = csv.column("street");
+            final int housenumber = csv.column("housenumber");
+            final int postcode = csv.column("postcode");
+            final int city = csv.column("city");
+            final int lang = csv.column("lang");
+            final int streetType = csv.column("street_type");
+            final int category = csv.column("category");
+            final int gwrClass = csv.column("class");
+            final int official = csv.column("official");
+            final int lon = csv.column("lon");
+            final int lat = csv.column("lat");
+            while (csv.next()) {
+                // the language is required by the matching
+                final String l = csv.get(lang);
+                source.rows(csv, muniRef).gwr.add(new GwrRecord(csv.getLong(egaid), share(strings, csv.get(street)), csv.get(housenumber),
+                        share(strings, csv.get(postcode)), share(strings, csv.get(city)), share(strings, l != null ? l : ""),
+                        share(strings, csv.get(streetType)), (int) csv.getLong(category), (int) csv.getLong(gwrClass), csv.getBoolean(official),
+                        csv.getFloat(lon), csv.getFloat(lat)));
+            }
+        }
+        try (CsvReader csv = new CsvReader(new File(dir, OSM_CSV))) {
+            final int muniRef = csv.column("muni_ref");
+            final int query = csv.column("query");
+            final int[] columns = new int[OSM_COLUMNS.length];
+            for (int i = 0; i < columns.length; i++) {
+                columns[i] = csv.column(OSM_COLUMNS[i]);
+            }
+            while (csv.next()) {
+                final String q = csv.get(query);
+                final OsmQuery osmQuery;
+                try {
+                    osmQuery = OsmQuery.valueOf(q != null ? q.toUpperCase(Locale.US) : "");
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(csv.position() + " invalid query " + q);
+                }
+                OsmRecord r = new OsmRecord();
+                r.osmId = csv.getLong(columns[0]);
+                r.housenumber = csv.get(columns[1]);
+                r.housename = csv.get(columns[2]);
+                r.street = share(strings, csv.get(columns[3]));
+                r.streetDe = share(strings, csv.get(columns[4]));
+                r.streetFr = share(strings, csv.get(columns[5]));
+                r.streetIt = share(strings, csv.get(columns[6]));
+                r.streetRm = share(strings, csv.get(columns[7]));
+                r.place = share(strings, csv.get(columns[8]));
+                r.placeDe = share(strings, csv.get(columns[9]));
+                r.placeFr = share(strings, csv.get(columns[10]));
+                r.placeIt = share(strings, csv.get(columns[11]));
+                r.placeRm = share(strings, csv.get(columns[12]));
+                r.postcode = share(strings, csv.get(columns[13]));
+                r.city = share(strings, csv.get(columns[14]));
+                r.full = csv.get(columns[15]);
+                r.lon = csv.getFloat(columns[16]);
+                r.lat = csv.getFloat(columns[17]);
+                source.rows(csv, muniRef).osm(osmQuery).add(r);
+            }
+        }
+        return source;
+    }
+
+    /**
+     * Get the rows of the municipality of the current CSV record
+     *
+     * @param csv the CsvReader
+     * @param muniRef the index of the muni_ref column
+     * @return the Rows
+     * @throws IOException if the municipality isn't in municipalities.csv
+     */
+    @NotNull
+    private Rows rows(@NotNull CsvReader csv, int muniRef) throws IOException {
+        final String ref = csv.get(muniRef);
+        Rows content = ref != null ? rows.get(ref) : null;
+        if (content == null) {
+            throw new IOException(csv.position() + " unknown muni_ref " + ref);
+        }
+        return content;
+    }
+
+    /**
+     * Return a shared instance of a string
+     *
+     * @param strings the string pool
+     * @param s the string
+     * @return s or an equal string from the pool
+     */
+    @Nullable
+    private static String share(@NotNull Map<String, String> strings, @Nullable String s) {
+        if (s == null) {
+            return null;
+        }
+        String shared = strings.putIfAbsent(s, s);
+        return shared != null ? shared : s;
+    }
+}
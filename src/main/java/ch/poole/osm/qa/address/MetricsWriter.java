@@ -0,0 +1,275 @@
+package ch.poole.osm.qa.address;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import org.jetbrains.annotations.NotNull;
+
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.MunicipalityResult;
+import ch.poole.osm.qa.address.PhaseMetrics.Phase;
+
+/**
+ * Writes the PhaseMetrics of all municipalities as JSON lines and a Prometheus text format snapshot of the totals
+ *
+ * There is one JSON object per municipality, in the order they are output, and one for the steps of the run that are
+ * not per municipality at the end. The Prometheus snapshot is written to a sibling file with the additional extension
+ * .prom when the run has finished, it is replaced atomically so that it can be picked up by the textfile collector of
+ * the node exporter. Must only be used from one thread.
+ */
+class MetricsWriter implements Closeable {
+
+    static final String PROMETHEUS_EXTENSION = ".prom";
+
+    private static final String PREFIX = "gwrcompare_";
+
+    private static final double NANOS_PER_SECOND = 1E9;
+
+    private final File   file;
+    private final Writer writer;
+    private final int    slowestCount;
+
+    private final long[] nanos = new long[PhaseMetrics.PHASE_COUNT];
+    private final long[] rows  = new long[PhaseMetrics.PHASE_COUNT];
+    private final long[] bytes = new long[PhaseMetrics.PHASE_COUNT];
+    private int          municipalities;
+    private int          cached;
+
+    // the slowest municipalities with the fastest of them at the head
+    private final PriorityQueue<Slow> slowest = new PriorityQueue<>(Comparator.comparingLong((Slow s) -> s.totalNanos));
+
+    /**
+     * What is printed for one of the slowest municipalities
+     *
+     * Only this is retained and not the MunicipalityResult, so that the output data of the slowest municipalities can
+     * be garbage collected when they have been written.
+     */
+    private static final class Slow {
+        final String       name;
+        final String       ref;
+        final long         totalNanos;
+        final PhaseMetrics metrics;
+
+        /**
+         * Construct a new instance
+         *
+         * @param municipality the Municipality
+         * @param metrics its PhaseMetrics
+         */
+        Slow(@NotNull Municipality municipality, @NotNull PhaseMetrics metrics) {
+            this.name = municipality.name;
+            this.ref = municipality.ref;
+            this.totalNanos = metrics.totalNanos();
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * Create a new writer, an existing file is overwritten
+     *
+     * @param file the JSON lines output File
+     * @param slowestCount the number of municipalities in the summary
+     * @throws IOException if the file can't be opened
+     */
+    MetricsWriter(@NotNull File file, int slowestCount) throws IOException {
+        this.file = file;
+        this.slowestCount = slowestCount;
+        writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Add the metrics of a municipality
+     *
+     * @param result the MunicipalityResult, results without metrics are ignored
+     * @throws IOException if writing fails
+     */
+    void add(@NotNull MunicipalityResult result) throws IOException {
+        final PhaseMetrics metrics = result.metrics;
+        if (metrics == null) {
+            return;
+        }
+        municipalities++;
+        if (result.cached) {
+            cached++;
+        }
+        StringBuilder line = new StringBuilder("{\"municipality\":");
+        string(line, result.municipality.name);
+        line.append(",\"ref\":");
+        string(line, result.municipality.ref);
+        line.append(",\"canton\":");
+        string(line, result.canton);
+        line.append(",\"cached\":").append(result.cached);
+        line.append(",\"total_ns\":").append(metrics.totalNanos());
+        line.append(",\"phases\":{");
+        for (Phase phase : Phase.values()) {
+            final int i = phase.ordinal();
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append('"').append(phase.label).append("\":{\"ns\":").append(metrics.nanos[i]).append(",\"rows\":").append(metrics.rows[i]);
+            line.append(",\"bytes\":").append(metrics.bytes[i]).append('}');
+            nanos[i] += metrics.nanos[i];
+            rows[i] += metrics.rows[i];
+            bytes[i] = metrics.bytes[i] == PhaseMetrics.NOT_SUPPORTED ? PhaseMetrics.NOT_SUPPORTED : bytes[i] + metrics.bytes[i];
+        }
+        line.append("}}\n");
+        writer.write(line.toString());
+        if (slowestCount > 0) {
+            final long totalNanos = metrics.totalNanos();
+            if (slowest.size() < slowestCount) {
+                slowest.add(new Slow(result.municipality, metrics));
+            } else if (totalNanos > slowest.peek().totalNanos) {
+                slowest.poll();
+                slowest.add(new Slow(result.municipality, metrics));
+            }
+        }
+    }
+
+    /**
+     * Write the metrics of the run, the Prometheus snapshot and print the slowest municipalities
+     *
+     * @param referenceNanos the time in ns used to load the reference data
+     * @param densitiesNanos the time in ns used to update the stats table
+     * @param totalNanos the time in ns for the whole run
+     * @param summary where the slowest municipalities are printed to
+     * @throws IOException if writing fails
+     */
+    void finish(long referenceNanos, long densitiesNanos, long totalNanos, @NotNull PrintStream summary) throws IOException {
+        writer.write("{\"run\":{\"municipalities\":" + municipalities + ",\"cached\":" + cached + ",\"reference_ns\":" + referenceNanos
+                + ",\"densities_ns\":" + densitiesNanos + ",\"total_ns\":" + totalNanos + "}}\n");
+        writer.flush();
+        writePrometheus(referenceNanos, densitiesNanos, totalNanos);
+
+        List<Slow> results = new ArrayList<>(slowest);
+        results.sort(slowest.comparator().reversed());
+        if (results.isEmpty()) {
+            return;
+        }
+        summary.println("Slowest municipalities:");
+        for (Slow result : results) {
+            final PhaseMetrics metrics = result.metrics;
+            StringBuilder line = new StringBuilder();
+            line.append(String.format(Locale.US, "%8.3f s %s (%s)", result.totalNanos / NANOS_PER_SECOND, result.name, result.ref));
+            for (Phase phase : Phase.values()) {
+                final int i = phase.ordinal();
+                line.append(String.format(Locale.US, " %s %.3f s/%d", phase.label, metrics.nanos[i] / NANOS_PER_SECOND, metrics.rows[i]));
+            }
+            summary.println(line);
+        }
+    }
+
+    /**
+     * Write the totals in the Prometheus text format
+     *
+     * @param referenceNanos the time in ns used to load the reference data
+     * @param densitiesNanos the time in ns used to update the stats table
+     * @param totalNanos the time in ns for the whole run
+     * @throws IOException if writing fails
+     */
+    private void writePrometheus(long referenceNanos, long densitiesNanos, long totalNanos) throws IOException {
+        final File prometheus = new File(file.getPath() + PROMETHEUS_EXTENSION);
+        final File temp = new File(prometheus.getPath() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            header(out, "phase_seconds", "wall time per phase summed over all municipalities");
+            for (Phase phase : Phase.values()) {
+                sample(out, "phase_seconds{phase=\"" + phase.label + "\"}", nanos[phase.ordinal()] / NANOS_PER_SECOND);
+            }
+            header(out, "phase_rows", "rows processed per phase summed over all municipalities");
+            for (Phase phase : Phase.values()) {
+                sample(out, "phase_rows{phase=\"" + phase.label + "\"}", rows[phase.ordinal()]);
+            }
+            if (bytes[0] != PhaseMetrics.NOT_SUPPORTED) {
+                header(out, "phase_allocated_bytes", "bytes allocated per phase summed over all municipalities");
+                for (Phase phase : Phase.values()) {
+                    sample(out, "phase_allocated_bytes{phase=\"" + phase.label + "\"}", bytes[phase.ordinal()]);
+                }
+            }
+            header(out, "municipalities", "number of municipalities processed");
+            sample(out, "municipalities", municipalities);
+            header(out, "municipalities_cached", "number of municipalities with unchanged input");
+            sample(out, "municipalities_cached", cached);
+            header(out, "step_seconds", "wall time of the steps that are not per municipality");
+            sample(out, "step_seconds{step=\"reference\"}", referenceNanos / NANOS_PER_SECOND);
+            sample(out, "step_seconds{step=\"densities\"}", densitiesNanos / NANOS_PER_SECOND);
+            header(out, "run_seconds", "wall time of the run");
+            sample(out, "run_seconds", totalNanos / NANOS_PER_SECOND);
+            header(out, "last_run_timestamp_seconds", "end of the run");
+            sample(out, "last_run_timestamp_seconds", System.currentTimeMillis() / 1000);
+        }
+        Files.move(temp.toPath(), prometheus.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the HELP and TYPE lines of a gauge
+     *
+     * @param out the Writer
+     * @param name the name without prefix
+     * @param help the description
+     * @throws IOException if writing fails
+     */
+    private static void header(@NotNull Writer out, @NotNull String name, @NotNull String help) throws IOException {
+        out.write("# HELP " + PREFIX + name + " " + help + "\n");
+        out.write("# TYPE " + PREFIX + name + " gauge\n");
+    }
+
+    /**
+     * Write a sample
+     *
+     * @param out the Writer
+     * @param name the name without prefix, including the labels
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    private static void sample(@NotNull Writer out, @NotNull String name, double value) throws IOException {
+        out.write(PREFIX + name + " " + value + "\n");
+    }
+
+    /**
+     * Write a sample
+     *
+     * @param out the Writer
+     * @param name the name without prefix, including the labels
+     * @param value the value
+     * @throws IOException if writing fails
+     */
+    private static void sample(@NotNull Writer out, @NotNull String name, long value) throws IOException {
+        out.write(PREFIX + name + " " + value + "\n");
+    }
+
+    /**
+     * Append a quoted and escaped JSON string
+     *
+     * @param b the StringBuilder
+     * @param s the string
+     */
+    private static void string(@NotNull StringBuilder b, @NotNull String s) {
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                b.append('\\').append(c);
+            } else if (c < 0x20) {
+                b.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                b.append(c);
+            }
+        }
+        b.append('"');
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,88 @@
+package ch.poole.osm.qa.address;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes the same features to multiple FeatureWriters
+ */
+class MultiFeatureWriter implements FeatureWriter {
+
+    private final FeatureWriter[] writers;
+
+    /**
+     * Construct a new instance
+     *
+     * @param writers the FeatureWriters, they are closed together with this writer
+     */
+    MultiFeatureWriter(@NotNull List<FeatureWriter> writers) {
+        this.writers = writers.toArray(new FeatureWriter[0]);
+    }
+
+    @Override
+    public void beginFeature() throws IOException {
+        for (FeatureWriter writer : writers) {
+            writer.beginFeature();
+        }
+    }
+
+    @Override
+    public void property(@NotNull String key, @Nullable String value) throws IOException {
+        for (FeatureWriter writer : writers) {
+            writer.property(key, value);
+        }
+    }
+
+    @Override
+    public void property(@NotNull String key, long value) throws IOException {
+        for (FeatureWriter writer : writers) {
+            writer.property(key, value);
+        }
+    }
+
+    @Override
+    public void endFeature(float lon, float lat) throws IOException {
+        for (FeatureWriter writer : writers) {
+            writer.endFeature(lon, lat);
+        }
+    }
+
+    @Override
+    public void copy(@NotNull PreviousFeatures previous) throws IOException {
+        for (FeatureWriter writer : writers) {
+            writer.copy(previous);
+        }
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        for (FeatureWriter writer : writers) {
+            writer.checkpoint();
+        }
+    }
+
+    /**
+     * Close all writers, if closing fails the first exception is thrown after all writers have been closed
+     */
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (FeatureWriter writer : writers) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
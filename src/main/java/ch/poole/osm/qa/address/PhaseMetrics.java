@@ -0,0 +1,122 @@
+package ch.poole.osm.qa.address;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Wall time, rows and allocated bytes per processing phase of one municipality
+ *
+ * Phases are measured back to back on the thread that processes the municipality: each call of end attributes
+ * everything since the previous call, or since the instance was created, to a phase. A phase can be ended more than
+ * once, the values are added up. When the rows are streamed the OSM phases include building the keys of the rows.
+ */
+final class PhaseMetrics {
+
+    /**
+     * The phases of processing a municipality
+     */
+    enum Phase {
+        /** reading the GWR addresses */
+        GWR,
+        /** reading the OSM addresses on polygons */
+        OSM_POLYGON,
+        /** reading the OSM addresses on lines */
+        OSM_LINE,
+        /** reading the OSM addresses on nodes */
+        OSM_POINT,
+        /** building the indices and matching */
+        MATCH,
+        /** writing the per municipality output files */
+        WRITE;
+
+        final String label = name().toLowerCase(Locale.US);
+    }
+
+    static final int PHASE_COUNT = Phase.values().length;
+
+    /**
+     * Value of allocatedBytes if the JVM doesn't support measuring it
+     */
+    static final long NOT_SUPPORTED = -1;
+
+    private static final com.sun.management.ThreadMXBean ALLOCATION = allocationBean();
+
+    final long[] nanos = new long[PHASE_COUNT];
+    final long[] rows  = new long[PHASE_COUNT];
+    final long[] bytes = new long[PHASE_COUNT];
+
+    private long start;
+    private long startBytes;
+
+    /**
+     * Construct a new instance and start measuring
+     */
+    PhaseMetrics() {
+        start = System.nanoTime();
+        startBytes = allocatedBytes();
+    }
+
+    /**
+     * Get the bean that measures the allocations of a thread
+     *
+     * @return the bean or null if not supported
+     */
+    @Nullable
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean allocation = (com.sun.management.ThreadMXBean) bean;
+            if (allocation.isThreadAllocatedMemorySupported() && allocation.isThreadAllocatedMemoryEnabled()) {
+                return allocation;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of bytes allocated by the current thread so far or NOT_SUPPORTED
+     */
+    static long allocatedBytes() {
+        return ALLOCATION != null ? ALLOCATION.getCurrentThreadAllocatedBytes() : NOT_SUPPORTED;
+    }
+
+    /**
+     * Start measuring again on the current thread, the time since the last phase ended isn't attributed to any phase
+     */
+    void restart() {
+        start = System.nanoTime();
+        startBytes = allocatedBytes();
+    }
+
+    /**
+     * End a phase and start the next one
+     *
+     * @param phase the phase that ended
+     * @param count the number of rows processed in the phase
+     */
+    void end(@NotNull Phase phase, long count) {
+        final long now = System.nanoTime();
+        final long nowBytes = allocatedBytes();
+        final int i = phase.ordinal();
+        nanos[i] += now - start;
+        rows[i] += count;
+        bytes[i] = nowBytes == NOT_SUPPORTED ? NOT_SUPPORTED : bytes[i] + nowBytes - startBytes;
+        start = now;
+        startBytes = nowBytes;
+    }
+
+    /**
+     * @return the wall time of all phases in ns
+     */
+    long totalNanos() {
+        long total = 0;
+        for (long n : nanos) {
+            total += n;
+        }
+        return total;
+    }
+}
@@ -0,0 +1,162 @@
+package ch.poole.osm.qa.address;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.AddressSource.OsmQuery;
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.OsmRows;
+
+/**
+ * Reads the rows of the following municipalities on a background thread while the current one is processed
+ *
+ * The municipalities have to be requested in the order of the list the reader was created with. At most depth
+ * municipalities are held in memory ahead of the current one, the background thread blocks until there is room.
+ */
+class PrefetchingReader implements AddressSource.Reader {
+
+    private final AddressSource.Reader      input;
+    private final List<Municipality>        municipalities;
+    private final BlockingQueue<Prefetched> queue;
+    private final Thread                    thread;
+
+    private Prefetched current;
+
+    /**
+     * The rows of one municipality or the exception that stopped reading
+     */
+    private static final class Prefetched {
+        final Municipality             municipality;
+        final MemoryAddressSource.Rows rows;
+        final AddressSource.Matched    matched;
+        final Exception                error;
+
+        /**
+         * Construct a new instance
+         *
+         * @param municipality the Municipality
+         * @param rows the rows or null if reading failed
+         * @param matched the pairs the input has already matched or null
+         * @param error the exception or null
+         */
+        Prefetched(@Nullable Municipality municipality, @Nullable MemoryAddressSource.Rows rows, @Nullable AddressSource.Matched matched,
+                @Nullable Exception error) {
+            this.municipality = municipality;
+            this.rows = rows;
+            this.matched = matched;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Create a new reader and start reading
+     *
+     * @param input the Reader the rows are read from, it is closed together with this reader
+     * @param municipalities the municipalities in the order they will be requested
+     * @param depth the maximum number of municipalities read ahead
+     */
+    PrefetchingReader(@NotNull AddressSource.Reader input, @NotNull List<Municipality> municipalities, int depth) {
+        this.input = input;
+        this.municipalities = municipalities;
+        queue = new ArrayBlockingQueue<>(depth);
+        thread = new Thread(this::fetch, "fetch");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Read all municipalities, runs on the background thread
+     */
+    private void fetch() {
+        try {
+            for (Municipality m : municipalities) {
+                final MemoryAddressSource.Rows rows = read(m);
+                queue.put(new Prefetched(m, rows, input.matched(), null));
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (SQLException | IOException | RuntimeException e) {
+            try {
+                queue.put(new Prefetched(null, null, null, e));
+            } catch (InterruptedException e1) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Read and copy all rows of a municipality
+     *
+     * @param municipality the Municipality
+     * @return the Rows
+     * @throws SQLException
+     * @throws IOException
+     */
+    @NotNull
+    private MemoryAddressSource.Rows read(@NotNull Municipality municipality) throws SQLException, IOException {
+        final MemoryAddressSource.Rows rows = new MemoryAddressSource.Rows();
+        rows.gwr.addAll(input.gwr(municipality));
+        for (OsmQuery query : OsmQuery.values()) {
+            rows.osm(query).addAll(MemoryAddressSource.readAll(input.osm(municipality, query)));
+        }
+        input.endMunicipality();
+        return rows;
+    }
+
+    @Override
+    @NotNull
+    public List<GwrRecord> gwr(@NotNull Municipality municipality) throws SQLException, IOException {
+        try {
+            current = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for municipality " + municipality.ref, e);
+        }
+        final Exception error = current.error;
+        if (error instanceof SQLException) {
+            throw (SQLException) error;
+        }
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        if (error != null) {
+            throw (RuntimeException) error;
+        }
+        if (current.municipality != municipality) {
+            throw new IllegalStateException("Expected municipality " + current.municipality.ref + " got " + municipality.ref);
+        }
+        return current.rows.gwr;
+    }
+
+    @Override
+    @Nullable
+    public AddressSource.Matched matched() {
+        return current.matched;
+    }
+
+    @Override
+    @NotNull
+    public OsmRows osm(@NotNull Municipality municipality, @NotNull OsmQuery query) {
+        return MemoryAddressSource.rows(current.rows.osm(query));
+    }
+
+    @Override
+    public void close() throws SQLException, IOException {
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        current = null;
+        queue.clear();
+        input.close();
+    }
+}
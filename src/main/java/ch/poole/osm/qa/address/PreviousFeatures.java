@@ -0,0 +1,35 @@
+package ch.poole.osm.qa.address;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.GWRcompare.GeoJsonOut;
+
+/**
+ * The already written features of a municipality from a previous run
+ *
+ * Each FeatureWriter copies the features from the output in its own format.
+ */
+class PreviousFeatures implements GeoJsonOut {
+    final String geoJson;
+    final File   flatGeobuf;
+
+    /**
+     * Construct a new instance
+     *
+     * @param geoJson the GeoJson features separated by GeoJsonWriter.SEPARATOR without the final line end
+     * @param flatGeobuf the FlatGeobuf file or null if there is none
+     */
+    PreviousFeatures(@NotNull String geoJson, @Nullable File flatGeobuf) {
+        this.geoJson = geoJson;
+        this.flatGeobuf = flatGeobuf;
+    }
+
+    @Override
+    public void write(@NotNull FeatureWriter writer) throws IOException {
+        writer.copy(this);
+    }
+}
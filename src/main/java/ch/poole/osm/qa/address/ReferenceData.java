@@ -0,0 +1,328 @@
+package ch.poole.osm.qa.address;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+
+/**
+ * Reference data that doesn't change during a run: the municipality boundaries, the canton of each municipality and
+ * the type of each GWR street
+ *
+ * Each is loaded with one query at startup. Optionally the data is stored in a snapshot file together with a stamp of
+ * the source tables, as long as the stamp doesn't change later runs use the snapshot instead of querying the tables.
+ */
+class ReferenceData {
+
+    private static final int      SNAPSHOT_VERSION = 1;
+    private static final String[] SOURCE_TABLES    = { "buffered_boundaries", "esid_type", "gwr_addresses" };
+    private static final String   UNKNOWN_CANTON   = "?";
+
+    // the statistics counters change with every modification, the file node with truncate and similar operations
+    private static final String STAMP_QUERY = "select c.relname, c.oid, c.relfilenode, s.n_tup_ins, s.n_tup_upd, s.n_tup_del "
+            + "from pg_class c join pg_stat_user_tables s on s.relid = c.oid where c.relname in (?,?,?) order by c.relname, c.oid";
+
+    private final List<Municipality>   municipalities;
+    private final Map<Integer, String> cantons;
+    private final Map<Long, String>    streetTypes;
+
+    /**
+     * Construct a new instance
+     *
+     * @param municipalities the municipalities ordered by name
+     * @param cantons the canton by BFS number
+     * @param streetTypes the street type by ESID
+     */
+    private ReferenceData(@NotNull List<Municipality> municipalities, @NotNull Map<Integer, String> cantons, @NotNull Map<Long, String> streetTypes) {
+        this.municipalities = municipalities;
+        this.cantons = cantons;
+        this.streetTypes = streetTypes;
+    }
+
+    /**
+     * Create an instance from already known municipalities and cantons, without street types
+     *
+     * @param municipalities the municipalities ordered by name
+     * @param cantons the canton by BFS number
+     * @return a ReferenceData instance
+     */
+    @NotNull
+    static ReferenceData of(@NotNull List<Municipality> municipalities, @NotNull Map<Integer, String> cantons) {
+        return new ReferenceData(municipalities, cantons, Collections.emptyMap());
+    }
+
+    /**
+     * Load the reference data
+     *
+     * @param conn the database connection
+     * @param snapshot if not null the snapshot file to use and update
+     * @return a ReferenceData instance
+     * @throws SQLException
+     * @throws IOException if the snapshot can't be written
+     */
+    @NotNull
+    static ReferenceData load(@NotNull Connection conn, @Nullable File snapshot) throws SQLException, IOException {
+        final String stamp = snapshot != null ? stamp(conn) : null;
+        if (stamp != null && snapshot.exists()) {
+            try {
+                ReferenceData data = read(snapshot, stamp);
+                if (data != null) {
+                    return data;
+                }
+            } catch (IOException e) {
+                System.err.println("Ignoring reference data snapshot " + e.getMessage());
+            }
+        }
+        ReferenceData data = query(conn);
+        if (stamp != null) {
+            data.write(snapshot, stamp);
+        }
+        return data;
+    }
+
+    /**
+     * Get the municipalities to process
+     *
+     * @param name the name of a single municipality or null for all
+     * @return a List of Municipality ordered by name
+     */
+    @NotNull
+    List<Municipality> municipalities(@Nullable String name) {
+        if (name == null) {
+            return municipalities;
+        }
+        List<Municipality> result = new ArrayList<>();
+        for (Municipality m : municipalities) {
+            if (name.equals(m.name)) {
+                result.add(m);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the canton of a municipality
+     *
+     * @param muniRef the BFS number
+     * @return the canton abbreviation or "?" if unknown
+     */
+    @NotNull
+    String canton(@NotNull String muniRef) {
+        String canton = cantons.get(Integer.parseInt(muniRef));
+        return canton != null ? canton : UNKNOWN_CANTON;
+    }
+
+    /**
+     * Check if a GWR street has an entry in the street type table
+     *
+     * @param esid the ESID of the street
+     * @return true if the street is known
+     */
+    boolean isKnownStreet(long esid) {
+        return streetTypes.containsKey(esid);
+    }
+
+    /**
+     * Get the type of a GWR street
+     *
+     * @param esid the ESID of the street
+     * @return the type or null if the street is unknown
+     */
+    @Nullable
+    String streetType(long esid) {
+        return streetTypes.get(esid);
+    }
+
+    /**
+     * Get a stamp that changes when the source tables are modified
+     *
+     * @param conn the database connection
+     * @return the stamp or null if one of the tables has no statistics, for example because it is a view
+     * @throws SQLException
+     */
+    @Nullable
+    private static String stamp(@NotNull Connection conn) throws SQLException {
+        StringBuilder stamp = new StringBuilder();
+        int tables = 0;
+        try (PreparedStatement query = conn.prepareStatement(STAMP_QUERY)) {
+            for (int i = 0; i < SOURCE_TABLES.length; i++) {
+                query.setString(i + 1, SOURCE_TABLES[i]);
+            }
+            try (ResultSet rs = query.executeQuery()) {
+                while (rs.next()) {
+                    tables++;
+                    for (int i = 1; i <= 6; i++) {
+                        stamp.append(rs.getString(i)).append(' ');
+                    }
+                }
+            }
+        }
+        return tables == SOURCE_TABLES.length ? stamp.toString() : null;
+    }
+
+    /**
+     * Query the source tables
+     *
+     * @param conn the database connection
+     * @return a ReferenceData instance
+     * @throws SQLException
+     */
+    @NotNull
+    private static ReferenceData query(@NotNull Connection conn) throws SQLException {
+        List<Municipality> municipalities = new ArrayList<>();
+        Map<Integer, String> cantons = new HashMap<>();
+        Map<Long, String> streetTypes = new HashMap<>();
+        Map<String, String> strings = new HashMap<>();
+        try (Statement stmt = conn.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("select distinct osm_id,name,muni_ref from buffered_boundaries b order by name")) {
+                while (rs.next()) {
+                    municipalities.add(new Municipality(rs.getInt(1), rs.getString(2), rs.getString(3)));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("select distinct gdenr, gdekt from gwr_addresses")) {
+                while (rs.next()) {
+                    cantons.putIfAbsent(rs.getInt(1), share(strings, rs.getString(2)));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("select esid, strtype from esid_type")) {
+                while (rs.next()) {
+                    streetTypes.put(rs.getLong(1), share(strings, rs.getString(2)));
+                }
+            }
+        }
+        return new ReferenceData(Collections.unmodifiableList(municipalities), cantons, streetTypes);
+    }
+
+    /**
+     * Read a snapshot
+     *
+     * @param snapshot the snapshot file
+     * @param stamp the current stamp of the source tables
+     * @return a ReferenceData instance or null if the snapshot is outdated
+     * @throws IOException if the file can't be read
+     */
+    @Nullable
+    private static ReferenceData read(@NotNull File snapshot, @NotNull String stamp) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_VERSION || !stamp.equals(in.readUTF())) {
+                return null;
+            }
+            Map<String, String> strings = new HashMap<>();
+            int count = in.readInt();
+            List<Municipality> municipalities = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                municipalities.add(new Municipality(in.readLong(), in.readUTF(), in.readUTF()));
+            }
+            count = in.readInt();
+            Map<Integer, String> cantons = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                cantons.put(in.readInt(), share(strings, readNullable(in)));
+            }
+            count = in.readInt();
+            Map<Long, String> streetTypes = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                streetTypes.put(in.readLong(), share(strings, readNullable(in)));
+            }
+            return new ReferenceData(Collections.unmodifiableList(municipalities), cantons, streetTypes);
+        }
+    }
+
+    /**
+     * Write a snapshot, the file is replaced only after it has been written completely
+     *
+     * @param snapshot the snapshot file
+     * @param stamp the stamp of the source tables
+     * @throws IOException if the file can't be written
+     */
+    private void write(@NotNull File snapshot, @NotNull String stamp) throws IOException {
+        File dir = snapshot.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        File temp = new File(snapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeUTF(stamp);
+            out.writeInt(municipalities.size());
+            for (Municipality m : municipalities) {
+                out.writeLong(m.boundaryId);
+                out.writeUTF(m.name);
+                out.writeUTF(m.ref);
+            }
+            out.writeInt(cantons.size());
+            for (Map.Entry<Integer, String> entry : cantons.entrySet()) {
+                out.writeInt(entry.getKey());
+                writeNullable(out, entry.getValue());
+            }
+            out.writeInt(streetTypes.size());
+            for (Map.Entry<Long, String> entry : streetTypes.entrySet()) {
+                out.writeLong(entry.getKey());
+                writeNullable(out, entry.getValue());
+            }
+        }
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Write a string that may be null
+     *
+     * @param out the output
+     * @param s the string or null
+     * @throws IOException if writing fails
+     */
+    private static void writeNullable(@NotNull DataOutputStream out, @Nullable String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    /**
+     * Read a string written by writeNullable
+     *
+     * @param in the input
+     * @return the string or null
+     * @throws IOException if reading fails
+     */
+    @Nullable
+    private static String readNullable(@NotNull DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Return a shared instance of a string
+     *
+     * @param strings the string pool
+     * @param s the string
+     * @return s or an equal string from the pool
+     */
+    @Nullable
+    private static String share(@NotNull Map<String, String> strings, @Nullable String s) {
+        if (s == null) {
+            return null;
+        }
+        String shared = strings.putIfAbsent(s, s);
+        return shared != null ? shared : s;
+    }
+}
@@ -0,0 +1,273 @@
+package ch.poole.osm.qa.address;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.OsmRecord;
+import ch.poole.osm.qa.address.GWRcompare.OsmRows;
+
+/**
+ * Reads a snapshot written by SnapshotWriter
+ *
+ * Only the index is read when opening, the block of a municipality is memory mapped when it is requested.
+ */
+class SnapshotReader implements AddressSource {
+
+    private final FileChannel          channel;
+    private final List<Municipality>   municipalities = new ArrayList<>();
+    private final Map<Integer, String> cantons        = new HashMap<>();
+    private final Map<String, long[]>  blocks         = new HashMap<>();
+
+    /**
+     * Open a snapshot and read its index
+     *
+     * @param file the snapshot File
+     * @throws IOException if the file can't be read or isn't a snapshot
+     */
+    SnapshotReader(@NotNull File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            ByteBuffer header = read(0, SnapshotWriter.MAGIC.length + 4);
+            byte[] magic = new byte[SnapshotWriter.MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, SnapshotWriter.MAGIC) || header.order(ByteOrder.LITTLE_ENDIAN).getInt() != SnapshotWriter.VERSION) {
+                throw new IOException(file + " is not a snapshot or has an unsupported version");
+            }
+            final long indexOffset = read(size - 8, 8).getLong();
+            ByteBuffer index = read(indexOffset, size - 8 - indexOffset);
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()))) {
+                final int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    Municipality m = new Municipality(in.readLong(), in.readUTF(), in.readUTF());
+                    municipalities.add(m);
+                    cantons.put(Integer.parseInt(m.ref), in.readUTF());
+                    blocks.put(m.ref, new long[] { in.readLong(), in.readInt() });
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Read part of the file
+     *
+     * @param position the start position
+     * @param length the number of bytes
+     * @return a ByteBuffer with the content
+     * @throws IOException if reading fails
+     */
+    @NotNull
+    private ByteBuffer read(long position, long length) throws IOException {
+        if (position < 0 || length < 0 || length > Integer.MAX_VALUE) {
+            throw new IOException("Invalid snapshot");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of snapshot");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Get the reference data of the municipalities in the snapshot
+     *
+     * @return a ReferenceData instance, the GWR records in the snapshot already have their street type
+     */
+    @Override
+    @NotNull
+    public ReferenceData referenceData() {
+        return ReferenceData.of(Collections.unmodifiableList(municipalities), cantons);
+    }
+
+    /**
+     * Get the block of a municipality
+     *
+     * @param muniRef the BFS number
+     * @return the Block or null if the municipality isn't in the snapshot
+     * @throws IOException if mapping the file fails
+     */
+    @Nullable
+    Block block(@NotNull String muniRef) throws IOException {
+        long[] block = blocks.get(muniRef);
+        if (block == null) {
+            return null;
+        }
+        return new Block(channel.map(FileChannel.MapMode.READ_ONLY, block[0], block[1]).order(ByteOrder.LITTLE_ENDIAN));
+    }
+
+    @Override
+    @NotNull
+    public Reader newReader() {
+        return new Reader() {
+            private Block current;
+
+            @Override
+            @NotNull
+            public List<GwrRecord> gwr(@NotNull Municipality municipality) throws IOException {
+                current = block(municipality.ref);
+                if (current == null) {
+                    throw new IOException("Municipality " + municipality.ref + " is not in the snapshot");
+                }
+                return current.gwr();
+            }
+
+            @Override
+            @NotNull
+            public OsmRows osm(@NotNull Municipality municipality, @NotNull OsmQuery query) {
+                return current.osm();
+            }
+
+            @Override
+            public void close() {
+                current = null;
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * The input rows of one municipality, the sections have to be read in order
+     */
+    static final class Block {
+        private final ByteBuffer   buffer;
+        private final List<String> strings = new ArrayList<>();
+
+        /**
+         * Construct a new instance
+         *
+         * @param buffer the content of the block
+         */
+        private Block(@NotNull ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Read the GWR section
+         *
+         * @return a List of GwrRecord
+         */
+        @NotNull
+        List<GwrRecord> gwr() {
+            final int count = buffer.getInt();
+            List<GwrRecord> result = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                result.add(new GwrRecord(buffer.getLong(), string(), string(), string(), string(), string(), string(), buffer.getInt(), buffer.getInt(),
+                        buffer.get() != 0, buffer.getFloat(), buffer.getFloat()));
+            }
+            return result;
+        }
+
+        /**
+         * Get the rows of the next OSM section
+         *
+         * @return OsmRows, closing them skips remaining rows
+         */
+        @NotNull
+        OsmRows osm() {
+            final int count = buffer.getInt();
+            return new OsmRows() {
+                int remaining = count;
+
+                @Override
+                public boolean next(@NotNull OsmRecord r) {
+                    if (remaining == 0) {
+                        return false;
+                    }
+                    remaining--;
+                    r.osmId = buffer.getLong();
+                    r.housenumber = string();
+                    r.housename = string();
+                    r.street = string();
+                    r.streetDe = string();
+                    r.streetFr = string();
+                    r.streetIt = string();
+                    r.streetRm = string();
+                    r.place = string();
+                    r.placeDe = string();
+                    r.placeFr = string();
+                    r.placeIt = string();
+                    r.placeRm = string();
+                    r.postcode = string();
+                    r.city = string();
+                    r.full = string();
+                    r.lon = buffer.getFloat();
+                    r.lat = buffer.getFloat();
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                    OsmRecord skip = new OsmRecord();
+                    while (next(skip)) {
+                        // skip
+                    }
+                }
+            };
+        }
+
+        /**
+         * Read a string
+         *
+         * @return the string or null
+         */
+        @Nullable
+        private String string() {
+            final int code = varint();
+            if (code == SnapshotWriter.NULL_STRING) {
+                return null;
+            }
+            if (code != SnapshotWriter.NEW_STRING) {
+                return strings.get(code - SnapshotWriter.STRING_REF);
+            }
+            byte[] bytes = new byte[varint()];
+            buffer.get(bytes);
+            String s = new String(bytes, StandardCharsets.UTF_8);
+            strings.add(s);
+            return s;
+        }
+
+        /**
+         * Read an int written in 7 bit groups
+         *
+         * @return the value
+         */
+        private int varint() {
+            int value = 0;
+            for (int shift = 0;; shift += 7) {
+                final byte b = buffer.get();
+                value |= (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package ch.poole.osm.qa.address;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.OsmRecord;
+
+/**
+ * Writes the rows returned by the GWR and OSM address queries to a snapshot file that can be replayed without a
+ * database
+ *
+ * The file starts with MAGIC and VERSION followed by one block per municipality in the order they were completed, the
+ * index and finally the offset of the index as a long. The index is written with a DataOutputStream and lists the
+ * municipalities with their boundary id, name, BFS number, canton and the offset and length of their block. A block
+ * contains the GWR records and then the OSM rows of the polygon, line and point queries, each section prefixed with
+ * its row count. Numbers in blocks are little endian, strings are encoded once per block and later referenced by
+ * number.
+ *
+ * Blocks are built in memory by the workers and appended to the file when complete.
+ */
+class SnapshotWriter implements Closeable {
+
+    static final byte[] MAGIC   = "GWRSNAP\0".getBytes(StandardCharsets.US_ASCII);
+    static final int    VERSION = 1;
+
+    // string encoding
+    static final int NULL_STRING = 0;
+    static final int NEW_STRING  = 1;
+    static final int STRING_REF  = 2;
+
+    private final FileChannel         channel;
+    private final List<Municipality>  municipalities;
+    private final ReferenceData       reference;
+    private final Map<String, long[]> blocks = new HashMap<>();
+
+    /**
+     * Create a new snapshot file, an existing file is overwritten
+     *
+     * @param file the snapshot File
+     * @param municipalities the municipalities in the order they should be replayed
+     * @param reference the ReferenceData for the cantons
+     * @throws IOException if the file can't be created
+     */
+    SnapshotWriter(@NotNull File file, @NotNull List<Municipality> municipalities, @NotNull ReferenceData reference) throws IOException {
+        this.municipalities = municipalities;
+        this.reference = reference;
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        ByteBuffer header = ByteBuffer.allocate(MAGIC.length + 4).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).putInt(VERSION).flip();
+        write(header);
+    }
+
+    /**
+     * @return a new, empty Block
+     */
+    @NotNull
+    Block newBlock() {
+        return new Block();
+    }
+
+    /**
+     * Append a complete block to the file
+     *
+     * @param muniRef the BFS number of the municipality
+     * @param block the Block
+     * @throws IOException if writing fails
+     */
+    synchronized void append(@NotNull String muniRef, @NotNull Block block) throws IOException {
+        final long offset = channel.position();
+        ByteBuffer buffer = block.buffer.duplicate();
+        buffer.flip();
+        final int length = buffer.remaining();
+        write(buffer);
+        blocks.put(muniRef, new long[] { offset, length });
+    }
+
+    /**
+     * Write a buffer completely
+     *
+     * @param buffer the buffer
+     * @throws IOException if writing fails
+     */
+    private void write(@NotNull ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Write the index and close the file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            final long indexOffset = channel.position();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream index = new DataOutputStream(bytes)) {
+                int count = 0;
+                for (Municipality m : municipalities) {
+                    if (blocks.containsKey(m.ref)) {
+                        count++;
+                    }
+                }
+                index.writeInt(count);
+                for (Municipality m : municipalities) {
+                    long[] block = blocks.get(m.ref);
+                    if (block != null) {
+                        index.writeLong(m.boundaryId);
+                        index.writeUTF(m.name);
+                        index.writeUTF(m.ref);
+                        index.writeUTF(reference.canton(m.ref));
+                        index.writeLong(block[0]);
+                        index.writeInt((int) block[1]);
+                    }
+                }
+                index.writeLong(indexOffset);
+            }
+            write(ByteBuffer.wrap(bytes.toByteArray()));
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * The input rows of one municipality
+     */
+    static final class Block {
+        private ByteBuffer                 buffer  = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        private final Map<String, Integer> strings = new HashMap<>();
+        private int                        countPosition;
+        private int                        count;
+
+        /**
+         * Private constructor
+         */
+        private Block() {
+        }
+
+        /**
+         * Add the GWR section
+         *
+         * @param records the GWR records
+         */
+        void gwr(@NotNull List<GwrRecord> records) {
+            ensure(4);
+            buffer.putInt(records.size());
+            for (GwrRecord r : records) {
+                ensure(8);
+                buffer.putLong(r.addressId);
+                string(r.street);
+                string(r.housenumber);
+                string(r.postcode);
+                string(r.city);
+                string(r.lang);
+                string(r.streetType);
+                ensure(17);
+                buffer.putInt(r.category);
+                buffer.putInt(r.gwrClass);
+                buffer.put((byte) (r.official ? 1 : 0));
+                buffer.putFloat(r.lon);
+                buffer.putFloat(r.lat);
+            }
+        }
+
+        /**
+         * Start an OSM section
+         */
+        void beginOsm() {
+            ensure(4);
+            countPosition = buffer.position();
+            buffer.putInt(0);
+            count = 0;
+        }
+
+        /**
+         * Add a row to the current OSM section
+         *
+         * @param r the OsmRecord
+         */
+        void osm(@NotNull OsmRecord r) {
+            ensure(8);
+            buffer.putLong(r.osmId);
+            string(r.housenumber);
+            string(r.housename);
+            string(r.street);
+            string(r.streetDe);
+            string(r.streetFr);
+            string(r.streetIt);
+            string(r.streetRm);
+            string(r.place);
+            string(r.placeDe);
+            string(r.placeFr);
+            string(r.placeIt);
+            string(r.placeRm);
+            string(r.postcode);
+            string(r.city);
+            string(r.full);
+            ensure(8);
+            buffer.putFloat(r.lon);
+            buffer.putFloat(r.lat);
+            count++;
+        }
+
+        /**
+         * Terminate the current OSM section
+         */
+        void endOsm() {
+            buffer.putInt(countPosition, count);
+        }
+
+        /**
+         * Write a string, or a reference if it has already been written in this block
+         *
+         * @param s the string or null
+         */
+        private void string(@Nullable String s) {
+            if (s == null) {
+                varint(NULL_STRING);
+                return;
+            }
+            Integer id = strings.get(s);
+            if (id != null) {
+                varint(STRING_REF + id);
+                return;
+            }
+            strings.put(s, strings.size());
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(NEW_STRING);
+            varint(bytes.length);
+            ensure(bytes.length);
+            buffer.put(bytes);
+        }
+
+        /**
+         * Write a non-negative int in 7 bit groups
+         *
+         * @param value the value
+         */
+        private void varint(int value) {
+            ensure(5);
+            while ((value & ~0x7f) != 0) {
+                buffer.put((byte) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        /**
+         * Make sure that there is room for a number of bytes
+         *
+         * @param count the number of bytes
+         */
+        private void ensure(int count) {
+            if (buffer.remaining() < count) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + count)).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.flip();
+                larger.put(buffer);
+                buffer = larger;
+            }
+        }
+    }
+}
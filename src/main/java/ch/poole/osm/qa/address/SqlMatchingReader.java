@@ -0,0 +1,212 @@
+package ch.poole.osm.qa.address;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.AddressSource.OsmQuery;
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.OsmRows;
+
+/**
+ * Reads the addresses from the PostGIS database after matching the unambiguous ones in the database
+ *
+ * The rows of a municipality are copied to temporary tables together with keys that are normalised the same way as
+ * those of the KeyEngine: case folded names and house numbers, OSM house numbers without white space. A GWR address is
+ * matched in the database if it is official, has a street name, is the only GWR address with its EGAID and its key,
+ * and exactly one OSM address could have the key with any of its names and numbers. That OSM address must have a
+ * single house number, no language specific names, the same postcode and city, a place if the street has no street
+ * geometry and must be closer than the matching distance. The Java matcher matches such a pair without a warning and neither address can influence
+ * the matching of any other, so only the counts of the pairs are returned and the remaining rows are read as usual.
+ *
+ * The names are folded with the lower function of the database, which needs a UTF-8 ctype to fold like Java. Distances
+ * are calculated with the same haversine formula, pairs that are almost at the limit are left to Java so that rounding
+ * differences don't matter.
+ */
+class SqlMatchingReader implements AddressSource.Reader {
+
+    // pairs closer than this to the matching distance are left to Java
+    private static final double DISTANCE_MARGIN = 1;
+
+    // the characters that Java considers to be white space in a regular expression
+    private static final String WHITESPACE = "[ \\t\\n\\v\\f\\r]";
+
+    private static final String CREATE_SEQUENCE = "create temporary sequence qa_rid";
+
+    private static final String CREATE_GWR = "create temporary table qa_gwr as select 0::bigint as rid, EGID, EGAID, ESID, GDENR, GDENAME, STRNAME, DEINR, PLZ4, PLZZ, PLZNAME, STRSP, gkat, gklas, doffadr, "
+            + "ST_X(loc) as lon, ST_Y(loc) as lat, ''::text as name_key, ''::text as number_key, false as street_geom from gwr_addresses with no data";
+
+    private static final String CREATE_OSM = "create temporary table qa_osm as select 0::bigint as rid, 0 as kind, osm_id as osmid, \"addr:housenumber\" as housenumber, \"addr:housename\" as housename, "
+            + "tags->'addr:street' as street, tags->'addr:street:de' as streetde, tags->'addr:street:fr' as streetfr, tags->'addr:street:it' as streetit, tags->'addr:street:rm' as streetrm, "
+            + "tags->'addr:place' as aplace, tags->'addr:place:de' as placede, tags->'addr:place:fr' as placefr, tags->'addr:place:it' as placeit, tags->'addr:place:rm' as placerm, "
+            + "tags->'addr:postcode' as postcode, tags->'addr:city' as city, tags->'addr:full' as afull, 0::float8 as lon, 0::float8 as lat, ''::text as name_key, ''::text as number_key "
+            + "from planet_osm_point with no data";
+
+    private static final String CREATE_OSM_KEY = "create temporary table qa_osm_key (rid bigint, name_key text, number_key text)";
+
+    private static final String CREATE_MATCH = "create temporary table qa_match (gwr_rid bigint, osm_rid bigint, kind integer, ancillary boolean)";
+
+    private static final String[] CREATE_INDICES = { "create index on qa_gwr (name_key, number_key)", "create index on qa_gwr (egaid)",
+            "create index on qa_osm (name_key, number_key)", "create index on qa_osm_key (name_key, number_key)", "create index on qa_match (gwr_rid)",
+            "create index on qa_match (osm_rid)" };
+
+    private static final String TRUNCATE = "truncate qa_gwr, qa_osm, qa_osm_key, qa_match";
+
+    private static final String[] ANALYZE = { "analyze qa_gwr", "analyze qa_osm", "analyze qa_osm_key" };
+
+    // the street type of a street with more than one entry is only known if they are all the same
+    private static final String INSERT_GWR = "insert into qa_gwr select nextval('qa_rid'), q.*, lower(coalesce(q.strname, 'null')), lower(coalesce(q.deinr, 'null')), "
+            + "(select bool_and(t.strtype is not distinct from '" + GWRcompare.SWISSTOPO_STREET_GEOM + "') from esid_type t where t.esid = q.esid) from ("
+            + JdbcAddressSource.GWR_QUERY + ") q where exists (select 1 from esid_type t where t.esid = q.esid)";
+
+    // only addresses with a single number and without language specific names get a key
+    private static final String SINGLE = "q.housenumber is not null and q.housenumber !~ '[;,]' "
+            + "and coalesce(q.streetde, q.streetfr, q.streetit, q.streetrm, q.placede, q.placefr, q.placeit, q.placerm) is null";
+
+    private static final String INSERT_OSM = "insert into qa_osm select nextval('qa_rid'), %d, q.*, case when " + SINGLE
+            + " then lower(coalesce(q.street, q.aplace, 'null')) end, case when " + SINGLE + " then lower(regexp_replace(q.housenumber, '" + WHITESPACE
+            + "', '', 'g')) end from (%s) q";
+
+    // all keys an OSM address could end up with depending on the GWR addresses
+    private static final String INSERT_OSM_KEY = "insert into qa_osm_key select distinct o.rid, lower(n.name), lower(h.number) from qa_osm o "
+            + "cross join lateral unnest(array[o.street, o.streetde, o.streetfr, o.streetit, o.streetrm, o.aplace, o.placede, o.placefr, o.placeit, o.placerm, "
+            + "case when o.street is null and o.aplace is null then 'null' end]) as n(name) "
+            + "cross join lateral (select regexp_replace(s.part, '" + WHITESPACE + "', '', 'g') from regexp_split_to_table(o.housenumber, '[;,]') as s(part) "
+            + "union all select coalesce(o.housename, 'null') where o.housenumber is null) as h(number) where n.name is not null";
+
+    private static final String G_LON = "g.lon::real::float8";
+    private static final String G_LAT = "g.lat::real::float8";
+    private static final String O_LON = "o.lon::real::float8";
+    private static final String O_LAT = "o.lat::real::float8";
+
+    private static final String INSERT_MATCH = "insert into qa_match select g.rid, o.rid, o.kind, "
+            + "coalesce(g.gkat::integer, 0) in (1010, 1080) or coalesce(g.gklas::integer, 0) in (1242, 1252) or g.deinr ~ '^[^.]+[.,]' "
+            + "from qa_gwr g join qa_osm o on o.name_key = g.name_key and o.number_key = g.number_key "
+            + "cross join lateral (select sin(radians(" + O_LAT + " - " + G_LAT + ") / 2) as dlat, sin(radians(" + O_LON + " - " + G_LON + ") / 2) as dlon) s "
+            + "cross join lateral (select s.dlat * s.dlat + s.dlon * s.dlon * cos(radians(" + G_LAT + ")) * cos(radians(" + O_LAT + ")) as a) h "
+            + "where g.strname is not null and g.deinr !~ '[\\n\\r]' and g.doffadr::text in ('true', 't', '1') "
+            + "and (select count(*) from qa_gwr e where e.egaid = g.egaid) = 1 "
+            + "and (select count(*) from qa_gwr d where d.name_key = g.name_key and d.number_key = g.number_key) = 1 "
+            + "and (select count(distinct k.rid) from qa_osm_key k where k.name_key = g.name_key and k.number_key = g.number_key) = 1 "
+            + "and g.plz4::text is not distinct from o.postcode and g.plzname::text is not distinct from o.city and (g.street_geom or o.aplace is not null) "
+            + "and " + GWRcompare.EARTH_RADIUS + " * 2 * atan2(sqrt(h.a), sqrt(1 - h.a)) <= ?";
+
+    private static final String MATCH_COUNTS = "select kind, ancillary, count(*) from qa_match group by kind, ancillary";
+
+    private static final String GWR_QUERY = "select egid, egaid, esid, gdenr, gdename, strname, deinr, plz4, plzz, plzname, strsp, gkat, gklas, doffadr, lon, lat from qa_gwr g "
+            + "where not exists (select 1 from qa_match m where m.gwr_rid = g.rid) order by g.rid";
+
+    private static final String OSM_QUERY = "select osmid, housenumber, housename, street, streetde, streetfr, streetit, streetrm, aplace, placede, placefr, placeit, placerm, "
+            + "postcode, city, afull, lon, lat from qa_osm o where o.kind = ? and not exists (select 1 from qa_match m where m.osm_rid = o.rid) order by o.rid";
+
+    private final Connection    conn;
+    private final ReferenceData reference;
+
+    private final PreparedStatement                insertGwr;
+    private final Map<OsmQuery, PreparedStatement> insertOsm = new EnumMap<>(OsmQuery.class);
+    private final PreparedStatement                insertMatch;
+    private final PreparedStatement                gwrQuery;
+    private final PreparedStatement                osmQuery;
+
+    private AddressSource.Matched matched;
+
+    /**
+     * Create a new reader and the temporary tables
+     *
+     * @param conn the database connection, it is closed together with the reader
+     * @param reference the ReferenceData
+     * @throws SQLException
+     */
+    SqlMatchingReader(@NotNull Connection conn, @NotNull ReferenceData reference) throws SQLException {
+        this.conn = conn;
+        this.reference = reference;
+        try {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute(CREATE_SEQUENCE);
+                stmt.execute(CREATE_GWR);
+                stmt.execute(CREATE_OSM);
+                stmt.execute(CREATE_OSM_KEY);
+                stmt.execute(CREATE_MATCH);
+                for (String index : CREATE_INDICES) {
+                    stmt.execute(index);
+                }
+            }
+            insertGwr = conn.prepareStatement(INSERT_GWR);
+            insertOsm.put(OsmQuery.POLYGON, conn.prepareStatement(String.format(INSERT_OSM, OsmQuery.POLYGON.ordinal(), JdbcAddressSource.OSM_POLYGON_QUERY)));
+            insertOsm.put(OsmQuery.LINE, conn.prepareStatement(String.format(INSERT_OSM, OsmQuery.LINE.ordinal(), JdbcAddressSource.OSM_LINE_QUERY)));
+            insertOsm.put(OsmQuery.POINT, conn.prepareStatement(String.format(INSERT_OSM, OsmQuery.POINT.ordinal(), JdbcAddressSource.OSM_POINT_QUERY)));
+            insertMatch = conn.prepareStatement(INSERT_MATCH);
+            insertMatch.setDouble(1, GWRcompare.MATCHING_DISTANCE - DISTANCE_MARGIN);
+            gwrQuery = conn.prepareStatement(GWR_QUERY);
+            osmQuery = conn.prepareStatement(OSM_QUERY);
+        } catch (SQLException e) {
+            conn.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Copy the rows of the municipality to the temporary tables, match them and read the GWR rows that are left
+     */
+    @Override
+    @NotNull
+    public List<GwrRecord> gwr(@NotNull Municipality municipality) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute(TRUNCATE);
+            insertGwr.setString(1, municipality.ref);
+            insertGwr.executeUpdate();
+            for (OsmQuery query : OsmQuery.values()) {
+                final PreparedStatement insert = insertOsm.get(query);
+                insert.setLong(1, municipality.boundaryId);
+                insert.executeUpdate();
+            }
+            stmt.execute(INSERT_OSM_KEY);
+            // temporary tables are not analyzed automatically
+            for (String analyze : ANALYZE) {
+                stmt.execute(analyze);
+            }
+            insertMatch.executeUpdate();
+            matched = new AddressSource.Matched();
+            try (ResultSet rs = stmt.executeQuery(MATCH_COUNTS)) {
+                while (rs.next()) {
+                    final int count = rs.getInt(3);
+                    matched.osm[rs.getInt(1)] += count;
+                    if (rs.getBoolean(2)) {
+                        matched.gwrAncillary += count;
+                    } else {
+                        matched.gwr += count;
+                    }
+                }
+            }
+        }
+        return JdbcAddressSource.readGwrRecords(gwrQuery.executeQuery(), reference);
+    }
+
+    @Override
+    @Nullable
+    public AddressSource.Matched matched() {
+        return matched;
+    }
+
+    @Override
+    @NotNull
+    public OsmRows osm(@NotNull Municipality municipality, @NotNull OsmQuery query) throws SQLException {
+        osmQuery.setInt(1, query.ordinal());
+        return JdbcAddressSource.rows(osmQuery.executeQuery(), false);
+    }
+
+    @Override
+    public void close() throws SQLException {
+        // the temporary tables are dropped with the connection
+        conn.close();
+    }
+}
@@ -0,0 +1,74 @@
+package ch.poole.osm.qa.address;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Maps strings to int ids, each distinct value is stored only once
+ *
+ * Id 0 is reserved for null so that freshly allocated id arrays contain nulls. As strings are compared with equals
+ * two ids from the same pool are equal if and only if the strings are equal.
+ */
+class StringPool {
+
+    /**
+     * The id of null
+     */
+    static final int NULL = 0;
+
+    private final Map<String, Integer> ids     = new HashMap<>();
+    private String[]                   strings = new String[64];
+    private int                        size    = 1;
+
+    /**
+     * Get the id for a string, adding it to the pool if necessary
+     *
+     * @param s the string
+     * @return the id
+     */
+    int intern(@Nullable String s) {
+        if (s == null) {
+            return NULL;
+        }
+        Integer id = ids.get(s);
+        if (id == null) {
+            if (size == strings.length) {
+                strings = Arrays.copyOf(strings, size * 2);
+            }
+            id = size;
+            strings[size++] = s;
+            ids.put(s, id);
+        }
+        return id;
+    }
+
+    /**
+     * Get the string for an id
+     *
+     * @param id the id
+     * @return the string or null
+     */
+    @Nullable
+    String get(int id) {
+        return strings[id];
+    }
+
+    /**
+     * Remove all strings, the ids handed out before are no longer valid
+     */
+    void clear() {
+        ids.clear();
+        Arrays.fill(strings, 1, size, null);
+        size = 1;
+    }
+
+    /**
+     * @return the number of distinct strings including null
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,367 @@
+package ch.poole.osm.qa.address;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.OsmRecord;
+import ch.poole.osm.qa.address.GWRcompare.OsmRows;
+
+/**
+ * Generates the addresses of synthetic municipalities
+ *
+ * The data mimics the cases the matching has to handle: bilingual streets that appear twice in the GWR and with
+ * language specific tags in OSM, places instead of streets, duplicate GWR addresses, ancillary buildings,
+ * semicolon-separated OSM house numbers, differently cased names, addresses with wrong postcodes, missing cities or
+ * that are too far away, GWR addresses missing in OSM and OSM addresses that are not in the GWR. The municipality
+ * sizes follow a power law, as in reality there are a few large ones and many small ones.
+ *
+ * The addresses of a municipality are generated when they are read and only depend on the parameters and the BFS
+ * number, the same parameters always produce the same data. To exclude the generation from measurements the data can
+ * be written to a snapshot once and then replayed.
+ */
+class SyntheticAddressSource implements AddressSource {
+
+    // roughly Switzerland
+    static final int    DEFAULT_MUNICIPALITIES = 2100;
+    static final int    DEFAULT_ADDRESSES      = 2200000;
+    static final double DEFAULT_MATCH_RATE     = 0.85;
+    static final double DEFAULT_DUPLICATE_RATE = 0.01;
+    static final double DEFAULT_WARNING_RATE   = 0.05;
+    static final long   DEFAULT_SEED           = 1;
+
+    private static final double SIZE_EXPONENT = 0.7;
+
+    private static final String[] CANTONS = { "ZH", "BE", "LU", "UR", "SZ", "OW", "NW", "GL", "ZG", "FR", "SO", "BS", "BL", "SH", "AR", "AI", "SG", "GR",
+            "AG", "TG", "TI", "VD", "VS", "NE", "GE", "JU" };
+
+    // GWR language codes
+    private static final String GWR_DE = "9901";
+    private static final String GWR_FR = "9903";
+
+    private static final String[] STREETS_DE = { "Bahnhofstrasse", "Hauptstrasse", "Dorfstrasse", "Kirchweg", "Schulstrasse", "Industriestrasse",
+            "Gartenweg", "Bergstrasse", "Seeweg", "M\u00fchlegasse" };
+    private static final String[] STREETS_FR = { "Rue de la Gare", "Rue Principale", "Rue du Village", "Chemin de l'Eglise", "Rue de l'Ecole",
+            "Rue de l'Industrie", "Chemin des Jardins", "Route de la Montagne", "Chemin du Lac", "Ruelle du Moulin" };
+    private static final String[] PLACES     = { "Oberdorf", "Unterdorf", "Hinterberg", "Moos" };
+    private static final String   AREA       = "Area";
+
+    private static final int ADDRESSES_PER_STREET = 30;
+    private static final int MAX_STREETS          = 2000;
+
+    // extent of Switzerland
+    private static final double MIN_LON    = 6.0;
+    private static final double MIN_LAT    = 45.9;
+    private static final double LON_EXTENT = 4.4;
+    private static final double LAT_EXTENT = 1.8;
+    private static final double SPACING    = 0.0002; // about 15-20 m
+
+    private final int    municipalityCount;
+    private final double matchRate;
+    private final double duplicateRate;
+    private final double warningRate;
+    private final long   seed;
+
+    private final int[] sizes;
+
+    /**
+     * Construct a new instance
+     *
+     * @param municipalities the number of municipalities
+     * @param addresses the approximate total number of GWR addresses
+     * @param matchRate the fraction of GWR addresses that are present in OSM
+     * @param duplicateRate the fraction of GWR addresses that have a duplicate
+     * @param warningRate the fraction of OSM addresses with a problem that causes a warning
+     * @param seed the seed for the random number generator
+     */
+    SyntheticAddressSource(int municipalities, int addresses, double matchRate, double duplicateRate, double warningRate, long seed) {
+        if (municipalities < 1 || addresses < 0) {
+            throw new IllegalArgumentException("municipalities must be positive and addresses not negative");
+        }
+        if (!isRate(matchRate) || !isRate(duplicateRate) || !isRate(warningRate)) {
+            throw new IllegalArgumentException("rates must be between 0 and 1");
+        }
+        this.municipalityCount = municipalities;
+        this.matchRate = matchRate;
+        this.duplicateRate = duplicateRate;
+        this.warningRate = warningRate;
+        this.seed = seed;
+        // assign the sizes to the municipalities in random order
+        final Random random = new Random(seed);
+        final double[] weights = new double[municipalities];
+        double total = 0;
+        for (int i = 0; i < municipalities; i++) {
+            weights[i] = Math.pow(i + 1d, -SIZE_EXPONENT);
+            total += weights[i];
+        }
+        sizes = new int[municipalities];
+        for (int i = 0; i < municipalities; i++) {
+            sizes[i] = (int) Math.max(1, Math.round(addresses * weights[i] / total));
+        }
+        for (int i = municipalities - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int size = sizes[i];
+            sizes[i] = sizes[j];
+            sizes[j] = size;
+        }
+    }
+
+    /**
+     * Check that a value is between 0 and 1
+     *
+     * @param rate the value
+     * @return true if the value is valid
+     */
+    private static boolean isRate(double rate) {
+        return rate >= 0 && rate <= 1;
+    }
+
+    /**
+     * Create an instance from a specification
+     *
+     * The specification is a comma separated list of key=value pairs with the keys municipalities, addresses, match,
+     * duplicates, warnings and seed, missing keys have their default values.
+     *
+     * @param spec the specification or null for the defaults
+     * @return a new SyntheticAddressSource
+     * @throws IllegalArgumentException if the specification is invalid
+     */
+    @NotNull
+    static SyntheticAddressSource parse(@Nullable String spec) {
+        int municipalities = DEFAULT_MUNICIPALITIES;
+        int addresses = DEFAULT_ADDRESSES;
+        double match = DEFAULT_MATCH_RATE;
+        double duplicates = DEFAULT_DUPLICATE_RATE;
+        double warnings = DEFAULT_WARNING_RATE;
+        long seed = DEFAULT_SEED;
+        if (spec != null && !spec.isEmpty()) {
+            for (String parameter : spec.split(",")) {
+                final String[] keyValue = parameter.split("=", 2);
+                if (keyValue.length != 2) {
+                    throw new IllegalArgumentException("Expected key=value instead of " + parameter);
+                }
+                final String value = keyValue[1].trim();
+                switch (keyValue[0].trim()) {
+                case "municipalities":
+                    municipalities = Integer.parseInt(value);
+                    break;
+                case "addresses":
+                    addresses = Integer.parseInt(value);
+                    break;
+                case "match":
+                    match = Double.parseDouble(value);
+                    break;
+                case "duplicates":
+                    duplicates = Double.parseDouble(value);
+                    break;
+                case "warnings":
+                    warnings = Double.parseDouble(value);
+                    break;
+                case "seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown parameter " + keyValue[0]);
+                }
+            }
+        }
+        return new SyntheticAddressSource(municipalities, addresses, match, duplicates, warnings, seed);
+    }
+
+    /**
+     * Get the BFS number of a municipality
+     *
+     * @param index the index of the municipality
+     * @return the BFS number
+     */
+    @NotNull
+    private static String ref(int index) {
+        return Integer.toString(index + 1);
+    }
+
+    @Override
+    @NotNull
+    public ReferenceData referenceData() {
+        List<Municipality> municipalities = new ArrayList<>(municipalityCount);
+        Map<Integer, String> cantons = new HashMap<>();
+        for (int i = 0; i < municipalityCount; i++) {
+            municipalities.add(new Municipality(-(i + 1L), String.format(Locale.US, "Synthetic %05d", i + 1), ref(i)));
+            cantons.put(i + 1, CANTONS[i % CANTONS.length]);
+        }
+        return ReferenceData.of(Collections.unmodifiableList(municipalities), cantons);
+    }
+
+    @Override
+    @NotNull
+    public Reader newReader() {
+        return new Reader() {
+            private MemoryAddressSource.Rows current;
+
+            @Override
+            @NotNull
+            public List<GwrRecord> gwr(@NotNull Municipality municipality) {
+                current = rows(municipality);
+                return current.gwr;
+            }
+
+            @Override
+            @NotNull
+            public OsmRows osm(@NotNull Municipality municipality, @NotNull OsmQuery query) {
+                return MemoryAddressSource.rows(current.osm(query));
+            }
+
+            @Override
+            public void close() {
+                current = null;
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+
+    /**
+     * Generate the addresses of a municipality
+     *
+     * @param municipality the Municipality
+     * @return the generated rows, empty if the municipality isn't one of ours
+     */
+    @NotNull
+    MemoryAddressSource.Rows rows(@NotNull Municipality municipality) {
+        final MemoryAddressSource.Rows rows = new MemoryAddressSource.Rows();
+        final int index;
+        try {
+            index = Integer.parseInt(municipality.ref) - 1;
+        } catch (NumberFormatException e) {
+            return rows;
+        }
+        if (index < 0 || index >= municipalityCount) {
+            return rows;
+        }
+        final Random random = new Random(seed * 31 + index);
+        final int size = sizes[index];
+        final int streetCount = Math.min(MAX_STREETS, Math.max(1, size / ADDRESSES_PER_STREET));
+        final int perStreet = Math.max(1, size / streetCount);
+        final int streetColumns = (int) Math.ceil(Math.sqrt(streetCount));
+        final int bilingualCount = Math.min(STREETS_DE.length, streetCount / 4);
+        final int placeCount = streetCount > 8 ? PLACES.length : 0;
+        // municipalities on a grid covering the country
+        final int columns = (int) Math.ceil(Math.sqrt(municipalityCount));
+        final int gridRows = (municipalityCount + columns - 1) / columns;
+        final double lon0 = MIN_LON + (index % columns) * LON_EXTENT / columns;
+        final double lat0 = MIN_LAT + (index / columns) * LAT_EXTENT / gridRows;
+        final String[] postcodes = { Integer.toString(1000 + index * 3), Integer.toString(1001 + index * 3), Integer.toString(1002 + index * 3) };
+        final String[] cities = { "Synthetic " + (index + 1), "Synthetic " + (index + 1) + " Nord", "Synthetic " + (index + 1) + " S\u00fcd" };
+        long egaid = (index + 1L) * 10000000L;
+        long osmId = (index + 1L) * 10000000L;
+        for (int s = 0; s < streetCount; s++) {
+            final int name = s % STREETS_DE.length;
+            final boolean bilingual = s < bilingualCount;
+            final boolean isPlace = s >= streetCount - placeCount;
+            final String street = isPlace ? PLACES[s % PLACES.length] : STREETS_DE[name] + (s >= STREETS_DE.length ? " " + s : "");
+            final String postcode = postcodes[s % postcodes.length];
+            final String city = cities[s % cities.length];
+            final String streetType = isPlace ? AREA : GWRcompare.SWISSTOPO_STREET_GEOM;
+            for (int n = 1; n <= perStreet; n++) {
+                final String number = housenumber(random, n);
+                final float lon = (float) (lon0 + (s % streetColumns) * SPACING * 3 + (random.nextDouble() - 0.5) * SPACING);
+                final float lat = (float) (lat0 + (s / streetColumns) * SPACING * (perStreet + 5) + n * SPACING + (random.nextDouble() - 0.5) * SPACING);
+                final boolean ancillary = random.nextInt(20) == 0;
+                final int category = ancillary ? 1080 : 1020;
+                final int gwrClass = ancillary ? 1242 : 1110;
+                final boolean official = random.nextInt(10) != 0;
+                rows.gwr.add(new GwrRecord(egaid, street, number, postcode, city, bilingual ? GWR_DE : "", streetType, category, gwrClass, official, lon,
+                        lat));
+                if (bilingual) {
+                    rows.gwr.add(new GwrRecord(egaid, STREETS_FR[name], number, postcode, city, GWR_FR, streetType, category, gwrClass, official, lon,
+                            lat));
+                }
+                egaid++;
+                if (random.nextDouble() < duplicateRate) {
+                    // duplicate with a different EGAID
+                    rows.gwr.add(new GwrRecord(egaid++, street, number, postcode, city, "", streetType, category, gwrClass, official, lon, lat));
+                }
+                if (random.nextDouble() >= matchRate) {
+                    continue;
+                }
+                OsmRecord osm = new OsmRecord();
+                osm.osmId = osmId++;
+                osm.housenumber = number;
+                if (random.nextInt(30) == 0 && n < perStreet) {
+                    osm.housenumber = number + ";" + housenumber(random, n + 1);
+                }
+                if (isPlace) {
+                    osm.place = street;
+                } else if (bilingual) {
+                    osm.street = STREETS_DE[name] + "/" + STREETS_FR[name];
+                    osm.streetDe = STREETS_DE[name];
+                    osm.streetFr = STREETS_FR[name];
+                } else {
+                    osm.street = random.nextInt(50) == 0 ? street.toLowerCase() : street;
+                }
+                osm.postcode = postcode;
+                osm.city = city;
+                double offset = SPACING / 10;
+                if (random.nextDouble() < warningRate) {
+                    switch (random.nextInt(3)) {
+                    case 0:
+                        osm.postcode = postcodes[(s + 1) % postcodes.length];
+                        break;
+                    case 1:
+                        osm.city = null;
+                        break;
+                    default:
+                        offset = SPACING * 6;
+                    }
+                }
+                osm.lon = (float) (lon + (random.nextDouble() - 0.5) * offset);
+                osm.lat = (float) (lat + (random.nextDouble() - 0.5) * offset);
+                final int kind = random.nextInt(100);
+                (kind < 70 ? rows.polygons : kind < 72 ? rows.lines : rows.points).add(osm);
+            }
+        }
+        // addresses that are not in the GWR, some without street
+        final int nonGwr = (int) Math.round(size * warningRate / 2);
+        for (int i = 0; i < nonGwr; i++) {
+            OsmRecord osm = new OsmRecord();
+            osm.osmId = osmId++;
+            osm.housenumber = Integer.toString(1000 + i);
+            osm.street = random.nextBoolean() ? STREETS_DE[i % STREETS_DE.length] : null;
+            osm.postcode = postcodes[i % postcodes.length];
+            osm.lon = (float) (lon0 + random.nextDouble() * streetColumns * SPACING * 3);
+            osm.lat = (float) (lat0 + random.nextDouble() * SPACING * perStreet);
+            rows.points.add(osm);
+        }
+        return rows;
+    }
+
+    /**
+     * Get a house number, some with a letter and some with the suffix of an ancillary building
+     *
+     * @param random the Random
+     * @param n the number
+     * @return the house number
+     */
+    @NotNull
+    private static String housenumber(@NotNull Random random, int n) {
+        final int kind = random.nextInt(20);
+        if (kind == 0) {
+            return n + "a";
+        }
+        if (kind == 1) {
+            return n + ".1";
+        }
+        return Integer.toString(n);
+    }
+}
@@ -0,0 +1,40 @@
+package ch.poole.osm.qa.address;
+
+/**
+ * Conversion of EPSG:3857 Web Mercator coordinates to WGS84
+ *
+ * Web Mercator projects the WGS84 longitude and latitude as if they were on a sphere with the equatorial radius, so the
+ * inverse is exact apart from floating point rounding, there is no datum shift involved.
+ */
+final class WebMercator {
+
+    // radius of the sphere used by EPSG:3857
+    private static final double RADIUS = 6378137;
+
+    /**
+     * Private constructor to stop instantiation
+     */
+    private WebMercator() {
+        // empty
+    }
+
+    /**
+     * Get the WGS84 longitude of an x coordinate
+     *
+     * @param x the EPSG:3857 x coordinate in meters
+     * @return the longitude in degrees
+     */
+    static double lon(double x) {
+        return Math.toDegrees(x / RADIUS);
+    }
+
+    /**
+     * Get the WGS84 latitude of a y coordinate
+     *
+     * @param y the EPSG:3857 y coordinate in meters
+     * @return the latitude in degrees
+     */
+    static double lat(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(y / RADIUS)));
+    }
+}
@@ -0,0 +1,289 @@
+package ch.poole.osm.qa.address;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+/**
+ * Runs the same operations on a LongIntMultiHashMap and a MultiHashMap<Long, Integer> and checks that both hold the
+ * same keys and values after every step
+ *
+ * MultiHashMap counts duplicate adds in its size, so the size is compared with the number of values it holds and not
+ * with MultiHashMap.size.
+ */
+public class LongIntMultiHashMapTest {
+
+    private static final long SEED = 20240611L;
+
+    /**
+     * Randomized add, lookup and removal over a small key space, so that there are many duplicate values per key
+     */
+    @Test
+    public void randomOperations() {
+        Random random = new Random(SEED);
+        LongIntMultiHashMap map = new LongIntMultiHashMap(4);
+        MultiHashMap<Long, Integer> reference = new MultiHashMap<>();
+        for (int step = 0; step < 20000; step++) {
+            final long key = randomKey(random, 300);
+            final int value = random.nextInt(20);
+            final int operation = random.nextInt(100);
+            if (operation < 50) {
+                assertEquals(!reference.get(key).contains(value), map.add(key, value));
+                reference.add(key, value);
+            } else if (operation < 80) {
+                assertEquals(reference.get(key).contains(value), map.removeItem(key, value));
+                reference.removeItem(key, value);
+            } else if (operation < 85) {
+                map.removeKey(key);
+                reference.removeKey(key);
+            } else if (operation < 90) {
+                map.addKey(key);
+                if (!reference.containsKey(key)) {
+                    reference.add(key, (Integer) null);
+                }
+            } else if (operation < 99) {
+                assertEquals(reference.containsKey(key), map.containsKey(key));
+                assertEquals(reference.get(key).contains(value), map.contains(key, value));
+                assertEquals(reference.get(key).size(), map.valueCount(key));
+                final int first = map.first(key);
+                if (reference.get(key).isEmpty()) {
+                    assertEquals(LongIntMultiHashMap.NO_VALUE, first);
+                } else {
+                    assertTrue(reference.get(key).contains(first));
+                }
+            } else if (random.nextInt(20) == 0) {
+                map.clear();
+                reference.clear();
+            }
+            assertSame(reference, map);
+        }
+    }
+
+    /**
+     * Adding a value twice doesn't change the map, removing it once removes it
+     */
+    @Test
+    public void duplicateValues() {
+        LongIntMultiHashMap map = new LongIntMultiHashMap();
+        MultiHashMap<Long, Integer> reference = new MultiHashMap<>();
+        for (int value = 0; value < 10; value++) {
+            for (int i = 0; i < 3; i++) {
+                assertEquals(i == 0, map.add(7L, value));
+                reference.add(7L, value);
+                assertSame(reference, map);
+            }
+        }
+        // the freed inline slot and chain nodes are reused
+        for (int value = 0; value < 10; value += 2) {
+            assertTrue(map.removeItem(7L, value));
+            assertFalse(map.removeItem(7L, value));
+            reference.removeItem(7L, value);
+            assertSame(reference, map);
+        }
+        for (int value = 100; value < 110; value++) {
+            map.add(7L, value);
+            reference.add(7L, value);
+            assertSame(reference, map);
+        }
+        // a key without values stays present
+        for (int value : new ArrayList<>(reference.get(7L))) {
+            map.removeItem(7L, value);
+            reference.removeItem(7L, value);
+            assertSame(reference, map);
+        }
+        assertTrue(map.containsKey(7L));
+        assertEquals(LongIntMultiHashMap.NO_VALUE, map.first(7L));
+    }
+
+    /**
+     * Remove values and keys while iterating with a KeyCursor and ValueCursor, every value has to be visited exactly
+     * once
+     */
+    @Test
+    public void removeWhileIterating() {
+        Random random = new Random(SEED);
+        for (int round = 0; round < 50; round++) {
+            LongIntMultiHashMap map = new LongIntMultiHashMap(4);
+            MultiHashMap<Long, Integer> reference = new MultiHashMap<>();
+            for (int i = 0; i < 2000; i++) {
+                final long key = randomKey(random, 200);
+                final int value = random.nextInt(30);
+                map.add(key, value);
+                reference.add(key, value);
+            }
+            assertSame(reference, map);
+
+            Set<Long> visitedKeys = new HashSet<>();
+            Set<Long> expectedKeys = new HashSet<>(reference.getKeys());
+            LongIntMultiHashMap.KeyCursor keyCursor = map.keyCursor();
+            LongIntMultiHashMap.ValueCursor valueCursor = map.valueCursor();
+            while (keyCursor.next()) {
+                final long key = keyCursor.key();
+                assertTrue(visitedKeys.add(key));
+                Set<Integer> expectedValues = new HashSet<>(reference.get(key));
+                Set<Integer> visitedValues = new HashSet<>();
+                valueCursor.reset(key);
+                while (valueCursor.next()) {
+                    final int value = valueCursor.value();
+                    assertTrue(visitedValues.add(value));
+                    if (random.nextBoolean()) {
+                        assertTrue(map.removeItem(key, value));
+                        reference.removeItem(key, value);
+                    }
+                    // removing a value that hasn't been visited yet, it must not be visited any more
+                    if (random.nextInt(4) == 0) {
+                        for (int other : new ArrayList<>(reference.get(key))) {
+                            if (!visitedValues.contains(other)) {
+                                map.removeItem(key, other);
+                                reference.removeItem(key, other);
+                                expectedValues.remove(other);
+                                break;
+                            }
+                        }
+                    }
+                }
+                assertEquals(expectedValues, visitedValues);
+                if (random.nextInt(10) == 0) {
+                    map.removeKey(key);
+                    reference.removeKey(key);
+                }
+                assertSame(reference, map);
+            }
+            assertEquals(expectedKeys, visitedKeys);
+        }
+    }
+
+    /**
+     * Grow from the minimum capacity across several rehashes and shrink again
+     */
+    @Test
+    public void growth() {
+        Random random = new Random(SEED);
+        LongIntMultiHashMap map = new LongIntMultiHashMap(1);
+        MultiHashMap<Long, Integer> reference = new MultiHashMap<>();
+        List<Long> added = new ArrayList<>();
+        // 4 slots initially, 4096 at the end
+        for (int i = 0; i < 2000; i++) {
+            final long key = random.nextLong();
+            added.add(key);
+            for (int j = random.nextInt(3); j >= 0; j--) {
+                final int value = random.nextInt(1000);
+                map.add(key, value);
+                reference.add(key, value);
+            }
+            assertSame(reference, map);
+        }
+        for (int i = 0; i < added.size(); i += 2) {
+            map.removeKey(added.get(i));
+            reference.removeKey(added.get(i));
+            assertSame(reference, map);
+        }
+        // churn that only leaves removed keys behind, this rehashes without growing
+        for (int i = 0; i < 2000; i++) {
+            final long key = random.nextLong();
+            map.add(key, i);
+            reference.add(key, i);
+            assertSame(reference, map);
+            map.removeKey(key);
+            reference.removeKey(key);
+            assertSame(reference, map);
+        }
+    }
+
+    /**
+     * Keys that all start probing at the same slot, removing keys in the middle of a probe sequence must not hide the
+     * keys behind them
+     */
+    @Test
+    public void collidingKeys() {
+        // collide for all capacities up to 2^12
+        final int mask = (1 << 12) - 1;
+        List<Long> keys = new ArrayList<>();
+        for (long key = 0; keys.size() < 40; key++) {
+            if ((LongIntMultiHashMap.hash(key) & mask) == (LongIntMultiHashMap.hash(0) & mask)) {
+                keys.add(key);
+            }
+        }
+        Random random = new Random(SEED);
+        LongIntMultiHashMap map = new LongIntMultiHashMap(4);
+        MultiHashMap<Long, Integer> reference = new MultiHashMap<>();
+        for (int round = 0; round < 20; round++) {
+            for (long key : keys) {
+                final int value = random.nextInt(5);
+                map.add(key, value);
+                reference.add(key, value);
+                assertSame(reference, map);
+            }
+            for (int i = round % 3; i < keys.size(); i += 3) {
+                map.removeKey(keys.get(i));
+                reference.removeKey(keys.get(i));
+                assertSame(reference, map);
+            }
+            for (long key : keys) {
+                final int value = random.nextInt(5);
+                assertEquals(reference.get(key).contains(value), map.removeItem(key, value));
+                reference.removeItem(key, value);
+            }
+            assertSame(reference, map);
+        }
+    }
+
+    /**
+     * Get a random key, mostly out of a range of small keys and sometimes an extreme value
+     *
+     * @param random the Random
+     * @param range the number of small keys
+     * @return a key
+     */
+    private static long randomKey(@NotNull Random random, int range) {
+        switch (random.nextInt(50)) {
+        case 0:
+            return Long.MIN_VALUE;
+        case 1:
+            return Long.MAX_VALUE;
+        case 2:
+            return -1L;
+        default:
+            return random.nextInt(range) - range / 10;
+        }
+    }
+
+    /**
+     * Check that both maps have the same keys and values
+     *
+     * @param reference the MultiHashMap
+     * @param map the LongIntMultiHashMap
+     */
+    private static void assertSame(@NotNull MultiHashMap<Long, Integer> reference, @NotNull LongIntMultiHashMap map) {
+        long size = 0;
+        for (Long key : reference.getKeys()) {
+            Set<Integer> expected = reference.get(key);
+            assertTrue(map.containsKey(key));
+            assertEquals(expected.size(), map.valueCount(key));
+            Set<Integer> values = new HashSet<>();
+            LongIntMultiHashMap.ValueCursor cursor = map.valueCursor().reset(key);
+            while (cursor.next()) {
+                assertTrue(values.add(cursor.value()));
+            }
+            assertEquals(expected, values);
+            size += expected.size();
+        }
+        assertEquals(size, map.size());
+        assertEquals(reference.getKeys().size(), map.keyCount());
+        Set<Long> keys = new HashSet<>();
+        LongIntMultiHashMap.KeyCursor cursor = map.keyCursor();
+        while (cursor.next()) {
+            assertTrue(keys.add(cursor.key()));
+        }
+        assertEquals(reference.getKeys(), keys);
+    }
+}
@@ -0,0 +1,324 @@
+package ch.poole.osm.qa.address;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.poole.osm.qa.address.AddressSource.OsmQuery;
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.MunicipalityWorker;
+import ch.poole.osm.qa.address.GWRcompare.OsmRecord;
+import ch.poole.osm.qa.address.GWRcompare.Stats;
+
+/**
+ * Checks that SqlMatchingReader gives the same counts as matching everything in Java on a real PostGIS database
+ *
+ * The edge cases and synthetic municipalities of SqlMatchingReaderTest are loaded into tables with the layout of the
+ * GWR and osm2pgsql tables in a separate schema, each municipality is then processed once through
+ * JdbcAddressSource.newReader(true) and once through newReader(false). This only runs if the environment variable
+ * SQL_MATCHING_TEST_URL is set to the JDBC URL of a database, including the credentials, in which the postgis and
+ * hstore extensions are installed or can be created. The schema is dropped at the end.
+ */
+public class SqlMatchingDatabaseTest {
+
+    private static final String URL_VARIABLE = "SQL_MATCHING_TEST_URL";
+    private static final String SCHEMA       = "qa_sql_matching_test";
+
+    private static final int SYNTHETIC_MUNICIPALITIES = 20;
+
+    // added around the addresses of a municipality for its boundary, in degrees
+    private static final double BOUNDARY_MARGIN = 0.001;
+    // half the size of the polygons and lines of OSM addresses, in m
+    private static final double OSM_GEOMETRY_SIZE = 2;
+
+    private static final String[] CREATE_TABLES = {
+            "create table gwr_addresses (egid bigint, egaid bigint, esid bigint, gdenr integer, gdekt text, gdename text, strname text, deinr text, "
+                    + "plz4 integer, plzz integer, plzname text, strsp text, gkat integer, gklas integer, doffadr boolean, gstat integer, loc geometry(Point, 4326))",
+            "create table esid_type (esid bigint, strtype text)",
+            "create table planet_osm_polygon (osm_id bigint, \"addr:housenumber\" text, \"addr:housename\" text, boundary text, admin_level text, "
+                    + "tags hstore, way geometry(Geometry, 3857))",
+            "create table planet_osm_line (osm_id bigint, \"addr:housenumber\" text, \"addr:housename\" text, tags hstore, way geometry(Geometry, 3857))",
+            "create table planet_osm_point (osm_id bigint, \"addr:housenumber\" text, \"addr:housename\" text, tags hstore, way geometry(Point, 3857))",
+            "create table buffered_boundaries (osm_id bigint, name text, muni_ref text, way geometry(Geometry, 3857))" };
+
+    private static final String INSERT_GWR = "insert into gwr_addresses values (?, ?, ?, ?, ?, ?, ?, ?, ?, 0, ?, ?, ?, ?, ?, 1004, "
+            + "ST_SetSRID(ST_MakePoint(?, ?), 4326))";
+
+    private static final String POINT = "ST_Transform(ST_SetSRID(ST_MakePoint(?, ?), 4326), 3857)";
+
+    private static final String INSERT_OSM = "insert into %s (osm_id, \"addr:housenumber\", \"addr:housename\", tags, way) "
+            + "select ?, ?, ?, hstore(?::text[], ?::text[]), %s from (select " + POINT + " as p) g";
+
+    private static final String ENVELOPE = "ST_Transform(ST_MakeEnvelope(?, ?, ?, ?, 4326), 3857)";
+
+    private static final String INSERT_BOUNDARY = "insert into planet_osm_polygon (osm_id, boundary, admin_level, tags, way) "
+            + "values (?, 'administrative', '8', hstore('swisstopo:BFS_NUMMER', ?), " + ENVELOPE + ")";
+
+    private static final String INSERT_BUFFERED_BOUNDARY = "insert into buffered_boundaries values (?, ?, ?, " + ENVELOPE + ")";
+
+    private static Connection        conn;
+    private static JdbcAddressSource source;
+    private static ReferenceData     reference;
+
+    private static final Map<String, Long> esids = new HashMap<>();
+    private static long                    egid  = 1;
+
+    /**
+     * Create the tables and load the municipalities
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    @BeforeClass
+    public static void setUp() throws SQLException, IOException {
+        final String url = System.getenv(URL_VARIABLE);
+        Assume.assumeTrue(URL_VARIABLE + " is not set", url != null && !url.isEmpty());
+        Properties props = new Properties();
+        // the readers open their own connections, they find the tables through the search path
+        props.setProperty("currentSchema", SCHEMA + ",public");
+        conn = DriverManager.getConnection(url, props);
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("create extension if not exists postgis");
+            stmt.execute("create extension if not exists hstore");
+            stmt.execute("drop schema if exists " + SCHEMA + " cascade");
+            stmt.execute("create schema " + SCHEMA);
+            for (String create : CREATE_TABLES) {
+                stmt.execute(create);
+            }
+        }
+        load(SqlMatchingReaderTest.EDGE_CASES, "ZH", SqlMatchingReaderTest.edgeCases(new HashSet<>()));
+        SyntheticAddressSource synthetic = SqlMatchingReaderTest.synthetic(SYNTHETIC_MUNICIPALITIES);
+        ReferenceData syntheticReference = synthetic.referenceData();
+        for (Municipality m : syntheticReference.municipalities(null)) {
+            load(m, syntheticReference.canton(m.ref), synthetic.rows(m));
+        }
+        try (PreparedStatement insert = conn.prepareStatement("insert into esid_type values (?, ?)")) {
+            for (Map.Entry<String, Long> esid : esids.entrySet()) {
+                insert.setLong(1, esid.getValue());
+                insert.setString(2, esid.getKey());
+                insert.executeUpdate();
+            }
+        }
+        try (Statement stmt = conn.createStatement()) {
+            for (String table : new String[] { "gwr_addresses", "esid_type", "planet_osm_polygon", "planet_osm_line", "planet_osm_point",
+                    "buffered_boundaries" }) {
+                stmt.execute("analyze " + table);
+            }
+        }
+        source = new JdbcAddressSource(conn, url, props, new GWRcompare.Config());
+        reference = source.referenceData();
+    }
+
+    /**
+     * Drop the schema
+     *
+     * @throws SQLException
+     */
+    @AfterClass
+    public static void tearDown() throws SQLException {
+        if (conn != null) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.execute("drop schema if exists " + SCHEMA + " cascade");
+            }
+            conn.close();
+        }
+    }
+
+    /**
+     * The edge cases, the database has to match the same pairs as the predicate of SqlMatchingReaderTest
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    @Test
+    public void edgeCases() throws SQLException, IOException {
+        AddressSource.Matched matched = compare(SqlMatchingReaderTest.EDGE_CASES);
+        assertEquals(SqlMatchingReaderTest.EDGE_CASES_MATCHED, matched.gwr);
+        assertEquals(SqlMatchingReaderTest.EDGE_CASES_MATCHED_ANCILLARY, matched.gwrAncillary);
+    }
+
+    /**
+     * The synthetic municipalities
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    @Test
+    public void syntheticMunicipalities() throws SQLException, IOException {
+        int municipalities = 0;
+        int matched = 0;
+        for (Municipality m : reference.municipalities(null)) {
+            if (!m.ref.equals(SqlMatchingReaderTest.EDGE_CASES.ref)) {
+                AddressSource.Matched pairs = compare(m);
+                matched += pairs.gwr + pairs.gwrAncillary;
+                municipalities++;
+            }
+        }
+        assertEquals(SYNTHETIC_MUNICIPALITIES, municipalities);
+        assertTrue("only " + matched + " pairs matched", matched > SYNTHETIC_MUNICIPALITIES * 100);
+    }
+
+    /**
+     * Process a municipality with and without SQL matching and check that the counts are the same
+     *
+     * @param municipality the Municipality
+     * @return the pairs that were matched in the database
+     * @throws SQLException
+     * @throws IOException
+     */
+    @NotNull
+    private static AddressSource.Matched compare(@NotNull Municipality municipality) throws SQLException, IOException {
+        final GWRcompare.Config config = new GWRcompare.Config();
+        final AddressSource.Reader sqlReader = source.newReader(true);
+        final Stats expected;
+        final Stats actual;
+        final AddressSource.Matched matched;
+        try (MunicipalityWorker java = new MunicipalityWorker(source.newReader(false), config, reference, null);
+                MunicipalityWorker sql = new MunicipalityWorker(sqlReader, config, reference, null)) {
+            expected = java.match(municipality).stats;
+            actual = sql.match(municipality).stats;
+            matched = sqlReader.matched();
+        }
+        assertEquals(municipality.name, new ArrayList<String>(), expected.differences(actual));
+        assertTrue(matched != null);
+        return matched;
+    }
+
+    /**
+     * Insert the rows and the boundary of a municipality
+     *
+     * @param municipality the Municipality
+     * @param canton the canton abbreviation
+     * @param rows the rows
+     * @throws SQLException
+     */
+    private static void load(@NotNull Municipality municipality, @NotNull String canton, @NotNull MemoryAddressSource.Rows rows) throws SQLException {
+        double minLon = Double.MAX_VALUE;
+        double minLat = Double.MAX_VALUE;
+        double maxLon = -Double.MAX_VALUE;
+        double maxLat = -Double.MAX_VALUE;
+        try (PreparedStatement insert = conn.prepareStatement(INSERT_GWR)) {
+            for (GwrRecord g : rows.gwr) {
+                insert.setLong(1, egid++);
+                insert.setLong(2, g.addressId);
+                insert.setLong(3, esids.computeIfAbsent(g.streetType, t -> esids.size() + 1L));
+                insert.setInt(4, Integer.parseInt(municipality.ref));
+                insert.setString(5, canton);
+                insert.setString(6, municipality.name);
+                insert.setString(7, g.street);
+                insert.setString(8, g.housenumber);
+                insert.setObject(9, g.postcode != null ? Integer.valueOf(g.postcode) : null, java.sql.Types.INTEGER);
+                insert.setString(10, g.city);
+                insert.setString(11, g.lang);
+                insert.setInt(12, g.category);
+                insert.setInt(13, g.gwrClass);
+                insert.setBoolean(14, g.official);
+                insert.setDouble(15, g.lon);
+                insert.setDouble(16, g.lat);
+                insert.executeUpdate();
+                minLon = Math.min(minLon, g.lon);
+                minLat = Math.min(minLat, g.lat);
+                maxLon = Math.max(maxLon, g.lon);
+                maxLat = Math.max(maxLat, g.lat);
+            }
+        }
+        for (OsmQuery query : OsmQuery.values()) {
+            final String table;
+            final String geometry;
+            switch (query) {
+            case POLYGON:
+                table = "planet_osm_polygon";
+                geometry = "ST_Expand(g.p, " + OSM_GEOMETRY_SIZE + ")";
+                break;
+            case LINE:
+                table = "planet_osm_line";
+                geometry = "ST_MakeLine(ST_Translate(g.p, -" + OSM_GEOMETRY_SIZE + ", 0), ST_Translate(g.p, " + OSM_GEOMETRY_SIZE + ", 0))";
+                break;
+            default:
+                table = "planet_osm_point";
+                geometry = "g.p";
+            }
+            try (PreparedStatement insert = conn.prepareStatement(String.format(INSERT_OSM, table, geometry))) {
+                for (OsmRecord o : rows.osm(query)) {
+                    List<String> keys = new ArrayList<>();
+                    List<String> values = new ArrayList<>();
+                    tag(keys, values, "addr:street", o.street);
+                    tag(keys, values, "addr:street:de", o.streetDe);
+                    tag(keys, values, "addr:street:fr", o.streetFr);
+                    tag(keys, values, "addr:street:it", o.streetIt);
+                    tag(keys, values, "addr:street:rm", o.streetRm);
+                    tag(keys, values, "addr:place", o.place);
+                    tag(keys, values, "addr:place:de", o.placeDe);
+                    tag(keys, values, "addr:place:fr", o.placeFr);
+                    tag(keys, values, "addr:place:it", o.placeIt);
+                    tag(keys, values, "addr:place:rm", o.placeRm);
+                    tag(keys, values, "addr:postcode", o.postcode);
+                    tag(keys, values, "addr:city", o.city);
+                    tag(keys, values, "addr:full", o.full);
+                    insert.setLong(1, o.osmId);
+                    insert.setString(2, o.housenumber);
+                    insert.setString(3, o.housename);
+                    insert.setArray(4, conn.createArrayOf("text", keys.toArray()));
+                    insert.setArray(5, conn.createArrayOf("text", values.toArray()));
+                    insert.setDouble(6, o.lon);
+                    insert.setDouble(7, o.lat);
+                    insert.executeUpdate();
+                    minLon = Math.min(minLon, o.lon);
+                    minLat = Math.min(minLat, o.lat);
+                    maxLon = Math.max(maxLon, o.lon);
+                    maxLat = Math.max(maxLat, o.lat);
+                }
+            }
+        }
+        try (PreparedStatement boundary = conn.prepareStatement(INSERT_BOUNDARY);
+                PreparedStatement buffered = conn.prepareStatement(INSERT_BUFFERED_BOUNDARY)) {
+            boundary.setLong(1, municipality.boundaryId);
+            boundary.setString(2, municipality.ref);
+            buffered.setLong(1, municipality.boundaryId);
+            buffered.setString(2, municipality.name);
+            buffered.setString(3, municipality.ref);
+            final double[] envelope = { minLon - BOUNDARY_MARGIN, minLat - BOUNDARY_MARGIN, maxLon + BOUNDARY_MARGIN, maxLat + BOUNDARY_MARGIN };
+            for (int i = 0; i < envelope.length; i++) {
+                boundary.setDouble(3 + i, envelope[i]);
+                buffered.setDouble(4 + i, envelope[i]);
+            }
+            boundary.executeUpdate();
+            buffered.executeUpdate();
+        }
+    }
+
+    /**
+     * Add a tag if it has a value
+     *
+     * @param keys the keys
+     * @param values the values
+     * @param key the key of the tag
+     * @param value the value or null
+     */
+    private static void tag(@NotNull List<String> keys, @NotNull List<String> values, @NotNull String key, @Nullable String value) {
+        if (value != null) {
+            keys.add(key);
+            values.add(value);
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package ch.poole.osm.qa.address;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Test;
+
+import ch.poole.osm.qa.address.AddressSource.OsmQuery;
+import ch.poole.osm.qa.address.GWRcompare.GwrRecord;
+import ch.poole.osm.qa.address.GWRcompare.Municipality;
+import ch.poole.osm.qa.address.GWRcompare.MunicipalityWorker;
+import ch.poole.osm.qa.address.GWRcompare.OsmRecord;
+import ch.poole.osm.qa.address.GWRcompare.OsmRows;
+import ch.poole.osm.qa.address.GWRcompare.Stats;
+
+/**
+ * Checks that matching the unambiguous pairs before the Java matcher, as SqlMatchingReader does, gives the same counts
+ * as matching everything in Java
+ *
+ * PredicateReader applies the predicate of SqlMatchingReader step by step to in memory rows: it builds the same keys
+ * as the temporary tables, with the same splitting, white space removal and case folding, selects the pairs that
+ * INSERT_MATCH would insert and only returns the remaining rows plus the counts of the pairs. The counts of a
+ * MunicipalityWorker reading through it have to be the same as those of a worker reading all rows. This doesn't run the
+ * SQL itself, --verify-sql-matching compares the two on a real database.
+ */
+public class SqlMatchingReaderTest {
+
+    private static final double METRES_PER_DEGREE = GWRcompare.EARTH_RADIUS * Math.PI / 180;
+
+    private static final double LON = 8.5;
+    private static final double LAT = 47.3;
+    // distance between the cases in m, so that they don't influence each other
+    private static final double SPACING = 1000;
+
+    private static final String POSTCODE = "8000";
+    private static final String CITY     = "Testdorf";
+
+    /**
+     * The municipality of the edge cases, it doesn't collide with the synthetic municipalities
+     */
+    static final Municipality EDGE_CASES = new Municipality(-9999, CITY, "9999");
+
+    /**
+     * The number of pairs of the edge cases that are matched by the predicate
+     */
+    static final int EDGE_CASES_MATCHED           = 6;
+    static final int EDGE_CASES_MATCHED_ANCILLARY = 2;
+
+    /**
+     * All municipalities of a small synthetic data set
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    @Test
+    public void syntheticMunicipalities() throws SQLException, IOException {
+        SyntheticAddressSource source = synthetic(60);
+        ReferenceData reference = source.referenceData();
+        int matched = 0;
+        for (Municipality m : reference.municipalities(null)) {
+            AddressSource.Matched pairs = compare(reference, m, source.rows(m));
+            matched += pairs.gwr + pairs.gwrAncillary;
+        }
+        // most addresses of the synthetic data are unambiguous
+        assertTrue("only " + matched + " pairs matched", matched > 10000);
+    }
+
+    /**
+     * The cases that are on either side of each condition of the predicate
+     *
+     * @throws SQLException
+     * @throws IOException
+     */
+    @Test
+    public void edgeCases() throws SQLException, IOException {
+        Set<Long> expected = new HashSet<>();
+        MemoryAddressSource.Rows rows = edgeCases(expected);
+
+        MemoryAddressSource source = new MemoryAddressSource();
+        source.add(EDGE_CASES, "ZH", rows);
+        PredicateReader reader = new PredicateReader(rows);
+        reader.gwr(EDGE_CASES);
+        assertEquals(expected, reader.matchedAddresses);
+
+        AddressSource.Matched matched = compare(source.referenceData(), EDGE_CASES, rows);
+        assertEquals(EDGE_CASES_MATCHED, matched.gwr);
+        assertEquals(EDGE_CASES_MATCHED_ANCILLARY, matched.gwrAncillary);
+    }
+
+    /**
+     * Get a small synthetic data set
+     *
+     * @param municipalities the number of municipalities
+     * @return a SyntheticAddressSource
+     */
+    @NotNull
+    static SyntheticAddressSource synthetic(int municipalities) {
+        return new SyntheticAddressSource(municipalities, municipalities * 500, SyntheticAddressSource.DEFAULT_MATCH_RATE,
+                SyntheticAddressSource.DEFAULT_DUPLICATE_RATE, SyntheticAddressSource.DEFAULT_WARNING_RATE, SyntheticAddressSource.DEFAULT_SEED);
+    }
+
+    /**
+     * Create the rows of the edge cases
+     *
+     * @param expected the EGAIDs of the GWR addresses that the predicate matches are added to this
+     * @return the rows
+     */
+    @NotNull
+    static MemoryAddressSource.Rows edgeCases(@NotNull Set<Long> expected) {
+        MemoryAddressSource.Rows rows = new MemoryAddressSource.Rows();
+        long egaid = 1;
+        long osmId = 1;
+        double north = 0;
+
+        // matched
+        expected.add(egaid);
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "1", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "1", north));
+        // differently cased name and number
+        expected.add(egaid);
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "2a", north += SPACING));
+        rows.points.add(osm(osmId++, "BAHNHOFSTRASSE", "2A", north));
+        // white space in the OSM number
+        expected.add(egaid);
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "3b", north += SPACING));
+        rows.polygons.add(osm(osmId++, "Bahnhofstrasse", " 3\tb ", north));
+        // on a line
+        expected.add(egaid);
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "4", north += SPACING));
+        rows.lines.add(osm(osmId++, "Bahnhofstrasse", "4", north));
+        // ancillary
+        expected.add(egaid);
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "5.1", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "5.1", north));
+        expected.add(egaid);
+        rows.gwr.add(new GwrRecord(egaid++, "Bahnhofstrasse", "6", POSTCODE, CITY, "9901", GWRcompare.SWISSTOPO_STREET_GEOM, 1080, 0, true, lon(0),
+                lat(north += SPACING)));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "6", north));
+        // within the distance less the margin
+        expected.add(egaid);
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "7", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "7", north + GWRcompare.MATCHING_DISTANCE - 2));
+        // a place without street geometry
+        expected.add(egaid);
+        rows.gwr.add(new GwrRecord(egaid++, "Oberdorf", "8", POSTCODE, CITY, "9901", "Area", 0, 0, true, lon(0), lat(north += SPACING)));
+        OsmRecord place = osm(osmId++, null, "8", north);
+        place.place = "Oberdorf";
+        rows.points.add(place);
+
+        // close to the matching distance, left to Java
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "20", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "20", north + GWRcompare.MATCHING_DISTANCE - 0.5));
+        // too far away
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "21", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "21", north + GWRcompare.MATCHING_DISTANCE + 10));
+        // not official
+        rows.gwr.add(new GwrRecord(egaid++, "Bahnhofstrasse", "22", POSTCODE, CITY, "9901", GWRcompare.SWISSTOPO_STREET_GEOM, 0, 0, false, lon(0),
+                lat(north += SPACING)));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "22", north));
+        // different postcode, both a close one and one further away
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "23", north += SPACING));
+        OsmRecord postcode = osm(osmId++, "Bahnhofstrasse", "23", north);
+        postcode.postcode = "8001";
+        rows.points.add(postcode);
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "24", north += SPACING));
+        postcode = osm(osmId++, "Bahnhofstrasse", "24", north + 30);
+        postcode.postcode = "8001";
+        rows.points.add(postcode);
+        // no city
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "25", north += SPACING));
+        OsmRecord city = osm(osmId++, "Bahnhofstrasse", "25", north);
+        city.city = null;
+        rows.points.add(city);
+        // no place although there is no street geometry
+        rows.gwr.add(new GwrRecord(egaid++, "Unterdorf", "26", POSTCODE, CITY, "9901", "Area", 0, 0, true, lon(0), lat(north += SPACING)));
+        rows.points.add(osm(osmId++, "Unterdorf", "26", north));
+        // several OSM numbers
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "27", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "27;29", north));
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "31", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "31,", north));
+        // two OSM addresses with the same key
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "33", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "33", north));
+        rows.polygons.add(osm(osmId++, "bahnhofstrasse", "33", north + 10));
+        // one of them only with a different number
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "35", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "35", north));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "34;35", north));
+        // one of them only with a language specific name
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "37", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "37", north));
+        OsmRecord language = osm(osmId++, "Rue de la Gare", "37", north);
+        language.streetDe = "Bahnhofstrasse";
+        rows.points.add(language);
+        // two GWR addresses with the same key
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "39", north += SPACING));
+        rows.gwr.add(gwr(egaid++, "bahnhofstrasse", "39", north + 20));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "39", north));
+        // bilingual street with the same EGAID
+        rows.gwr.add(new GwrRecord(egaid, "Bahnhofstrasse", "41", POSTCODE, CITY, "9901", GWRcompare.SWISSTOPO_STREET_GEOM, 0, 0, true, lon(0),
+                lat(north += SPACING)));
+        rows.gwr.add(new GwrRecord(egaid++, "Rue de la Gare", "41", POSTCODE, CITY, "9903", GWRcompare.SWISSTOPO_STREET_GEOM, 0, 0, true, lon(0),
+                lat(north)));
+        language = osm(osmId++, "Bahnhofstrasse", "41", north);
+        rows.points.add(language);
+        // an OSM address with language specific names
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "43", north += SPACING));
+        language = osm(osmId++, "Bahnhofstrasse", "43", north);
+        language.streetFr = "Rue de la Gare";
+        rows.points.add(language);
+        // GWR addresses without street or number and OSM addresses without street or number, the Java matcher handles a GWR
+        // address without street like one on a multilingual street
+        rows.gwr.add(gwr(egaid++, null, "45", north += SPACING));
+        rows.points.add(osm(osmId++, null, "45", north));
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", null, north += SPACING));
+        OsmRecord housename = osm(osmId++, "Bahnhofstrasse", null, north);
+        housename.housename = "Haus am See";
+        rows.points.add(housename);
+        // a line break in the GWR number
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "47\n", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "47", north));
+        // only in one of them
+        rows.gwr.add(gwr(egaid++, "Bahnhofstrasse", "49", north += SPACING));
+        rows.points.add(osm(osmId++, "Bahnhofstrasse", "51", north));
+        return rows;
+    }
+
+    /**
+     * Process a municipality once reading all rows and once through a PredicateReader and check that the counts are
+     * the same
+     *
+     * @param reference the ReferenceData
+     * @param municipality the Municipality
+     * @param rows its rows
+     * @return the pairs the PredicateReader matched
+     * @throws SQLException
+     * @throws IOException
+     */
+    @NotNull
+    private static AddressSource.Matched compare(@NotNull ReferenceData reference, @NotNull Municipality municipality,
+            @NotNull MemoryAddressSource.Rows rows) throws SQLException, IOException {
+        MemoryAddressSource all = new MemoryAddressSource();
+        all.add(municipality, reference.canton(municipality.ref), rows);
+        final Stats expected;
+        try (MunicipalityWorker worker = new MunicipalityWorker(all.newReader(), new GWRcompare.Config(), reference, null)) {
+            expected = worker.match(municipality).stats;
+        }
+        PredicateReader reader = new PredicateReader(rows);
+        final Stats actual;
+        try (MunicipalityWorker worker = new MunicipalityWorker(reader, new GWRcompare.Config(), reference, null)) {
+            actual = worker.match(municipality).stats;
+        }
+        assertEquals(municipality.name, new ArrayList<String>(), expected.differences(actual));
+        return reader.matched;
+    }
+
+    /**
+     * Create an official GWR address on a street with street geometry
+     *
+     * @param egaid the EGAID
+     * @param street the street
+     * @param number the house number
+     * @param north the distance to the north in m
+     * @return a GwrRecord
+     */
+    @NotNull
+    private static GwrRecord gwr(long egaid, @Nullable String street, @Nullable String number, double north) {
+        return new GwrRecord(egaid, street, number, POSTCODE, CITY, "9901", GWRcompare.SWISSTOPO_STREET_GEOM, 0, 0, true, lon(0), lat(north));
+    }
+
+    /**
+     * Create an OSM address
+     *
+     * @param osmId the OSM id
+     * @param street the street
+     * @param number the house number
+     * @param north the distance to the north in m
+     * @return an OsmRecord
+     */
+    @NotNull
+    private static OsmRecord osm(long osmId, @Nullable String street, @Nullable String number, double north) {
+        OsmRecord r = new OsmRecord();
+        r.osmId = osmId;
+        r.street = street;
+        r.housenumber = number;
+        r.postcode = POSTCODE;
+        r.city = CITY;
+        r.lon = lon(0);
+        r.lat = lat(north);
+        return r;
+    }
+
+    /**
+     * @param east the distance to the east in m
+     * @return the longitude
+     */
+    private static float lon(double east) {
+        return (float) (LON + east / (METRES_PER_DEGREE * Math.cos(Math.toRadians(LAT))));
+    }
+
+    /**
+     * @param north the distance to the north in m
+     * @return the latitude
+     */
+    private static float lat(double north) {
+        return (float) (LAT + north / METRES_PER_DEGREE);
+    }
+
+    /**
+     * Matches the pairs that SqlMatchingReader matches in the database and only returns the remaining rows
+     *
+     * The comments name the parts of SqlMatchingReader that each step corresponds to.
+     */
+    private static final class PredicateReader implements AddressSource.Reader {
+
+        // SqlMatchingReader.WHITESPACE
+        private static final Pattern WHITESPACE = Pattern.compile("[ \\t\\n\\x0B\\f\\r]");
+        private static final Pattern SEPARATOR  = Pattern.compile("[;,]");
+        private static final Pattern ANCILLARY  = Pattern.compile("^[^.]+[.,]");
+        private static final Pattern LINE_BREAK = Pattern.compile("[\\n\\r]");
+        private static final String  NULL       = "null";
+
+        private final MemoryAddressSource.Rows rows;
+        private final MemoryAddressSource.Rows remaining = new MemoryAddressSource.Rows();
+
+        private AddressSource.Matched matched;
+        // the EGAIDs of the matched GWR addresses
+        private final Set<Long> matchedAddresses = new HashSet<>();
+
+        /**
+         * Construct a new instance
+         *
+         * @param rows the rows of the municipality
+         */
+        PredicateReader(@NotNull MemoryAddressSource.Rows rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        @NotNull
+        public List<GwrRecord> gwr(@NotNull Municipality municipality) {
+            matched = new AddressSource.Matched();
+            matchedAddresses.clear();
+
+            // INSERT_GWR, the keys of qa_gwr
+            Map<Long, Integer> egaidCount = new HashMap<>();
+            Map<String, Integer> gwrKeyCount = new HashMap<>();
+            for (GwrRecord g : rows.gwr) {
+                egaidCount.merge(g.addressId, 1, Integer::sum);
+                gwrKeyCount.merge(gwrKey(g), 1, Integer::sum);
+            }
+
+            // INSERT_OSM and INSERT_OSM_KEY, the single key of qa_osm and all keys of qa_osm_key by row
+            Map<String, List<OsmRecord>> osmByKey = new HashMap<>();
+            Map<String, Set<OsmRecord>> osmKeyRows = new HashMap<>();
+            Map<OsmRecord, OsmQuery> kinds = new HashMap<>();
+            for (OsmQuery query : OsmQuery.values()) {
+                for (OsmRecord o : rows.osm(query)) {
+                    kinds.put(o, query);
+                    if (isSingle(o)) {
+                        osmByKey.computeIfAbsent(key(o.street != null ? o.street : o.place, WHITESPACE.matcher(o.housenumber).replaceAll("")),
+                                k -> new ArrayList<>()).add(o);
+                    }
+                    for (String name : new String[] { o.street, o.streetDe, o.streetFr, o.streetIt, o.streetRm, o.place, o.placeDe, o.placeFr,
+                            o.placeIt, o.placeRm, o.street == null && o.place == null ? NULL : null }) {
+                        if (name == null) {
+                            continue;
+                        }
+                        if (o.housenumber != null) {
+                            // regexp_split_to_table keeps empty parts
+                            for (String part : SEPARATOR.split(o.housenumber, -1)) {
+                                osmKeyRows.computeIfAbsent(key(name, WHITESPACE.matcher(part).replaceAll("")), k -> new HashSet<>()).add(o);
+                            }
+                        } else {
+                            osmKeyRows.computeIfAbsent(key(name, o.housename != null ? o.housename : NULL), k -> new HashSet<>()).add(o);
+                        }
+                    }
+                }
+            }
+
+            // INSERT_MATCH
+            Set<GwrRecord> matchedGwr = new HashSet<>();
+            Set<OsmRecord> matchedOsm = new HashSet<>();
+            for (GwrRecord g : rows.gwr) {
+                final String key = gwrKey(g);
+                if (g.street == null || g.housenumber == null || LINE_BREAK.matcher(g.housenumber).find() || !g.official || egaidCount.get(g.addressId) != 1
+                        || gwrKeyCount.get(key) != 1 || osmKeyRows.getOrDefault(key, new HashSet<>()).size() != 1) {
+                    continue;
+                }
+                final boolean streetGeom = GWRcompare.SWISSTOPO_STREET_GEOM.equals(g.streetType);
+                for (OsmRecord o : osmByKey.getOrDefault(key, new ArrayList<>())) {
+                    if (Objects.equals(g.postcode, o.postcode) && Objects.equals(g.city, o.city) && (streetGeom || o.place != null)
+                            && GWRcompare.haversineDistance(g.lon, g.lat, o.lon, o.lat) <= GWRcompare.MATCHING_DISTANCE - 1) {
+                        matchedGwr.add(g);
+                        matchedOsm.add(o);
+                        matchedAddresses.add(g.addressId);
+                        matched.osm[kinds.get(o).ordinal()]++;
+                        if (g.category == 1010 || g.category == 1080 || g.gwrClass == 1242 || g.gwrClass == 1252
+                                || ANCILLARY.matcher(g.housenumber).find()) {
+                            matched.gwrAncillary++;
+                        } else {
+                            matched.gwr++;
+                        }
+                    }
+                }
+            }
+
+            // GWR_QUERY and OSM_QUERY, the rows that are left in their original order
+            remaining.gwr.clear();
+            for (GwrRecord g : rows.gwr) {
+                if (!matchedGwr.contains(g)) {
+                    remaining.gwr.add(g);
+                }
+            }
+            for (OsmQuery query : OsmQuery.values()) {
+                remaining.osm(query).clear();
+                for (OsmRecord o : rows.osm(query)) {
+                    if (!matchedOsm.contains(o)) {
+                        remaining.osm(query).add(o);
+                    }
+                }
+            }
+            return remaining.gwr;
+        }
+
+        @Override
+        @Nullable
+        public AddressSource.Matched matched() {
+            return matched;
+        }
+
+        @Override
+        @NotNull
+        public OsmRows osm(@NotNull Municipality municipality, @NotNull OsmQuery query) {
+            return MemoryAddressSource.rows(remaining.osm(query));
+        }
+
+        @Override
+        public void close() {
+            // nothing to close
+        }
+
+        /**
+         * Check if an OSM address gets a key in qa_osm, SqlMatchingReader.SINGLE
+         *
+         * @param o the OsmRecord
+         * @return true if the address has a single number and no language specific names
+         */
+        private static boolean isSingle(@NotNull OsmRecord o) {
+            return o.housenumber != null && !SEPARATOR.matcher(o.housenumber).find() && o.streetDe == null && o.streetFr == null && o.streetIt == null
+                    && o.streetRm == null && o.placeDe == null && o.placeFr == null && o.placeIt == null && o.placeRm == null;
+        }
+
+        /**
+         * Get the key of a GWR address in qa_gwr
+         *
+         * @param g the GwrRecord
+         * @return the key
+         */
+        @NotNull
+        private static String gwrKey(@NotNull GwrRecord g) {
+            return key(g.street != null ? g.street : NULL, g.housenumber != null ? g.housenumber : NULL);
+        }
+
+        /**
+         * Combine the case folded name and number to a key
+         *
+         * @param name the name
+         * @param number the number
+         * @return the key
+         */
+        @NotNull
+        private static String key(@Nullable String name, @NotNull String number) {
+            return (name != null ? name : NULL).toLowerCase() + '\u0000' + number.toLowerCase();
+        }
+    }
+}